@@ -0,0 +1,272 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads entries of a jar or zip file straight out of a memory mapping,
+ * the central directory is indexed once when the archive is opened.
+ * 
+ * Closing releases the mapping, so the file is not held open or locked
+ * between builds, it is mapped again by the next read as long as the
+ * file has not changed since it was indexed.
+ *
+ * @author kate
+ */
+public class Archive implements Closeable {
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /**
+     * An entry of an archive, usable in place of a file on the classpath.
+     */
+    public static class Entry extends File {
+        private static final long serialVersionUID = 1L;
+        public final Archive archive;
+        public final String name;
+        private final int method;
+        private final int compressedSize;
+        private final int size;
+        private final int headerOffset;
+        private Entry(Archive archive, String name, int method, int compressedSize, int size, int headerOffset) {
+            super(archive.file.getPath() + "!/" + name);
+            this.archive = archive;
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+        
+        public byte[] read() throws IOException {
+            return archive.read(this);
+        }
+        
+        @Override
+        public boolean exists() {
+            return true;
+        }
+        
+        @Override
+        public boolean isFile() {
+            return true;
+        }
+        
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+        
+        @Override
+        public boolean isHidden() {
+            return false;
+        }
+        
+        @Override
+        public long length() {
+            return size;
+        }
+        
+        @Override
+        public long lastModified() {
+            return archive.file.lastModified();
+        }
+    }
+    
+    public static boolean isArchive(File file) {
+        String name = file.getName().toLowerCase();
+        return file.isFile() && (name.endsWith(".jar") || name.endsWith(".zip"));
+    }
+    
+    public final File file;
+    private final long lastModified;
+    private final long length;
+    private MappedByteBuffer buffer;
+    private final Map<String, Entry> entries = new LinkedHashMap();
+    public Archive(File file) throws IOException {
+        this.file = file;
+        lastModified = file.lastModified();
+        length = file.length();
+        buffer = map();
+        
+        int end = buffer.limit() - 22;
+        int stop = Math.max(0, end - 0xFFFF);
+        while(end >= stop && buffer.getInt(end) != END_SIGNATURE)
+            end --;
+        if(end < stop)
+            throw new IOException("Not a zip archive: " + file);
+        
+        int count = buffer.getShort(end + 10) & 0xFFFF;
+        int offset = buffer.getInt(end + 16);
+        if(offset == -1)
+            throw new IOException("Zip64 archives are not supported: " + file);
+        
+        for(int i=0; i<count; i++) {
+            if(buffer.getInt(offset) != CENTRAL_SIGNATURE)
+                throw new IOException("Corrupt central directory in " + file);
+            
+            int method = buffer.getShort(offset + 10) & 0xFFFF;
+            int compressedSize = buffer.getInt(offset + 20);
+            int size = buffer.getInt(offset + 24);
+            int nameLength = buffer.getShort(offset + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(offset + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(offset + 32) & 0xFFFF;
+            int headerOffset = buffer.getInt(offset + 42);
+            
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + 46);
+            view.get(nameBytes);
+            String name = new String(nameBytes, UTF8);
+            
+            if(!name.endsWith("/"))
+                entries.put(name, new Entry(this, name, method, compressedSize, size, headerOffset));
+            offset += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+    
+    private MappedByteBuffer map() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            return mapped;
+        }
+    }
+    
+    /**
+     * @return Whether the file has been replaced or modified since it was indexed
+     */
+    public boolean isStale() {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+    
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+    
+    public Collection<Entry> entries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+    
+    private byte[] read(Entry entry) throws IOException {
+        byte[] raw;
+        synchronized(this) {
+            if(buffer == null) {
+                if(isStale())
+                    throw new IOException("Archive changed since it was indexed: " + file);
+                buffer = map();
+            }
+            
+            if(buffer.getInt(entry.headerOffset) != LOCAL_SIGNATURE)
+                throw new IOException("Corrupt entry `" + entry.name + "` in " + file);
+            
+            int nameLength = buffer.getShort(entry.headerOffset + 26) & 0xFFFF;
+            int extraLength = buffer.getShort(entry.headerOffset + 28) & 0xFFFF;
+            ByteBuffer view = buffer.duplicate();
+            view.position(entry.headerOffset + 30 + nameLength + extraLength);
+            
+            raw = new byte[entry.method == DEFLATED ? entry.compressedSize + 1 : entry.compressedSize]; // Inflater wants a trailing byte when using nowrap
+            view.get(raw, 0, entry.compressedSize);
+        }
+        
+        switch(entry.method) {
+            case STORED:
+                return raw;
+            
+            case DEFLATED:
+                byte[] data = new byte[entry.size];
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(raw);
+                    int read = 0;
+                    while(read < data.length && !inflater.finished()) {
+                        int inflated = inflater.inflate(data, read, data.length - read);
+                        if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                            break;
+                        read += inflated;
+                    }
+                    if(read != data.length)
+                        throw new IOException("Truncated entry `" + entry.name + "` in " + file);
+                } catch (DataFormatException ex) {
+                    throw new IOException("Corrupt entry `" + entry.name + "` in " + file, ex);
+                } finally {
+                    inflater.end();
+                }
+                return data;
+            
+            default:
+                throw new IOException("Unsupported compression method " + entry.method + " for `" + entry.name + "` in " + file);
+        }
+    }
+    
+    /**
+     * Releases the mapping, entries can still be read afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if(buffer != null) {
+            unmap(buffer);
+            buffer = null;
+        }
+    }
+    
+    /**
+     * Unmaps a buffer right away rather than whenever it is collected,
+     * which is left to the collector on JVMs offering no way to.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException ex) { // Before Java 9
+                Method getCleaner = buffer.getClass().getMethod("cleaner");
+                getCleaner.setAccessible(true);
+                Object cleaner = getCleaner.invoke(buffer);
+                if(cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Trace.log(Trace.DEBUG, "Leaving the mapping of an archive to the collector: " + ex);
+        }
+    }
+    
+}
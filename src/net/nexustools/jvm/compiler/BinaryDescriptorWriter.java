@@ -0,0 +1,396 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static net.nexustools.jvm.compiler.CompactDescriptorWriter.*;
+import static net.nexustools.jvm.compiler.Compiler.convertRuntime;
+
+/**
+ * Writes descriptors in the binary class format, later joined into
+ * a bundle by {@link BundleWriter}.
+ * 
+ * A class starts with the magic JVMC and a version, followed by its string
+ * table and the same records the compact format uses, encoded as bytes.
+ * Counts, indexes and unsigned operands are LEB128 varints, signed operands
+ * are zigzag encoded and numeric constants are 64 bit floats, since that is
+ * what the runtime ends up holding them as anyway.
+ *
+ * @author kate
+ */
+public class BinaryDescriptorWriter extends DescriptorWriter {
+    public static final int MAGIC = 0x4A564D43; // JVMC
+    public static final int VERSION = 1;
+    
+    static final int NO_VALUE = 0;
+    static final int STRING_VALUE = 1;
+    static final int NUMERIC_VALUE = 2;
+    static final int TYPE_VALUE = 3;
+    static final int LONG_VALUE = 4;
+    
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    static void writeSigned(DataOutputStream out, int value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 31));
+    }
+    
+    private static class Buffer {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        int count;
+    }
+    
+    private final OutputStream output;
+    private final Map<String, Integer> strings = new LinkedHashMap();
+    private final Buffer header = new Buffer();
+    private final Buffer members = new Buffer();
+    private final Buffer code = new Buffer();
+    private final Buffer method = new Buffer();
+    private final StringBuilder methodProperties = new StringBuilder();
+    public BinaryDescriptorWriter(OutputStream output) {
+        this.output = output;
+    }
+    
+    private int string(String value) {
+        Integer index = strings.get(value);
+        if(index == null)
+            strings.put(value, index = strings.size());
+        return index;
+    }
+    
+    private void string(DataOutputStream out, String value) throws IOException {
+        writeVarint(out, string(value));
+    }
+    
+    private void type(DataOutputStream out, String desc) throws IOException {
+        writeVarint(out, string(convertRuntime(desc)));
+    }
+    
+    private void number(DataOutputStream out, Number value) throws IOException {
+        // The same value the runtime gets from the number literal in the other formats
+        out.writeDouble(Double.parseDouble(String.valueOf(value)));
+        if(value instanceof Long)
+            out.writeLong((Long)value); // Exactly, as the high and low halves
+    }
+    
+    private DataOutputStream code(int kind) throws IOException {
+        code.count ++;
+        code.out.writeByte(kind);
+        return code.out;
+    }
+    
+    @Override
+    public void beginClass(String name, String[] interfaces, String parent) throws IOException {
+        string(header.out, name);
+        writeVarint(header.out, interfaces.length);
+        for(String iface : interfaces)
+            type(header.out, iface);
+        writeVarint(header.out, parent == null ? 0 : string(convertRuntime(parent)) + 1);
+    }
+    
+    @Override
+    public void field(String name, String desc, Object value, int access) throws IOException {
+        members.count ++;
+        members.out.writeByte(FIELD);
+        string(members.out, name);
+        type(members.out, desc);
+        writeVarint(members.out, access);
+        if(value instanceof String) {
+            members.out.writeByte(STRING_VALUE);
+            string(members.out, (String)value);
+        } else if(value instanceof Number) {
+            members.out.writeByte(value instanceof Long ? LONG_VALUE : NUMERIC_VALUE);
+            number(members.out, (Number)value);
+        } else
+            members.out.writeByte(NO_VALUE);
+    }
+    
+    @Override
+    public void beginMethod(String name, String desc, String[] exceptions, int access, String nativeImplementation) throws IOException {
+        DataOutputStream out = nativeImplementation == null ? method.out : members.out;
+        members.count ++;
+        out.writeByte(METHOD);
+        string(out, name);
+        type(out, desc);
+        writeVarint(out, access);
+        if(exceptions == null)
+            writeVarint(out, 0);
+        else {
+            writeVarint(out, exceptions.length + 1);
+            for(String exception : exceptions)
+                type(out, exception);
+        }
+        
+        if(nativeImplementation != null) {
+            out.writeByte(1);
+            string(out, nativeImplementation);
+        } else
+            out.writeByte(0);
+    }
+    
+    @Override
+    public void endMethod() throws IOException {
+        writeVarint(method.out, code.count);
+        method.out.flush();
+        code.out.flush();
+        method.bytes.writeTo(members.out);
+        code.bytes.writeTo(members.out);
+        method.bytes.reset();
+        code.bytes.reset();
+        code.count = 0;
+        
+        // Properties are kept as the source of an object literal
+        writeVarint(members.out, methodProperties.length() == 0 ? 0 : string("{" + methodProperties + "}") + 1);
+        methodProperties.setLength(0);
+    }
+    
+    @Override
+    public void methodProperty(String key, String source) throws IOException {
+        if(methodProperties.length() > 0)
+            methodProperties.append(',');
+        methodProperties.append('"');
+        methodProperties.append(key);
+        methodProperties.append("\":");
+        methodProperties.append(source);
+    }
+    
+    @Override
+    public void tryCatch(String start, String end, String handler, String type) throws IOException {
+        DataOutputStream out = code(TRY);
+        string(out, start);
+        string(out, end);
+        string(out, handler);
+        string(out, String.valueOf(type));
+    }
+    
+    @Override
+    public void methodInsn(int opcode, String owner, String name, String desc, boolean itf, String target) throws IOException {
+        DataOutputStream out = code(METHOD_INSN);
+        out.writeByte(opcode);
+        type(out, owner);
+        string(out, name);
+        type(out, desc);
+        out.writeByte((itf ? 1 : 0) | (target != null ? 2 : 0));
+        if(target != null)
+            type(out, target);
+    }
+    
+    @Override
+    public void lambda(String name, String desc, String samDesc, String instantiatedDesc, int implOpcode, String implOwner, String implName, String implDesc, boolean implItf, String[] interfaces, String[] bridges) throws IOException {
+        DataOutputStream out = code(LAMBDA);
+        string(out, name);
+        type(out, desc);
+        type(out, samDesc);
+        type(out, instantiatedDesc);
+        out.writeByte(implOpcode);
+        type(out, implOwner);
+        string(out, implName);
+        type(out, implDesc);
+        out.writeByte(implItf ? 1 : 0);
+        writeVarint(out, interfaces.length);
+        for(String iface : interfaces)
+            type(out, iface);
+        writeVarint(out, bridges.length);
+        for(String bridge : bridges)
+            type(out, bridge);
+    }
+    
+    @Override
+    public void concat(String desc, Object[] parts) throws IOException {
+        DataOutputStream out = code(CONCAT);
+        type(out, desc);
+        writeVarint(out, parts.length);
+        for(Object part : parts)
+            writeSigned(out, part instanceof String ? string((String)part) : -1 - (Integer)part);
+    }
+    
+    @Override
+    public void newTypedArray(String desc, int dims, String typedArray) throws IOException {
+        DataOutputStream out = code(TYPED_ARRAY);
+        string(out, desc);
+        writeVarint(out, dims);
+        string(out, typedArray);
+    }
+    
+    @Override
+    public void tableSwitch(int min, int max, String dflt, String[] labels) throws IOException {
+        DataOutputStream out = code(TABLE_SWITCH);
+        writeSigned(out, min);
+        writeSigned(out, max);
+        string(out, dflt);
+        writeVarint(out, labels.length);
+        for(String label : labels)
+            string(out, label);
+    }
+    
+    @Override
+    public void multiANewArray(String desc, int dims) throws IOException {
+        DataOutputStream out = code(MULTI_ARRAY);
+        string(out, desc);
+        writeVarint(out, dims);
+    }
+    
+    @Override
+    public void iinc(int var, int increment) throws IOException {
+        DataOutputStream out = code(IINC);
+        writeVarint(out, var);
+        writeSigned(out, increment);
+    }
+    
+    @Override
+    public void lookupSwitch(String dflt, int[] keys, String[] labels) throws IOException {
+        DataOutputStream out = code(LOOKUP_SWITCH);
+        writeVarint(out, dflt == null ? 0 : string(dflt) + 1);
+        writeVarint(out, keys.length);
+        for(int key : keys)
+            writeSigned(out, key);
+        for(String label : labels)
+            string(out, label);
+    }
+    
+    @Override
+    public void localVariable(String name, String desc, String start, String end, int index) throws IOException {
+        DataOutputStream out = code(DECLARE);
+        string(out, String.valueOf(name));
+        type(out, desc);
+        writeVarint(out, index);
+        string(out, start);
+        string(out, end);
+    }
+    
+    @Override
+    public void parameter(String name, int access) throws IOException {
+        DataOutputStream out = code(PARAMETER);
+        string(out, String.valueOf(name));
+        writeVarint(out, access);
+    }
+    
+    @Override
+    public void varInsn(int opcode, int var) throws IOException {
+        DataOutputStream out = code(VAR);
+        out.writeByte(opcode);
+        writeVarint(out, var);
+    }
+    
+    @Override
+    public void typeInsn(int opcode, String type) throws IOException {
+        DataOutputStream out = code(TYPE);
+        out.writeByte(opcode);
+        type(out, type);
+    }
+    
+    @Override
+    public void ldc(Object cst) throws IOException {
+        DataOutputStream out = code(LDC);
+        if(cst instanceof String) {
+            out.writeByte(STRING_VALUE);
+            string(out, (String)cst);
+        } else if(cst instanceof Number) {
+            out.writeByte(cst instanceof Long ? LONG_VALUE : NUMERIC_VALUE);
+            number(out, (Number)cst);
+        } else {
+            out.writeByte(TYPE_VALUE);
+            type(out, ((org.objectweb.asm.Type)cst).getInternalName());
+        }
+    }
+    
+    @Override
+    public void label(String name) throws IOException {
+        string(code(LABEL), name);
+    }
+    
+    @Override
+    public void jumpInsn(int opcode, String label) throws IOException {
+        DataOutputStream out = code(JUMP);
+        out.writeByte(opcode);
+        string(out, label);
+    }
+    
+    @Override
+    public void insn(int opcode) throws IOException {
+        code(INSN).writeByte(opcode);
+    }
+    
+    @Override
+    public void intInsn(int opcode, int operand) throws IOException {
+        DataOutputStream out = code(INT);
+        out.writeByte(opcode);
+        writeSigned(out, operand);
+    }
+    
+    @Override
+    public void fieldInsn(int opcode, String owner, String name, String desc) throws IOException {
+        DataOutputStream out = code(FIELD_INSN);
+        out.writeByte(opcode);
+        type(out, owner);
+        string(out, name);
+        type(out, desc);
+    }
+    
+    @Override
+    public void endClass(List<String> references) throws IOException {
+        List<String> written = new ArrayList();
+        for(String reference : references) {
+            String ref = convertRuntime(reference);
+            if(!written.contains(ref))
+                written.add(ref);
+        }
+        
+        Buffer footer = new Buffer();
+        writeVarint(footer.out, written.size());
+        for(String ref : written)
+            string(footer.out, ref);
+        
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        writeVarint(out, strings.size());
+        for(String string : strings.keySet()) {
+            byte[] bytes = string.getBytes("UTF-8");
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+        }
+        
+        header.out.flush();
+        members.out.flush();
+        footer.out.flush();
+        header.bytes.writeTo(out);
+        writeVarint(out, members.count);
+        members.bytes.writeTo(out);
+        footer.bytes.writeTo(out);
+        out.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+    
+}
@@ -0,0 +1,111 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers what was emitted for each class by a previous compile,
+ * so classes whose bytes have not changed can be skipped.
+ *
+ * @author kate
+ */
+public class BuildCache {
+    public static final String FILENAME = ".jvmjs-cache.json";
+
+    public static class Entry {
+        public String hash;
+        public String output;
+        public String nativeOutput;
+        public List<String> references;
+        public Map<String, String> inlined; // Classes read while inlining, with the hash of their bytes
+    }
+
+    private String key;
+    private Map<String, Entry> entries = new HashMap();
+
+    /**
+     * Loads the cache stored in an output directory.
+     *
+     * @param outputFolder
+     * @param key Describes the settings the output was written with, a cache written with another key is discarded
+     * @return
+     */
+    public static BuildCache load(File outputFolder, String key) {
+        File file = new File(outputFolder, FILENAME);
+        if(file.isFile()) {
+            try (FileReader reader = new FileReader(file)) {
+                BuildCache cache = new Gson().fromJson(reader, BuildCache.class);
+                if(cache != null && key.equals(cache.key) && cache.entries != null)
+                    return cache;
+            } catch (IOException | JsonParseException ex) {
+                Trace.log(Trace.WARN, "Discarding unreadable build cache: " + ex);
+            }
+        }
+
+        BuildCache cache = new BuildCache();
+        cache.key = key;
+        return cache;
+    }
+
+    public static String hash(byte[]... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        for(byte[] part : parts)
+            digest.update(part);
+
+        StringBuilder builder = new StringBuilder();
+        for(byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    public synchronized Entry get(String classname) {
+        return entries.get(classname);
+    }
+
+    public synchronized void put(String classname, Entry entry) {
+        entries.put(classname, entry);
+    }
+
+    public synchronized void remove(String classname) {
+        entries.remove(classname);
+    }
+
+    public synchronized void save(File outputFolder) throws IOException {
+        try (FileWriter writer = new FileWriter(new File(outputFolder, FILENAME))) {
+            new Gson().toJson(this, writer);
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static net.nexustools.jvm.compiler.BinaryDescriptorWriter.writeVarint;
+
+/**
+ * Joins classes written by {@link BinaryDescriptorWriter} into a single
+ * bundle the browser fetches as an ArrayBuffer.
+ * 
+ * A bundle starts with the magic JVMB and a version, followed by a string
+ * table shared by every class, an index of the classes it holds and then
+ * the classes themselves. The string table is a count, the offsets of each
+ * string into the UTF-8 data following it and the data, so strings can be
+ * decoded only when used. The index gives the name, offset and length of each
+ * class so they can be decoded one at a time. Each class starts with the
+ * shared indexes of the strings it uses, followed by its body as written
+ * by the descriptor writer, which refers to them by position.
+ *
+ * @author kate
+ */
+public class BundleWriter {
+    public static final int MAGIC = 0x4A564D42; // JVMB
+    public static final int VERSION = 1;
+    public static final String LOADER = "jvm/bundle.js";
+    
+    /**
+     * Writes the script that fetches and defines bundles,
+     * it needs the compact decoder loaded before it.
+     * 
+     * @param file
+     * @throws IOException 
+     */
+    public static void writeLoader(File file) throws IOException {
+        try (InputStream in = BundleWriter.class.getResourceAsStream("bundle.js");
+                OutputStream out = new FileOutputStream(file)) {
+            if(in == null)
+                throw new IOException("Missing bundle.js resource");
+            Compiler.copy(in, out);
+        }
+    }
+    
+    private final Map<String, Integer> strings = new LinkedHashMap();
+    private final List<Integer> names = new ArrayList();
+    private final List<byte[]> classes = new ArrayList();
+    
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0, shift = 0, b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+    
+    private int string(String value) {
+        Integer index = strings.get(value);
+        if(index == null)
+            strings.put(value, index = strings.size());
+        return index;
+    }
+    
+    /**
+     * Adds a class written by {@link BinaryDescriptorWriter}.
+     * 
+     * @param classBytes
+     * @throws IOException 
+     */
+    public void add(byte[] classBytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classBytes));
+        if(in.readInt() != BinaryDescriptorWriter.MAGIC)
+            throw new IOException("Not a binary class descriptor");
+        int version = in.readUnsignedShort();
+        if(version != BinaryDescriptorWriter.VERSION)
+            throw new IOException("Unsupported binary class version " + version);
+        
+        int count = readVarint(in);
+        int[] global = new int[count];
+        for(int i=0; i<count; i++) {
+            byte[] bytes = new byte[readVarint(in)];
+            in.readFully(bytes);
+            global[i] = string(new String(bytes, "UTF-8"));
+        }
+        
+        byte[] body = new byte[in.available()];
+        in.readFully(body);
+        names.add(global[readVarint(new DataInputStream(new ByteArrayInputStream(body)))]);
+        
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + count * 2 + 4);
+        DataOutputStream out = new DataOutputStream(record);
+        writeVarint(out, count);
+        for(int index : global)
+            writeVarint(out, index);
+        out.write(body);
+        out.flush();
+        classes.add(record.toByteArray());
+    }
+    
+    public void add(File classFile) throws IOException {
+        add(Compiler.readBytes(classFile));
+    }
+    
+    public int size() {
+        return classes.size();
+    }
+    
+    public void write(File bundle) throws IOException {
+        List<byte[]> encoded = new ArrayList();
+        int stringBytes = 0;
+        for(String string : strings.keySet()) {
+            byte[] bytes = string.getBytes("UTF-8");
+            encoded.add(bytes);
+            stringBytes += bytes.length;
+        }
+        
+        int offset = 4 + 2 + 2 + 4 + 4 * (encoded.size() + 1) + stringBytes + 4 + 12 * classes.size();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bundle)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            
+            out.writeInt(encoded.size());
+            int position = 0;
+            out.writeInt(position);
+            for(byte[] bytes : encoded)
+                out.writeInt(position += bytes.length);
+            for(byte[] bytes : encoded)
+                out.write(bytes);
+            
+            out.writeInt(classes.size());
+            for(int i=0; i<classes.size(); i++) {
+                out.writeInt(names.get(i));
+                out.writeInt(offset);
+                out.writeInt(classes.get(i).length);
+                offset += classes.get(i).length;
+            }
+            for(byte[] record : classes)
+                out.write(record);
+        }
+    }
+    
+}
@@ -16,17 +16,201 @@
  */
 package net.nexustools.jvm.compiler;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  *
  * @author kate
  */
 public class CMD {
+    
+    public static class Result {
+        public final File configFile;
+        public Compiler compiler;
+        public Throwable error;
+        public long time;
+        public Result(File configFile) {
+            this.configFile = configFile;
+        }
+        
+        public int exitCode() {
+            return error == null ? 0 : 1;
+        }
+    }
+    
+    /**
+     * Builds several configs concurrently, sharing one scan of
+     * any classpath directories they have in common.
+     * 
+     * @param configFiles
+     * @param threads
+     * @return The result of each config, in the same order
+     * @throws InterruptedException 
+     */
+    public static List<Result> build(List<File> configFiles, int threads) throws InterruptedException {
+        final ClasspathIndex.Cache scanCache = new ClasspathIndex.Cache();
+        List<Future<Result>> futures = new ArrayList();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for(final File configFile : configFiles)
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        Result result = new Result(configFile);
+                        long start = System.currentTimeMillis();
+                        Trace.begin();
+                        try {
+                            result.compiler = new Compiler(Config.load(configFile), null, scanCache);
+                            result.compiler.build();
+                        } catch (Throwable t) {
+                            if(t instanceof Compiler.CompileError)
+                                Trace.dump(System.err);
+                            t.printStackTrace();
+                            result.error = t;
+                        } finally {
+                            Trace.bind(null);
+                        }
+                        result.time = System.currentTimeMillis() - start;
+                        return result;
+                    }
+                }));
+            
+            List<Result> results = new ArrayList();
+            for(Future<Result> future : futures)
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException ex) {
+                    throw new RuntimeException(ex.getCause());
+                }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
 
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        System.out.println("Commandline Interface not finished yet.");
+        boolean watch = false, daemon = false, client = false, verbose = false;
+        int port = Daemon.DEFAULT_PORT, threads = Runtime.getRuntime().availableProcessors(), traceLevel = Trace.INFO;
+        List<File> configFiles = new ArrayList();
+        for(int i=0; i<args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("--watch"))
+                watch = true;
+            else if(arg.equals("--daemon"))
+                daemon = true;
+            else if(arg.equals("--client"))
+                client = true;
+            else if(arg.equals("--port") && i < args.length-1)
+                port = Integer.parseInt(args[++i]);
+            else if(arg.equals("--threads") && i < args.length-1)
+                threads = Integer.parseInt(args[++i]);
+            else if(arg.equals("--trace") && i < args.length-1)
+                traceLevel = Trace.parseLevel(args[++i]);
+            else if(arg.equals("--verbose"))
+                verbose = true;
+            else
+                configFiles.add(new File(arg));
+        }
+        
+        // Detailed tracing goes to memory and is only printed when a compile fails, unless verbose
+        if(verbose)
+            Trace.configure(Trace.TRACE, 0, new Trace.Console(Trace.TRACE));
+        else if(traceLevel > Trace.INFO)
+            Trace.configure(traceLevel, Trace.RingBuffer.DEFAULT_CAPACITY, new Trace.Console(Trace.INFO));
+        else
+            Trace.configure(traceLevel, 0, new Trace.Console(traceLevel));
+        
+        if(daemon) {
+            try (Daemon server = new Daemon(port)) {
+                server.serve();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        
+        if(configFiles.isEmpty()) {
+            System.err.println("Usage: [--watch] [--threads <count>] [--trace <level>|--verbose] <config.wc.json>...");
+            System.err.println("       --daemon [--port <port>]");
+            System.err.println("       --client [--port <port>] <config.wc.json>...");
+            System.exit(1);
+            return;
+        }
+        
+        if(client) {
+            int exitCode = 0;
+            for(File configFile : configFiles)
+                try {
+                    if(!Daemon.submit(port, configFile, System.out))
+                        exitCode = 1;
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    exitCode = 1;
+                }
+            System.exit(exitCode);
+            return;
+        }
+        
+        List<Result> results;
+        try {
+            results = build(configFiles, Math.max(1, Math.min(threads, configFiles.size())));
+        } catch (InterruptedException ex) {
+            System.exit(1);
+            return;
+        }
+        
+        int exitCode = 0;
+        System.out.println();
+        for(Result result : results) {
+            System.out.println(String.format("%-6s %3d %8dms  %s", result.error == null ? "OK" : "FAILED", result.exitCode(), result.time, result.configFile));
+            if(result.error != null) {
+                System.out.println("                     " + result.error.getMessage());
+                exitCode = 1;
+            }
+        }
+        
+        if(watch) {
+            List<Thread> watchers = new ArrayList();
+            for(final Result result : results) {
+                if(result.error != null)
+                    continue;
+                
+                Thread thread = new Thread("Watcher " + result.configFile.getName()) {
+                    @Override
+                    public void run() {
+                        try (Watcher watcher = new Watcher(result.compiler)) {
+                            watcher.watch();
+                        } catch (IOException | InterruptedException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                };
+                thread.start();
+                watchers.add(thread);
+            }
+            
+            System.out.println("Watching for changes...");
+            for(Thread thread : watchers)
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    break;
+                }
+        }
+        
+        System.exit(exitCode);
     }
     
 }
@@ -0,0 +1,150 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Concatenates scripts into as few files as a size limit allows,
+ * keeping them in the order given.
+ *
+ * @author kate
+ */
+public class ChunkWriter {
+    public static final String DIRECTORY = "chunks";
+    public static final String LOADER = "jvm/split.js";
+    public static final String MANIFEST = DIRECTORY + "/manifest.js";
+    
+    private static final Gson gson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
+    
+    public static void writeLoader(File file) throws IOException {
+        try (InputStream in = ChunkWriter.class.getResourceAsStream("split.js");
+                OutputStream out = new FileOutputStream(file)) {
+            if(in == null)
+                throw new IOException("Missing split.js resource");
+            Compiler.copy(in, out);
+        }
+    }
+    
+    public final File outputFolder;
+    public final long chunkSize;
+    public ChunkWriter(File outputFolder, long chunkSize) {
+        this.outputFolder = outputFolder;
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Writes scripts into chunks, removing any chunks with the same prefix left by an earlier build.
+     * 
+     * @param prefix
+     * @param scripts Paths relative to the output folder
+     * @return The paths of the chunks, relative to the output folder
+     * @throws IOException 
+     */
+    public List<String> write(String prefix, List<String> scripts) throws IOException {
+        return write(prefix, Collections.singletonList(scripts), null);
+    }
+    
+    /**
+     * Writes groups of scripts into chunks, each group starting a chunk of its own.
+     * 
+     * @param prefix
+     * @param groups Paths relative to the output folder
+     * @param chunkOf Filled with the chunk each script was written to, may be null
+     * @return The paths of the chunks, relative to the output folder
+     * @throws IOException 
+     */
+    public List<String> write(String prefix, List<List<String>> groups, Map<String, String> chunkOf) throws IOException {
+        File directory = new File(outputFolder, DIRECTORY);
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory `" + directory.getAbsolutePath() + "`");
+        
+        Pattern stale = Pattern.compile("^" + Pattern.quote(prefix) + "\\-\\d+\\.js$");
+        for(File file : directory.listFiles())
+            if(stale.matcher(file.getName()).matches() && !file.delete())
+                throw new IOException("Cannot remove `" + file.getAbsolutePath() + "`");
+        
+        List<String> chunks = new ArrayList();
+        OutputStream out = null;
+        long written = 0;
+        try {
+            for(List<String> scripts : groups) {
+                if(out != null) {
+                    out.close();
+                    out = null;
+                }
+                
+                for(String script : scripts) {
+                    File file = new File(outputFolder, script);
+                    long length = file.length();
+                    if(out != null && chunkSize > 0 && written > 0 && written + length > chunkSize) {
+                        out.close();
+                        out = null;
+                    }
+                    
+                    if(out == null) {
+                        String chunk = DIRECTORY + "/" + prefix + "-" + chunks.size() + ".js";
+                        out = new BufferedOutputStream(new FileOutputStream(new File(outputFolder, chunk)));
+                        chunks.add(chunk);
+                        written = 0;
+                    }
+                    
+                    out.write(Compiler.readBytes(file));
+                    out.write('\n');
+                    written += length + 1;
+                    if(chunkOf != null)
+                        chunkOf.put(script, chunks.get(chunks.size()-1));
+                }
+            }
+        } finally {
+            if(out != null)
+                out.close();
+        }
+        return chunks;
+    }
+    
+    /**
+     * Writes the script telling the split loader which chunk defines each class.
+     * 
+     * @param chunks Runtime classnames mapped to the chunk defining them
+     * @return The path of the manifest, relative to the output folder
+     * @throws IOException 
+     */
+    public String writeManifest(Map<String, String> chunks) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(outputFolder, MANIFEST)), "UTF-8")) {
+            writer.write("JVM.registerChunks($currentJVM, ");
+            writer.write(gson.toJson(chunks));
+            writer.write(");\n");
+        }
+        return MANIFEST;
+    }
+    
+}
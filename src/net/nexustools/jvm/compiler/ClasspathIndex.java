@@ -0,0 +1,419 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The contents of a single classpath directory.
+ *
+ * @author kate
+ */
+public class ClasspathIndex {
+    private static final ForkJoinPool scanPool = new ForkJoinPool();
+    private static final int FORMAT_VERSION = 1;
+    private static final long RACY_WINDOW = 2000; // Directories modified this close to a scan may change again without a new mtime
+    private static final Comparator<File> pathOrder = new Comparator<File>() {
+        @Override
+        public int compare(File o1, File o2) {
+            return o1.getPath().compareTo(o2.getPath());
+        }
+    };
+    
+    /**
+     * Shares scanned directories and built-in class lists
+     * between compilers running in the same JVM, anything
+     * that changed since it was scanned is scanned again.
+     */
+    public static class Cache {
+        private final Map<File, ClasspathIndex> indexes = new HashMap();
+        private final Map<File, String[]> builtIns = new HashMap();
+        private final Map<File, Long> builtInsModified = new HashMap();
+        
+        public ClasspathIndex get(File root) {
+            ClasspathIndex index = peek(root);
+            return index != null ? index : put(root, scan(root));
+        }
+        
+        public ClasspathIndex peek(File root) {
+            synchronized(indexes) {
+                ClasspathIndex index = indexes.get(root.getAbsoluteFile());
+                if(index != null && index.isStale()) {
+                    indexes.remove(root.getAbsoluteFile());
+                    return null;
+                }
+                return index;
+            }
+        }
+        
+        public ClasspathIndex put(File root, ClasspathIndex index) {
+            synchronized(indexes) {
+                ClasspathIndex existing = indexes.get(root.getAbsoluteFile());
+                if(existing != null && !existing.isStale())
+                    return existing;
+                
+                indexes.put(root.getAbsoluteFile(), index);
+                return index;
+            }
+        }
+        
+        public String[] builtIns(File runtimeDirectoryJS, File indexDirectory) {
+            runtimeDirectoryJS = runtimeDirectoryJS.getAbsoluteFile();
+            long lastModified = new File(runtimeDirectoryJS, "classes").lastModified();
+            synchronized(builtIns) {
+                String[] found = builtIns.get(runtimeDirectoryJS);
+                if(found == null || builtInsModified.get(runtimeDirectoryJS) != lastModified) {
+                    builtIns.put(runtimeDirectoryJS, found = scanBuiltIns(runtimeDirectoryJS, indexDirectory));
+                    builtInsModified.put(runtimeDirectoryJS, lastModified);
+                }
+                return found;
+            }
+        }
+    }
+    
+    public final File root;
+    public final Archive archive;
+    public final Map<String, File> contents = new ConcurrentHashMap();
+    public final List<File> runtimeFiles = Collections.synchronizedList(new ArrayList());
+    public final List<File> services = Collections.synchronizedList(new ArrayList());
+    private final Map<String, Long> directories = new ConcurrentHashMap();
+    private final long created = System.currentTimeMillis();
+    public ClasspathIndex(File root, Archive archive) {
+        this.root = root;
+        this.archive = archive;
+    }
+    
+    /**
+     * @return Whether files may have been added to or removed from the root since it was scanned
+     */
+    public boolean isStale() {
+        if(archive != null)
+            return archive.isStale();
+        
+        for(Map.Entry<String, Long> directory : directories.entrySet()) {
+            long lastModified = new File(root, directory.getKey()).lastModified();
+            if(lastModified != directory.getValue() || lastModified >= created - RACY_WINDOW)
+                return true;
+        }
+        return false;
+    }
+    
+    public static String[] scanBuiltIns(File runtimeDirectoryJS) {
+        return scanBuiltIns(runtimeDirectoryJS, null);
+    }
+    
+    /**
+     * @param runtimeDirectoryJS
+     * @param indexDirectory Where to keep the list between runs, may be null
+     * @return The classes the JS runtime provides itself
+     */
+    public static String[] scanBuiltIns(File runtimeDirectoryJS, File indexDirectory) {
+        File classes = new File(runtimeDirectoryJS, "classes").getAbsoluteFile();
+        long lastModified = classes.lastModified();
+        File indexFile = indexDirectory == null ? null : indexFile(indexDirectory, classes, ".builtins");
+        if(indexFile != null && indexFile.isFile())
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(indexFile))))) {
+                if(in.readInt() == FORMAT_VERSION && in.readUTF().equals(classes.getPath()) && in.readLong() == lastModified) {
+                    String[] detected = new String[in.readInt()];
+                    for(int i=0; i<detected.length; i++)
+                        detected[i] = in.readUTF();
+                    return detected;
+                }
+            } catch (IOException ex) {
+                Trace.log(Trace.WARN, "Discarding unreadable index `" + indexFile + "`: " + ex);
+            }
+        
+        long start = System.currentTimeMillis();
+        List<String> detected = new ArrayList();
+        for(File file : classes.listFiles(Compiler.builtInFileFilter)) {
+            String name = file.getName().replace('_', '/');
+            detected.add(name.substring(0, name.length()-3));
+        }
+        
+        if(indexFile != null && lastModified < start - RACY_WINDOW)
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new AtomicFileOutputStream(indexFile))))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(classes.getPath());
+                out.writeLong(lastModified);
+                out.writeInt(detected.size());
+                for(String builtin : detected)
+                    out.writeUTF(builtin);
+            } catch (IOException ex) {
+                Trace.log(Trace.WARN, "Cannot write index `" + indexFile + "`: " + ex);
+            }
+        return detected.toArray(new String[detected.size()]);
+    }
+    
+    public static ClasspathIndex scan(File root) {
+        return scan(new File[]{root}, null, null)[0];
+    }
+    
+    /**
+     * Scans several classpath roots at once, walking their directories in parallel.
+     * 
+     * @param roots
+     * @param cache Already scanned roots are taken from and new ones added to this, may be null
+     * @param indexDirectory Where to keep directory indexes between runs, may be null
+     * @return An index for each root, in the same order
+     */
+    public static ClasspathIndex[] scan(File[] roots, Cache cache, final File indexDirectory) {
+        final ClasspathIndex[] indexes = new ClasspathIndex[roots.length];
+        final List<RecursiveAction> scans = new ArrayList();
+        for(int i=0; i<roots.length; i++) {
+            if(cache != null && (indexes[i] = cache.peek(roots[i])) != null)
+                continue;
+            
+            final File root = roots[i];
+            final int slot = i;
+            scans.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    indexes[slot] = scanRoot(root, indexDirectory);
+                }
+            });
+        }
+        
+        if(!scans.isEmpty())
+            scanPool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(scans);
+                }
+            });
+        
+        if(cache != null)
+            for(int i=0; i<roots.length; i++)
+                indexes[i] = cache.put(roots[i], indexes[i]);
+        return indexes;
+    }
+    
+    private static ClasspathIndex scanRoot(File root, File indexDirectory) {
+        if(Archive.isArchive(root)) {
+            Archive archive;
+            try {
+                archive = new Archive(root);
+            } catch (IOException ex) {
+                throw new Compiler.CompileError("Cannot read archive `" + root + "`", ex);
+            }
+            
+            ClasspathIndex index = new ClasspathIndex(root, archive);
+            for(Archive.Entry entry : archive.entries())
+                if(!entry.getName().endsWith("~"))
+                    index.add(entry.name, entry);
+            return index;
+        }
+        
+        File indexFile = indexDirectory == null ? null : indexFile(indexDirectory, root.getAbsoluteFile(), ".idx");
+        if(indexFile != null && indexFile.isFile()) {
+            ClasspathIndex index = load(root, indexFile);
+            if(index != null)
+                return index;
+        }
+        
+        long start = System.currentTimeMillis();
+        ClasspathIndex index = new ClasspathIndex(root, null);
+        index.new DirectoryScan(root.toPath(), "", root.lastModified()).invoke();
+        Collections.sort(index.runtimeFiles, pathOrder);
+        Collections.sort(index.services, pathOrder);
+        
+        if(indexFile != null && Collections.max(index.directories.values()) < start - RACY_WINDOW)
+            index.save(indexFile);
+        return index;
+    }
+    
+    private static File indexFile(File indexDirectory, File root, String extension) {
+        try {
+            return new File(indexDirectory, BuildCache.hash(root.getPath().getBytes("UTF-8")) + extension);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Loads a previously saved index, as long as no directory
+     * in it has been modified since.
+     * 
+     * @param root
+     * @param indexFile
+     * @return The index or null if it is out of date
+     */
+    private static ClasspathIndex load(File root, File indexFile) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(indexFile))))) {
+            if(in.readInt() != FORMAT_VERSION || !in.readUTF().equals(root.getAbsolutePath()))
+                return null;
+            
+            ClasspathIndex index = new ClasspathIndex(root, null);
+            int count = in.readInt();
+            for(int i=0; i<count; i++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                if(new File(root, path).lastModified() != lastModified)
+                    return null;
+                index.directories.put(path, lastModified);
+            }
+            
+            count = in.readInt();
+            for(int i=0; i<count; i++) {
+                String path = in.readUTF();
+                index.add(path, new File(root, path));
+            }
+            return index;
+        } catch (IOException ex) {
+            Trace.log(Trace.WARN, "Discarding unreadable index `" + indexFile + "`: " + ex);
+            return null;
+        }
+    }
+    
+    private void save(File indexFile) {
+        Path rootPath = root.toPath();
+        List<String> paths = new ArrayList(contents.keySet());
+        for(File file : runtimeFiles)
+            paths.add(rootPath.relativize(file.toPath()).toString().replace(File.separatorChar, '/'));
+        for(File file : services)
+            paths.add(rootPath.relativize(file.toPath()).toString().replace(File.separatorChar, '/'));
+        Collections.sort(paths);
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new AtomicFileOutputStream(indexFile))))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(root.getAbsolutePath());
+            
+            out.writeInt(directories.size());
+            for(Map.Entry<String, Long> directory : directories.entrySet()) {
+                out.writeUTF(directory.getKey());
+                out.writeLong(directory.getValue());
+            }
+            
+            out.writeInt(paths.size());
+            for(String path : paths)
+                out.writeUTF(path);
+        } catch (IOException ex) {
+            Trace.log(Trace.WARN, "Cannot write index `" + indexFile + "`: " + ex);
+        }
+    }
+    
+    /**
+     * Writes to a temporary file which replaces the target once closed,
+     * so other compilers never read a partially written index.
+     */
+    private static class AtomicFileOutputStream extends FilterOutputStream {
+        private final File target;
+        private final File temporary;
+        public AtomicFileOutputStream(File target) throws IOException {
+            super(null);
+            File parent = target.getParentFile();
+            if(!parent.mkdirs() && !parent.isDirectory())
+                throw new IOException("Cannot create directory `" + parent + "`");
+            
+            this.target = target;
+            temporary = File.createTempFile(target.getName(), ".tmp", parent);
+            out = new FileOutputStream(temporary);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            try {
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                temporary.delete();
+                throw ex;
+            }
+        }
+    }
+    
+    private static boolean isSpecial(String path) {
+        return path.equals("META-INF/runtime.js") || path.equals("runtime.js") ||
+                Compiler.SERVICE_PATTERN.matcher(path).matches();
+    }
+    
+    private void add(String path, File file) {
+        if(path.equals("META-INF/runtime.js") ||
+                path.equals("runtime.js"))
+            runtimeFiles.add(file);
+        else if(Compiler.SERVICE_PATTERN.matcher(path).matches())
+            services.add(file);
+        else
+            contents.put(path, file);
+    }
+    
+    private class DirectoryScan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+        private final String prefix;
+        private final long lastModified;
+        public DirectoryScan(Path directory, String prefix, long lastModified) {
+            this.directory = directory;
+            this.prefix = prefix;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        protected void compute() {
+            directories.put(prefix.isEmpty() ? "" : prefix.substring(0, prefix.length()-1), lastModified);
+            List<DirectoryScan> subdirectories = new ArrayList();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for(Path child : stream) {
+                    String name = child.getFileName().toString();
+                    if(name.endsWith("~") || name.equals(".git") || Files.isHidden(child))
+                        continue;
+                    
+                    String childPath = prefix + name;
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                    if(attributes.isDirectory() && !isSpecial(childPath))
+                        subdirectories.add(new DirectoryScan(child, childPath + '/', attributes.lastModifiedTime().toMillis()));
+                    else
+                        add(childPath, child.toFile());
+                }
+            } catch (IOException ex) {
+                throw new Compiler.CompileError("Cannot scan `" + directory + "`", ex);
+            }
+            
+            invokeAll(subdirectories);
+        }
+    }
+    
+}
@@ -0,0 +1,346 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static net.nexustools.jvm.compiler.Compiler.convertRuntime;
+
+/**
+ * Writes descriptors as positional arrays without whitespace.
+ * 
+ * Every string is written once to a table at the start of the class and
+ * referred to by its index, opcodes and access flags are written as numbers.
+ * The decoder written by {@link #writeDecoder(File)} expands them back into
+ * the descriptors the runtime's class loader expects.
+ *
+ * @author kate
+ */
+public class CompactDescriptorWriter extends DescriptorWriter {
+    public static final String DECODER = "jvm/compact.js";
+    
+    static final int FIELD = 0;
+    static final int METHOD = 1;
+    
+    static final int INSN = 0;
+    static final int VAR = 1;
+    static final int INT = 2;
+    static final int TYPE = 3;
+    static final int FIELD_INSN = 4;
+    static final int METHOD_INSN = 5;
+    static final int JUMP = 6;
+    static final int LABEL = 7;
+    static final int LDC = 8;
+    static final int IINC = 9;
+    static final int TABLE_SWITCH = 10;
+    static final int LOOKUP_SWITCH = 11;
+    static final int MULTI_ARRAY = 12;
+    static final int TRY = 13;
+    static final int DECLARE = 14;
+    static final int PARAMETER = 15;
+    static final int LAMBDA = 16;
+    static final int CONCAT = 17;
+    static final int TYPED_ARRAY = 18;
+    
+    private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    
+    /**
+     * Writes the script that expands compact classes, it has to be
+     * loaded after the runtime and before any compact classes.
+     * 
+     * @param file
+     * @throws IOException 
+     */
+    public static void writeDecoder(File file) throws IOException {
+        ByteArrayOutputStream template = new ByteArrayOutputStream();
+        try (InputStream in = CompactDescriptorWriter.class.getResourceAsStream("compact.js")) {
+            if(in == null)
+                throw new IOException("Missing compact.js resource");
+            Compiler.copy(in, template);
+        }
+        
+        String[] opcodes = new String[256];
+        for(int i=0; i<opcodes.length; i++)
+            opcodes[i] = Compiler.opcodeMap.get(i);
+        
+        List<Object[]> flags = new ArrayList();
+        for(Map.Entry<String, Integer> accessMode : Compiler.accessModes.entrySet())
+            flags.add(new Object[]{accessMode.getValue(), accessMode.getKey()});
+        
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            writer.write(template.toString("UTF-8")
+                    .replace("$OPCODES", gson.toJson(opcodes))
+                    .replace("$FLAGS", gson.toJson(flags)));
+        }
+    }
+    
+    private final Writer out;
+    private final Map<String, Integer> strings = new LinkedHashMap();
+    private final StringBuilder members = new StringBuilder();
+    private final StringBuilder code = new StringBuilder();
+    private final StringBuilder methodProperties = new StringBuilder();
+    private String header;
+    public CompactDescriptorWriter(Writer writer) {
+        out = writer;
+    }
+    
+    private int string(String value) {
+        Integer index = strings.get(value);
+        if(index == null)
+            strings.put(value, index = strings.size());
+        return index;
+    }
+    
+    private int type(String desc) {
+        return string(convertRuntime(desc));
+    }
+    
+    private String strings(String[] values, boolean convert) {
+        StringBuilder builder = new StringBuilder("[");
+        for(int i=0; i<values.length; i++) {
+            if(i > 0)
+                builder.append(',');
+            builder.append(string(convert ? convertRuntime(values[i]) : values[i]));
+        }
+        return builder.append(']').toString();
+    }
+    
+    private static void record(StringBuilder builder, Object... values) {
+        if(builder.length() > 0)
+            builder.append(',');
+        builder.append('[');
+        for(int i=0; i<values.length; i++) {
+            if(i > 0)
+                builder.append(',');
+            builder.append(values[i]);
+        }
+        builder.append(']');
+    }
+    
+    private void code(Object... values) {
+        record(code, values);
+    }
+    
+    @Override
+    public void beginClass(String name, String[] interfaces, String parent) throws IOException {
+        header = string(name) + "," + strings(interfaces, true) + "," + (parent == null ? "null" : String.valueOf(string(convertRuntime(parent))));
+    }
+    
+    @Override
+    public void field(String name, String desc, Object value, int access) throws IOException {
+        if(value instanceof String)
+            record(members, FIELD, string(name), type(desc), access, 0, string((String)value));
+        else if(value instanceof Long)
+            record(members, FIELD, string(name), type(desc), access, 3, value, (int)((Long)value >>> 32), (int)(long)(Long)value);
+        else if(value instanceof Number)
+            record(members, FIELD, string(name), type(desc), access, 1, value);
+        else
+            record(members, FIELD, string(name), type(desc), access);
+    }
+    
+    private Object[] method;
+    
+    @Override
+    public void beginMethod(String name, String desc, String[] exceptions, int access, String nativeImplementation) throws IOException {
+        String thrown = exceptions == null ? "null" : strings(exceptions, true);
+        if(nativeImplementation != null)
+            record(members, METHOD, string(name), type(desc), access, thrown, string(nativeImplementation));
+        else
+            method = new Object[]{METHOD, string(name), type(desc), access, thrown, null};
+    }
+    
+    @Override
+    public void endMethod() throws IOException {
+        method[5] = "[" + code + "]";
+        if(methodProperties.length() > 0) {
+            method = Arrays.copyOf(method, 7);
+            method[6] = "{" + methodProperties + "}";
+            methodProperties.setLength(0);
+        }
+        record(members, method);
+        code.setLength(0);
+        method = null;
+    }
+    
+    @Override
+    public void methodProperty(String key, String source) throws IOException {
+        if(methodProperties.length() > 0)
+            methodProperties.append(',');
+        methodProperties.append(gson.toJson(key));
+        methodProperties.append(':');
+        methodProperties.append(source);
+    }
+    
+    @Override
+    public void tryCatch(String start, String end, String handler, String type) throws IOException {
+        code(TRY, string(start), string(end), string(handler), string(String.valueOf(type)));
+    }
+    
+    @Override
+    public void methodInsn(int opcode, String owner, String name, String desc, boolean itf, String target) throws IOException {
+        if(target != null)
+            code(METHOD_INSN, opcode, type(owner), string(name), type(desc), itf ? 1 : 0, type(target));
+        else
+            code(METHOD_INSN, opcode, type(owner), string(name), type(desc), itf ? 1 : 0);
+    }
+    
+    @Override
+    public void lambda(String name, String desc, String samDesc, String instantiatedDesc, int implOpcode, String implOwner, String implName, String implDesc, boolean implItf, String[] interfaces, String[] bridges) throws IOException {
+        code(LAMBDA, string(name), type(desc), type(samDesc), type(instantiatedDesc), implOpcode, type(implOwner), string(implName), type(implDesc), implItf ? 1 : 0, strings(interfaces, true), strings(bridges, true));
+    }
+    
+    @Override
+    public void concat(String desc, Object[] parts) throws IOException {
+        StringBuilder partList = new StringBuilder("[");
+        for(int i=0; i<parts.length; i++) {
+            if(i > 0)
+                partList.append(',');
+            // Arguments are written as -1 - their index, constants as their string
+            partList.append(parts[i] instanceof String ? string((String)parts[i]) : -1 - (Integer)parts[i]);
+        }
+        partList.append(']');
+        code(CONCAT, type(desc), partList);
+    }
+    
+    @Override
+    public void newTypedArray(String desc, int dims, String typedArray) throws IOException {
+        code(TYPED_ARRAY, string(desc), dims, string(typedArray));
+    }
+    
+    @Override
+    public void tableSwitch(int min, int max, String dflt, String[] labels) throws IOException {
+        code(TABLE_SWITCH, min, max, string(dflt), strings(labels, false));
+    }
+    
+    @Override
+    public void multiANewArray(String desc, int dims) throws IOException {
+        code(MULTI_ARRAY, string(desc), dims);
+    }
+    
+    @Override
+    public void iinc(int var, int increment) throws IOException {
+        code(IINC, var, increment);
+    }
+    
+    @Override
+    public void lookupSwitch(String dflt, int[] keys, String[] labels) throws IOException {
+        StringBuilder keyList = new StringBuilder("[");
+        for(int i=0; i<keys.length; i++) {
+            if(i > 0)
+                keyList.append(',');
+            keyList.append(keys[i]);
+        }
+        keyList.append(']');
+        code(LOOKUP_SWITCH, dflt == null ? "null" : String.valueOf(string(dflt)), keyList, strings(labels, false));
+    }
+    
+    @Override
+    public void localVariable(String name, String desc, String start, String end, int index) throws IOException {
+        code(DECLARE, string(String.valueOf(name)), type(desc), index, string(start), string(end));
+    }
+    
+    @Override
+    public void parameter(String name, int access) throws IOException {
+        code(PARAMETER, string(String.valueOf(name)), access);
+    }
+    
+    @Override
+    public void varInsn(int opcode, int var) throws IOException {
+        code(VAR, opcode, var);
+    }
+    
+    @Override
+    public void typeInsn(int opcode, String type) throws IOException {
+        code(TYPE, opcode, type(type));
+    }
+    
+    @Override
+    public void ldc(Object cst) throws IOException {
+        if(cst instanceof String)
+            code(LDC, 0, string((String)cst));
+        else if(cst instanceof Long)
+            code(LDC, 3, cst, (int)((Long)cst >>> 32), (int)(long)(Long)cst);
+        else if(cst instanceof Number)
+            code(LDC, 1, cst);
+        else
+            code(LDC, 2, type(((org.objectweb.asm.Type)cst).getInternalName()));
+    }
+    
+    @Override
+    public void label(String name) throws IOException {
+        code(LABEL, string(name));
+    }
+    
+    @Override
+    public void jumpInsn(int opcode, String label) throws IOException {
+        code(JUMP, opcode, string(label));
+    }
+    
+    @Override
+    public void insn(int opcode) throws IOException {
+        code(INSN, opcode);
+    }
+    
+    @Override
+    public void intInsn(int opcode, int operand) throws IOException {
+        code(INT, opcode, operand);
+    }
+    
+    @Override
+    public void fieldInsn(int opcode, String owner, String name, String desc) throws IOException {
+        code(FIELD_INSN, opcode, type(owner), string(name), type(desc));
+    }
+    
+    @Override
+    public void endClass(List<String> references) throws IOException {
+        List<String> written = new ArrayList();
+        for(String reference : references) {
+            String ref = convertRuntime(reference);
+            if(!written.contains(ref))
+                written.add(ref);
+        }
+        String referenceList = strings(written.toArray(new String[written.size()]), false);
+        
+        out.write("JVM.defineCompact($currentJVM,");
+        out.write(gson.toJson(strings.keySet()));
+        out.write(',');
+        out.write(header);
+        out.write(",[");
+        out.write(members.toString());
+        out.write("],");
+        out.write(referenceList);
+        out.write(");");
+    }
+    
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+    
+}
@@ -17,7 +17,9 @@
 package net.nexustools.jvm.compiler;
 
 import com.google.gson.Gson;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -29,14 +31,23 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,13 +59,13 @@ import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.optimizer.ClassOptimizer;
 
 /**
  *
  * @author kate
  */
 public class Compiler {
+    public static final int CACHE_VERSION = 1; // Bumped whenever the compiler changes what it writes for a class
     public static final Pattern methodSignature = Pattern.compile("^\\(([^\\)]+)?\\)(.+)$");
     public static final Pattern classSignature = Pattern.compile("L([^;]+);");
     public static final Pattern javaClass = Pattern.compile("^javax?/");
@@ -76,8 +87,8 @@ public class Compiler {
         "java/lang/Class"
     };
     
-    private static final Map<Integer, String> opcodeMap = new HashMap();
-    private static final Map<String, Integer> accessModes = new HashMap();
+    static final Map<Integer, String> opcodeMap = new HashMap();
+    static final Map<String, Integer> accessModes = new HashMap();
     static {
         Class<?> opcode = Opcodes.class;
         for(Field field : opcode.getDeclaredFields()) {
@@ -106,8 +117,9 @@ public class Compiler {
             return pathname.isFile() && pathname.getName().endsWith(".js");
         }
     };
-
+    
     public static class CompileError extends Error {
+        private static final long serialVersionUID = 1L;
         public CompileError(String message) {
             super(message);
         }
@@ -126,6 +138,9 @@ public class Compiler {
     public static interface SignatureConverter {
         public String convert(String input);
     }
+    public static interface LabelConverter {
+        public String convert(Label label);
+    }
     public static interface ProgressListener {
         public void onProgress(float percent);
         public void onMessage(String message);
@@ -147,19 +162,34 @@ public class Compiler {
     
     public final Config config;
     public final String[] BUILT_IN;
-    public final List<String> processed = new ArrayList();
+    public final Set<String> processed = Collections.newSetFromMap(new ConcurrentHashMap());
     public final List<File> runtimeFiles = new ArrayList();
-    public final Map<String, List<String>> referenceMap = new HashMap();
-    public final List<String> compiled = new ArrayList();
-    public final List<String> natives = new ArrayList();
+    public final Map<String, List<String>> referenceMap = new ConcurrentHashMap();
+    public final List<String> compiled = Collections.synchronizedList(new ArrayList());
+    public final List<String> natives = Collections.synchronizedList(new ArrayList());
     public final List<String> extraClasses = new ArrayList();
-    public final List<String> usedbuiltins = new ArrayList();
+    public final List<String> usedbuiltins = Collections.synchronizedList(new ArrayList());
+    private final Map<String, String[]> emitted = new ConcurrentHashMap();
+    private final Set<String> dirty = new LinkedHashSet(); // Changed classes not yet recompiled successfully
+    private final AtomicInteger queuedTasks = new AtomicInteger(), finishedTasks = new AtomicInteger(); // Progress of compileInPool
+    private final Map<String, Map<String, String>> inlinedFrom = new ConcurrentHashMap();
+    private BuildCache buildCache;
+    private Reachability reachability;
     public final Map<String, List<String>> serviceMap = new HashMap();
     public final Map<String, File> classpathContents = new HashMap();
     private ProgressListener progressListener;
     public final File outputFolder;
     public final File[] classpath;
+    private final ClasspathIndex[] indexes;
     public Compiler(Config config, ProgressListener listener) {
+        this(config, listener, null);
+    }
+    /**
+     * @param config
+     * @param listener
+     * @param scanCache Shares scanned classpath directories with other compilers, or null to scan them all
+     */
+    public Compiler(Config config, ProgressListener listener, ClasspathIndex.Cache scanCache) {
         this.config = config;
         setProgressListener(listener);
         
@@ -168,13 +198,14 @@ public class Compiler {
         progressListener.onProgress(-1);
         progressListener.onMessage("Scanning runtime built-in classes");
         
-        List<String> detected = new ArrayList();
-        for(File file : new File(config.runtimeDirectoryJS, "classes").listFiles(builtInFileFilter)) {
-            String name = file.getName().replace('_', '/');
-            detected.add(name.substring(0, name.length()-3));
-        }
-        BUILT_IN = detected.toArray(new String[detected.size()]);
-        System.out.println(Arrays.toString(BUILT_IN));
+        File indexDirectory = null;
+        if(config.persistentIndex)
+            indexDirectory = config.indexDirectory != null ? new File(config.indexDirectory) : new File(System.getProperty("user.home"), ".jvmjs/index");
+        
+        File runtimeDirectoryJS = new File(config.runtimeDirectoryJS);
+        BUILT_IN = scanCache == null ? ClasspathIndex.scanBuiltIns(runtimeDirectoryJS, indexDirectory) : scanCache.builtIns(runtimeDirectoryJS, indexDirectory);
+        if(Trace.enabled(Trace.DEBUG))
+            Trace.log(Trace.DEBUG, Arrays.toString(BUILT_IN));
         
         classpath = new File[2 + config.additionalClassDirectories.length];
         classpath[0] = new File(config.runtimeDirectoryJava);
@@ -183,8 +214,75 @@ public class Compiler {
             classpath[i+2] = new File(config.additionalClassDirectories[i]);
         
         progressListener.onMessage("Scanning classpath contents");
-        for(File path : classpath)
-            scan(path, "");
+        indexes = ClasspathIndex.scan(classpath, scanCache, indexDirectory);
+        for(ClasspathIndex index : indexes) {
+            for(Entry<String, File> entry : index.contents.entrySet())
+                if(!classpathContents.containsKey(entry.getKey()))
+                    classpathContents.put(entry.getKey(), entry.getValue());
+            runtimeFiles.addAll(index.runtimeFiles);
+            for(File service : index.services)
+                scanService(service);
+        }
+        
+        if(config.incremental)
+            buildCache = BuildCache.load(outputFolder, cacheKey());
+    }
+    
+    /**
+     * Describes everything besides the class bytes that changes what gets
+     * written for a class, cached output written with a different key is thrown away.
+     * {@link #CACHE_VERSION} covers changes to the compiler itself.
+     * 
+     * @return 
+     */
+    protected String cacheKey() {
+        Map<String, Object> key = new LinkedHashMap();
+        key.put("version", CACHE_VERSION);
+        key.put("format", config.binaryBundle ? "binary" : config.compactOutput ? "compact" : "pretty");
+        if(config.binaryBundle)
+            key.put("binaryVersion", BinaryDescriptorWriter.VERSION);
+        key.put("treeShake", config.treeShake);
+        key.put("devirtualize", config.devirtualize);
+        key.put("optimize", config.optimize.enabled ? config.optimize : null);
+        key.put("inline", config.inline.enabled ? config.inline : null);
+        key.put("precompute", config.precompute.enabled ? config.precompute : null);
+        key.put("lowerConcat", config.lowerConcat);
+        key.put("typedArrays", config.typedArrays);
+        key.put("aheadOfTime", config.aheadOfTime);
+        key.put("annotateStructure", config.annotateStructure);
+        key.put("annotateTypes", config.annotateTypes);
+        key.put("annotateLongs", config.annotateLongs);
+        return new Gson().toJson(key);
+    }
+    
+    /**
+     * Creates the writer for a class descriptor in the format chosen by the config.
+     * 
+     * @param output
+     * @return
+     * @throws IOException 
+     */
+    protected DescriptorWriter createDescriptorWriter(File output) throws IOException {
+        if(config.binaryBundle)
+            return new BinaryDescriptorWriter(new BufferedOutputStream(new FileOutputStream(output)));
+        if(config.compactOutput)
+            return new CompactDescriptorWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+        return new PrettyDescriptorWriter(new OutputStreamWriter(new FileOutputStream(output)));
+    }
+    
+    protected String descriptorExtension() {
+        return config.binaryBundle ? ".jvmc" : ".js";
+    }
+    
+    public void saveBuildCache() {
+        if(buildCache == null)
+            return;
+        
+        try {
+            buildCache.save(outputFolder);
+        } catch (IOException ex) {
+            throw new CompileError("Cannot write build cache", ex);
+        }
     }
     
     public void createOutputDirectory() {
@@ -192,7 +290,52 @@ public class Compiler {
             throw new CompileError("Cannot create folder `" + outputFolder.getAbsolutePath() + "`");
     }
     
-    public void compile() {
+    /**
+     * Creates the output directory, compiles and writes the libraries and index.
+     * 
+     * @throws IOException 
+     */
+    public void build() throws IOException {
+        try {
+            createOutputDirectory();
+            compile();
+            writeOutput();
+        } finally {
+            releaseArchives();
+        }
+    }
+    
+    public void writeOutput() throws IOException {
+        try {
+            if(config.binaryBundle)
+                writeBundle();
+            
+            List<String> libraries = copyLibraries();
+            if(isSplit())
+                libraries = writeSplitChunks(libraries);
+            else if(config.bundleScripts)
+                libraries = writeChunks(libraries);
+            if(config.writeIndex)
+                writeIndex(libraries);
+        } finally {
+            releaseArchives();
+        }
+    }
+    
+    /**
+     * Unmaps the archives on the classpath so they are not held open
+     * or locked between builds, they are mapped again when next read.
+     */
+    public void releaseArchives() {
+        for(ClasspathIndex index : indexes)
+            if(index.archive != null)
+                index.archive.close();
+    }
+    
+    /**
+     * @return The classes matching mainClass or additionalClasses, followed by the service implementations
+     */
+    public List<String> findRoots() {
         List<Pattern> matchers = new ArrayList();
         if(config.mainClass != null && !config.mainClass.isEmpty())
             matchers.add(buildClassPattern(config.mainClass));
@@ -200,21 +343,34 @@ public class Compiler {
         for(String additional : config.additionalClasses)
             matchers.add(buildClassPattern(additional));
         
-        List<String> classesToCompile = new ArrayList();
-        progressListener.onMessage("Scanning classes to compile");
+        List<String> roots = new ArrayList();
         for(String file : classpathContents.keySet()) {
             for(Pattern pattern : matchers) {
                 if(pattern.matcher(file).matches()) {
-                    classesToCompile.add(file.substring(0, file.length()-6));
+                    roots.add(file.substring(0, file.length()-6));
                     break;
                 }
             }
         }
+        roots.addAll(extraClasses);
+        return roots;
+    }
+    
+    public void compile() {
+        progressListener.onMessage("Scanning classes to compile");
+        List<String> roots = findRoots();
+        if(config.treeShake || config.devirtualize)
+            analyzeReachability(roots);
         
         progressListener.onMessage("Beginning compile...");
-        int total = classesToCompile.size() + extraClasses.size(), complete = 0;
+        if(config.parallel) {
+            compileParallel(roots);
+            saveBuildCache();
+            return;
+        }
         
-        for(String compile : classesToCompile) {
+        int total = roots.size(), complete = 0;
+        for(String compile : roots) {
             progressListener.onProgress((float)complete / (float)total);
             progressListener.onMessage(compile);
             try {
@@ -224,24 +380,561 @@ public class Compiler {
             }
             complete ++;
         }
-        for(String compile : extraClasses) {
-            progressListener.onProgress((float)complete / (float)total);
-            progressListener.onMessage(compile);
+        saveBuildCache();
+    }
+    
+    /**
+     * Works out which methods can be reached from the roots, only those get
+     * translated when tree shaking, and which calls have a single target.
+     * 
+     * @param roots
+     * @return The classes whose reachable methods or call targets changed since the last analysis
+     */
+    public Set<String> analyzeReachability(List<String> roots) {
+        progressListener.onMessage("Analysing reachability");
+        progressListener.onProgress(-1);
+        
+        Reachability previous = reachability;
+        try {
+            reachability = new Reachability(this).analyze(roots);
+        } catch (IOException ex) {
+            throw new CompileError("Error analysing reachability", ex);
+        }
+        
+        Set<String> changed = new LinkedHashSet();
+        if(previous != null)
+            for(String runtimeClassname : emitted.keySet())
+                if(!describe(previous, runtimeClassname).equals(describe(reachability, runtimeClassname)))
+                    changed.add(runtimeClassname);
+        return changed;
+    }
+    
+    /**
+     * @param analysis
+     * @param runtimeClassname
+     * @return What is used of an analysis to write a class
+     */
+    private String describe(Reachability analysis, String runtimeClassname) {
+        String description = config.treeShake ? analysis.describe(runtimeClassname) : "";
+        if(config.devirtualize)
+            description += analysis.describeTargets(runtimeClassname);
+        return description;
+    }
+    
+    /**
+     * Compiles the given classes and everything they reference using a
+     * fork-join pool, each referenced class is handed to the pool as soon
+     * as it is discovered.
+     * 
+     * Once finished the compiled, natives and usedbuiltins lists are rebuilt
+     * in the same order a serial compile would have produced them.
+     * 
+     * @param roots 
+     */
+    public void compileParallel(List<String> roots) {
+        compileInPool(roots);
+        reorder(roots);
+    }
+    
+    private void compileInPool(List<String> classes) {
+        int threads = config.threads > 0 ? config.threads : Runtime.getRuntime().availableProcessors();
+        progressListener.onProgress(-1);
+        
+        queuedTasks.set(classes.size());
+        finishedTasks.set(0);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new CompileTask(null, classes));
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Rebuilds the compiled, natives and usedbuiltins lists in the order a
+     * serial compile of the given roots would have produced them.
+     * 
+     * @param roots 
+     */
+    public void reorder(List<String> roots) {
+        compiled.clear();
+        natives.clear();
+        usedbuiltins.clear();
+        Set<String> visited = new HashSet();
+        for(String root : roots)
+            replay(root, visited);
+    }
+    
+    /**
+     * Brings the classpath index up to date with changed files and
+     * recompiles the classes they belong to, along with any classes
+     * that have become reachable because of them.
+     * 
+     * Archives that were rebuilt are indexed again, and everything
+     * they contained before or contain now is treated as changed.
+     * 
+     * @param changedPaths Paths relative to their classpath directory
+     * @return Whether anything in the output may have changed
+     */
+    public boolean refresh(Collection<String> changedPaths) {
+        changedPaths = new LinkedHashSet(changedPaths);
+        for(int i=0; i<indexes.length; i++) {
+            ClasspathIndex stale = indexes[i];
+            if(stale.archive != null ? !stale.archive.isStale() : !Archive.isArchive(stale.root))
+                continue;
+            
+            indexes[i] = Archive.isArchive(stale.root) ? ClasspathIndex.scan(stale.root) : new ClasspathIndex(stale.root, null);
+            if(stale.archive != null)
+                stale.archive.close();
+            changedPaths.addAll(stale.contents.keySet());
+            changedPaths.addAll(indexes[i].contents.keySet());
+        }
+        
+        Set<String> changedClasses = new LinkedHashSet();
+        boolean changedServices = false, changedRuntime = false;
+        for(String path : changedPaths) {
+            if(path.equals("META-INF/runtime.js") || path.equals("runtime.js")) {
+                changedRuntime = true;
+                continue;
+            }
+            if(SERVICE_PATTERN.matcher(path).matches()) {
+                changedServices = true;
+                continue;
+            }
+            
+            File found = null;
+            for(ClasspathIndex index : indexes) {
+                File file = index.archive != null ? index.archive.get(path) : new File(index.root, path);
+                if(file != null && file.isFile() && !file.isHidden() && !file.getName().endsWith("~")) {
+                    found = file;
+                    break;
+                }
+            }
+            if(found == null)
+                classpathContents.remove(path);
+            else
+                classpathContents.put(path, found);
+            
+            if(path.endsWith(".class"))
+                changedClasses.add(path.substring(0, path.length()-6));
+            else if(path.endsWith(".native.js"))
+                changedClasses.add(path.substring(0, path.length()-10));
+        }
+        
+        if(changedRuntime) {
+            runtimeFiles.clear();
+            for(ClasspathIndex index : indexes) {
+                if(index.archive != null) {
+                    runtimeFiles.addAll(index.runtimeFiles);
+                    continue;
+                }
+                
+                for(String name : new String[]{"META-INF/runtime.js", "runtime.js"}) {
+                    File file = new File(index.root, name);
+                    if(file.isFile())
+                        runtimeFiles.add(file);
+                }
+            }
+        }
+        if(changedServices) {
+            serviceMap.clear();
+            extraClasses.clear();
+            for(ClasspathIndex index : indexes) {
+                if(index.archive != null) {
+                    for(File service : index.services)
+                        scanService(service);
+                    continue;
+                }
+                
+                File[] services = new File(index.root, "META-INF/services").listFiles();
+                if(services != null)
+                    for(File service : services)
+                        if(service.isFile() && !service.isHidden())
+                            scanService(service);
+            }
+        }
+        
+        for(Entry<String, Map<String, String>> entry : inlinedFrom.entrySet()) // Classes that inlined code from a changed class
+            for(String changed : changedClasses.toArray(new String[0]))
+                if(entry.getValue().containsKey(changed)) {
+                    changedClasses.add(entry.getKey());
+                    break;
+                }
+        
+        List<String> roots = findRoots();
+        if(config.treeShake || config.devirtualize)
+            changedClasses.addAll(analyzeReachability(roots));
+        
+        Set<String> toCompile = new LinkedHashSet();
+        for(String changed : dirty) { // Left over from a refresh whose recompile failed
+            processed.remove(changed);
+            processed.remove(resolveClassname(changed));
+            toCompile.add(changed);
+        }
+        for(String changed : changedClasses) {
+            String runtimeClassname = convertRuntime(changed);
+            if(processed.contains(changed) || processed.contains(runtimeClassname)) {
+                processed.remove(changed);
+                processed.remove(runtimeClassname);
+                processed.remove(resolveClassname(runtimeClassname));
+                toCompile.add(runtimeClassname);
+            }
+        }
+        dirty.addAll(toCompile);
+        for(String p : processed) // Retry classes that failed to compile last time
+            if(!isBuiltIn(convertRuntime(p)) && !emitted.containsKey(convertRuntime(p))) {
+                processed.remove(p);
+                toCompile.add(p);
+            }
+        for(String root : roots)
+            if(!processed.contains(root))
+                toCompile.add(root);
+        
+        if(toCompile.isEmpty() && !changedServices && !changedRuntime)
+            return false;
+        
+        progressListener.onMessage("Recompiling " + toCompile.size() + " classes");
+        if(config.parallel)
+            compileInPool(new ArrayList(toCompile));
+        else
+            for(String compile : toCompile) {
+                progressListener.onMessage(compile);
+                try {
+                    compile(compile);
+                } catch (IOException ex) {
+                    throw new CompileError("Error compiling `" + compile + "`", ex);
+                }
+            }
+        dirty.clear();
+        
+        reorder(roots);
+        saveBuildCache();
+        return true;
+    }
+    
+    private class CompileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final String rawClassname;
+        private final List<String> references;
+        private final Trace.RingBuffer trace = Trace.current(); // Of the build that created the task
+        public CompileTask(String rawClassname, List<String> references) {
+            this.rawClassname = rawClassname;
+            this.references = references;
+        }
+        
+        @Override
+        protected void compute() {
+            Trace.RingBuffer previous = Trace.current();
+            Trace.bind(trace);
             try {
-                compile(compile);
-            } catch (IOException ex) {
-                throw new CompileError("Error compiling `" + compile + "`", ex);
+                compileClass();
+            } finally {
+                Trace.bind(previous);
             }
-            complete ++;
         }
         
+        private void compileClass() {
+            List<String> toCompile = references;
+            if(rawClassname != null) {
+                try {
+                    toCompile = translate(rawClassname);
+                } catch (IOException ex) {
+                    throw new CompileError("Error compiling `" + rawClassname + "`", ex);
+                }
+                
+                int finished = finishedTasks.incrementAndGet();
+                if(toCompile != null)
+                    queuedTasks.addAndGet(toCompile.size());
+                ProgressListener listener = progressListener;
+                synchronized(listener) {
+                    listener.onProgress((float)finished / (float)queuedTasks.get());
+                    listener.onMessage(rawClassname);
+                }
+                if(toCompile == null)
+                    return;
+            }
+            
+            List<CompileTask> tasks = new ArrayList();
+            for(String ref : toCompile)
+                tasks.add(new CompileTask(ref, null));
+            invokeAll(tasks);
+        }
+    }
+    
+    private void replay(String rawClassname, Set<String> visited) {
+        if(!visited.add(rawClassname))
+            return;
+        
+        String runtimeClassname = convertRuntime(rawClassname);
+        if(isBuiltIn(runtimeClassname)) {
+            usedbuiltins.add(runtimeClassname);
+            return;
+        }
+        
+        String classname = resolveClassname(rawClassname);
+        if(!classname.equals(rawClassname) && !visited.add(classname))
+            return;
+        
+        String[] paths = emitted.get(runtimeClassname);
+        if(paths == null) // Not translated, it failed or was never found
+            return;
+        if(paths[1] != null)
+            natives.add(paths[1]);
+        compiled.add(paths[0]);
+        
+        List<String> references = referenceMap.get(runtimeClassname);
+        if(references != null)
+            for(String ref : references)
+                replay(ref, visited);
     }
-
+    
+    /**
+     * Joins the binary descriptors of every compiled class into one bundle.
+     * 
+     * @throws IOException 
+     */
+    public void writeBundle() throws IOException {
+        progressListener.onMessage("Writing " + BUNDLE);
+        progressListener.onProgress(-1);
+        
+        BundleWriter bundle = new BundleWriter();
+        for(String runtimeClassname : dependencyOrder())
+            bundle.add(new File(outputFolder, emitted.get(runtimeClassname)[0]));
+        bundle.write(new File(outputFolder, BUNDLE));
+        
+        if(Trace.enabled(Trace.INFO))
+            Trace.log(Trace.INFO, "Bundled " + bundle.size() + " classes");
+    }
+    
+    /**
+     * Concatenates the libraries, classes and natives into size bounded chunks,
+     * the runtime itself is left as it is since it has to load before the
+     * JVM is created. A binary bundle keeps its classes, and loads their
+     * natives once it is registered, so only the libraries are chunked then.
+     * 
+     * @param libraries The libraries returned by {@link #copyLibraries()}
+     * @return The runtime libraries followed by the chunks
+     * @throws IOException 
+     */
+    public List<String> writeChunks(List<String> libraries) throws IOException {
+        progressListener.onMessage("Writing chunks");
+        progressListener.onProgress(-1);
+        
+        ChunkWriter chunkWriter = new ChunkWriter(outputFolder, config.chunkSize * 1024L);
+        List<String> scripts = new ArrayList(), others = new ArrayList();
+        for(String library : libraries)
+            if(library.startsWith("jvm/"))
+                scripts.add(library);
+            else
+                others.add(library);
+        scripts.addAll(chunkWriter.write("libs", others));
+        
+        List<String> classes = config.binaryBundle ? Collections.EMPTY_LIST : classScripts(dependencyOrder());
+        if(!classes.isEmpty())
+            scripts.addAll(chunkWriter.write("classes", classes));
+        
+        if(Trace.enabled(Trace.INFO))
+            Trace.log(Trace.INFO, "Chunked " + others.size() + " libraries and " + classes.size() + " scripts");
+        return Collections.unmodifiableList(scripts);
+    }
+    
+    private boolean isSplit() {
+        return config.splitChunks && !config.binaryBundle;
+    }
+    
+    /**
+     * Like {@link #writeChunks(List)}, but only the classes needed before
+     * main runs are chunked up front. Every class first referenced from
+     * those heads a group with the classes only it pulls in, and each
+     * group is written into chunks the split loader fetches the first
+     * time one of its classes is loaded.
+     * 
+     * @param libraries The libraries returned by {@link #copyLibraries()}
+     * @return The runtime libraries, the split loader, the initial chunks and the manifest
+     * @throws IOException 
+     */
+    public List<String> writeSplitChunks(List<String> libraries) throws IOException {
+        progressListener.onMessage("Writing split chunks");
+        progressListener.onProgress(-1);
+        
+        ChunkWriter chunkWriter = new ChunkWriter(outputFolder, config.chunkSize * 1024L);
+        List<String> scripts = new ArrayList(), others = new ArrayList();
+        for(String library : libraries)
+            if(library.startsWith("jvm/"))
+                scripts.add(library);
+            else
+                others.add(library);
+        ChunkWriter.writeLoader(new File(outputFolder, ChunkWriter.LOADER));
+        scripts.add(ChunkWriter.LOADER);
+        scripts.addAll(chunkWriter.write("libs", others));
+        
+        Set<String> initial = initialClasses();
+        List<String> order = dependencyOrder();
+        List<String> eager = new ArrayList();
+        for(String runtimeClassname : order)
+            if(initial.contains(runtimeClassname))
+                eager.add(runtimeClassname);
+        scripts.addAll(chunkWriter.write("classes", classScripts(eager)));
+        
+        Set<String> visited = new HashSet(initial);
+        List<List<String>> groups = new ArrayList();
+        for(String runtimeClassname : eager)
+            for(String ref : referenceMap.get(runtimeClassname)) {
+                List<String> group = new ArrayList();
+                visitDependencies(ref, visited, group);
+                if(!group.isEmpty())
+                    groups.add(group);
+            }
+        List<String> rest = new ArrayList();
+        for(String runtimeClassname : order)
+            if(visited.add(runtimeClassname))
+                rest.add(runtimeClassname);
+        if(!rest.isEmpty())
+            groups.add(rest);
+        
+        List<List<String>> groupScripts = new ArrayList();
+        for(List<String> group : groups)
+            groupScripts.add(classScripts(group));
+        Map<String, String> chunkOf = new HashMap();
+        List<String> lazy = chunkWriter.write("lazy", groupScripts, chunkOf);
+        
+        Map<String, String> manifest = new LinkedHashMap();
+        for(List<String> group : groups)
+            for(String runtimeClassname : group)
+                manifest.put(runtimeClassname, chunkOf.get(emitted.get(runtimeClassname)[0]));
+        scripts.add(chunkWriter.writeManifest(manifest));
+        
+        if(Trace.enabled(Trace.INFO))
+            Trace.log(Trace.INFO, "Split " + eager.size() + " initial classes from " + manifest.size() + " loaded on demand in " + lazy.size() + " chunks");
+        return Collections.unmodifiableList(scripts);
+    }
+    
+    /**
+     * @param runtimeClassnames
+     * @return The scripts of the classes, followed by their natives
+     */
+    private List<String> classScripts(List<String> runtimeClassnames) {
+        List<String> classes = new ArrayList(), classNatives = new ArrayList();
+        for(String runtimeClassname : runtimeClassnames) {
+            String[] paths = emitted.get(runtimeClassname);
+            if(paths == null)
+                continue;
+            classes.add(paths[0]);
+            if(paths[1] != null)
+                classNatives.add(paths[1]);
+        }
+        classes.addAll(classNatives);
+        return classes;
+    }
+    
+    /**
+     * Finds the classes needed before main runs, the roots along with
+     * their superclasses, interfaces and whatever their static initializers
+     * touch. Anything missed is still fetched when first loaded.
+     * 
+     * @return Runtime classnames
+     * @throws IOException 
+     */
+    public Set<String> initialClasses() throws IOException {
+        Set<String> initial = new LinkedHashSet();
+        List<String> queue = new ArrayList();
+        for(String root : findRoots())
+            queue.add(convertRuntime(root));
+        
+        for(int i=0; i<queue.size(); i++) {
+            String runtimeClassname = queue.get(i);
+            if(emitted.containsKey(runtimeClassname) && initial.add(runtimeClassname))
+                queue.addAll(initializerReferences(runtimeClassname));
+        }
+        return initial;
+    }
+    
+    private Set<String> initializerReferences(String runtimeClassname) throws IOException {
+        ClassReader reader = new ClassReader(readBytes(resolve(resolveClassname(runtimeClassname) + ".class")));
+        final Set<String> references = new LinkedHashSet();
+        if(reader.getSuperName() != null)
+            references.add(convertRuntime(reader.getSuperName()));
+        for(String iface : reader.getInterfaces())
+            references.add(convertRuntime(iface));
+        
+        final MethodVisitor initializerVisitor = new MethodVisitor(Opcodes.ASM4) {
+            private void add(Type type) {
+                while(type.getSort() == Type.ARRAY)
+                    type = type.getElementType();
+                if(type.getSort() == Type.OBJECT)
+                    references.add(convertRuntime(type.getInternalName()));
+            }
+            
+            @Override
+            public void visitTypeInsn(int opcode, String type) {
+                add(Type.getObjectType(type));
+            }
+            
+            @Override
+            public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+                add(Type.getObjectType(owner));
+            }
+            
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                add(Type.getObjectType(owner));
+            }
+            
+            @Override
+            public void visitMultiANewArrayInsn(String desc, int dims) {
+                add(Type.getType(desc));
+            }
+            
+            @Override
+            public void visitLdcInsn(Object cst) {
+                if(cst instanceof Type)
+                    add((Type)cst);
+            }
+        };
+        reader.accept(new ClassVisitor(Opcodes.ASM4) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                return name.equals("<clinit>") ? initializerVisitor : null;
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return references;
+    }
+    
+    /**
+     * Orders the emitted classes so each follows the classes it references,
+     * as far as cycles between them allow.
+     * 
+     * @return Runtime classnames, starting from the dependencies of the first root
+     */
+    public List<String> dependencyOrder() {
+        List<String> order = new ArrayList();
+        Set<String> visited = new HashSet();
+        for(String root : findRoots())
+            visitDependencies(root, visited, order);
+        return order;
+    }
+    
+    private void visitDependencies(String rawClassname, Set<String> visited, List<String> order) {
+        String runtimeClassname = convertRuntime(rawClassname);
+        if(!visited.add(runtimeClassname))
+            return;
+        
+        String[] paths = emitted.get(runtimeClassname);
+        List<String> references = referenceMap.get(runtimeClassname);
+        if(paths == null || references == null)
+            return; // Built-in
+        
+        for(String ref : references)
+            visitDependencies(ref, visited, order);
+        order.add(runtimeClassname);
+    }
+    
     public List<String> copyLibraries() {
         List<String> copied = new ArrayList();
         
         File libDir = new File(config.runtimeDirectoryJS, "lib");
-        System.out.println("Scanning lib directory" + libDir);
+        if(Trace.enabled(Trace.DEBUG))
+            Trace.log(Trace.DEBUG, "Scanning lib directory" + libDir);
         for(File file : libDir.listFiles(new FileFilter() {
                     @Override
                     public boolean accept(File pathname) {
@@ -266,6 +959,23 @@ public class Compiler {
         for(String f : copied)
             filesToCopy.put(f, new File(config.runtimeDirectoryJS, f.substring(4)));
         
+        if(config.compactOutput || config.binaryBundle) {
+            File decoder = new File(outputFolder, CompactDescriptorWriter.DECODER);
+            try {
+                if(!decoder.getParentFile().isDirectory() && !decoder.getParentFile().mkdirs())
+                    throw new CompileError("Cannot create directory `" + decoder.getParentFile().getAbsolutePath() + "`");
+                CompactDescriptorWriter.writeDecoder(decoder);
+                copied.add(CompactDescriptorWriter.DECODER);
+                
+                if(config.binaryBundle) {
+                    BundleWriter.writeLoader(new File(outputFolder, BundleWriter.LOADER));
+                    copied.add(BundleWriter.LOADER);
+                }
+            } catch (IOException ex) {
+                throw new CompileError("Cannot write compact decoder", ex);
+            }
+        }
+        
         if(!serviceMap.isEmpty()) {
             File runtimeDir = new File(config.outputDirectory, "runtime");
             if(!runtimeDir.isDirectory() && !runtimeDir.mkdirs())
@@ -288,16 +998,19 @@ public class Compiler {
                 usedbuiltins.add(builtin);
         }
         
-        System.out.println("Processing used builtins: " + usedbuiltins);
+        if(Trace.enabled(Trace.INFO))
+            Trace.log(Trace.INFO, "Processing used builtins: " + usedbuiltins);
         for(String builtin : usedbuiltins) {
             filesToCopy.put("builtin/" + builtin + ".js", new File(new File(config.runtimeDirectoryJS), "classes/" + builtin.replace("/", "_") + ".js"));
         }
         
         progressListener.onMessage("Copying libraries");
         int total = filesToCopy.size(), complete = 0;
-        System.out.println("Copying: " + filesToCopy);
+        if(Trace.enabled(Trace.DEBUG))
+            Trace.log(Trace.DEBUG, "Copying: " + filesToCopy);
         
-        System.out.println("Copying " + total + " files");
+        if(Trace.enabled(Trace.INFO))
+            Trace.log(Trace.INFO, "Copying " + total + " files");
         
         for(Entry<String, File> copy : filesToCopy.entrySet()) {
             progressListener.onProgress((float)complete / (float)total);
@@ -308,7 +1021,7 @@ public class Compiler {
                 throw new CompileError("Cannot create directory `" + parentDir.getAbsolutePath() + "`");
             
             try {
-                copy(new FileInputStream(copy.getValue()), new FileOutputStream(outFile));
+                copy(copy.getValue(), outFile);
             } catch (IOException ex) {
                 throw new CompileError("Error while copying `" + copy + "`", ex);
             }
@@ -326,7 +1039,7 @@ public class Compiler {
             int i=0;
             for(File runtime : runtimeFiles) {
                 try {
-                    copy(new FileInputStream(runtime), new FileOutputStream(new File(libjvmruntimes, "boot" + i + ".js")));
+                    copy(runtime, new File(libjvmruntimes, "boot" + i + ".js"));
                 } catch (IOException ex) {
                     throw new CompileError("Error while copying `" + runtime + "`", ex);
                 }
@@ -389,36 +1102,37 @@ public class Compiler {
         
         indexHtml.write("  <!-- START CLASSES -->\n");
         List<String> known = new ArrayList();
-        for(String ref : compiled) {
-            boolean builtin = false;
-            for(String build : BUILT_IN)
-                if(ref.equals(build)) {
-                    builtin = true;
-                    break;
-                }
-            if(builtin)
-                continue;
-            
-            //ref = convertRuntime(ref);
-            if(known.contains(ref))
-                continue;
-            known.add(ref);
-            
-            indexHtml.write("    <script type=\"");
-            indexHtml.write(config.scriptType);
-            indexHtml.write("\" src=\"");
-            indexHtml.write(ref);
-            indexHtml.write("\"></script>\n");
-        }
+        if(!config.binaryBundle && !config.bundleScripts && !isSplit()) // Loaded by the bundle or the chunks otherwise
+            for(String ref : compiled) {
+                boolean builtin = false;
+                for(String build : BUILT_IN)
+                    if(ref.equals(build)) {
+                        builtin = true;
+                        break;
+                    }
+                if(builtin)
+                    continue;
+                
+                //ref = convertRuntime(ref);
+                if(known.contains(ref))
+                    continue;
+                known.add(ref);
+                
+                indexHtml.write("    <script type=\"");
+                indexHtml.write(config.scriptType);
+                indexHtml.write("\" src=\"");
+                indexHtml.write(ref);
+                indexHtml.write("\"></script>\n");
+            }
         indexHtml.write("  <!-- END CLASSES -->\n");
-        if(!natives.isEmpty()) {
+        if(!natives.isEmpty() && !config.binaryBundle && !config.bundleScripts && !isSplit()) {
             indexHtml.write("  <!-- START JNI -->\n");
             for(String ref : natives) {
                 //ref = convertRuntime(ref);
                 if(known.contains(ref))
                     continue;
                 known.add(ref);
-
+                
                 indexHtml.write("    <script type=\"");
                 indexHtml.write(config.scriptType);
                 indexHtml.write("\" src=\"");
@@ -428,7 +1142,23 @@ public class Compiler {
             indexHtml.write("  <!-- END JNI -->\n");
         }
         
-        if(config.mainClass != null && !config.mainClass.isEmpty()) {
+        if(config.binaryBundle) {
+            indexHtml.write("  <script type=\"");
+            indexHtml.write(config.scriptType);
+            indexHtml.write("\">JVM.loadBundle($currentJVM, \"");
+            indexHtml.write(BUNDLE);
+            indexHtml.write("\", ");
+            indexHtml.write(new Gson().toJson(new ArrayList(new LinkedHashSet(natives)))); // Run once the classes they attach to can be loaded
+            if(config.mainClass != null && !config.mainClass.isEmpty()) {
+                String mainClass = config.mainClass.replace('.', '/');
+                indexHtml.write(", function(bundle) {\n    bundle.define($currentJVM, \""); // The rest are defined as they are loaded
+                indexHtml.write(convertRuntime(mainClass));
+                indexHtml.write("\");\n    jvm.main(\"");
+                indexHtml.write(mainClass);
+                indexHtml.write("\");\n  }");
+            }
+            indexHtml.write(")</script>\n");
+        } else if(config.mainClass != null && !config.mainClass.isEmpty()) {
             indexHtml.write("  <script type=\"");
             indexHtml.write(config.scriptType);
             indexHtml.write("\">jvm.main(\"");
@@ -466,63 +1196,44 @@ public class Compiler {
         
     }
     
+    public static final String BUNDLE = "classes.jvmb";
+    public static final String LAMBDA_METAFACTORY = "java/lang/invoke/LambdaMetafactory";
+    public static final String STRING_CONCAT_FACTORY = "java/lang/invoke/StringConcatFactory";
+    static final int FLAG_SERIALIZABLE = 1; // LambdaMetafactory.FLAG_SERIALIZABLE
+    static final int FLAG_MARKERS = 2; // LambdaMetafactory.FLAG_MARKERS
+    static final int FLAG_BRIDGES = 4; // LambdaMetafactory.FLAG_BRIDGES
     public static final Pattern SERVICE_PATTERN = Pattern.compile("^META\\-INF/services/(.+)$");
-    private void scan(File directory, String prefix) {
-        if(!prefix.isEmpty())
-            prefix += '/';
-        for(File child : directory.listFiles()) {
-            if(child.isHidden() || child.getName().endsWith("~"))
-                continue;
+    private void scanService(File service) {
+        if(Trace.enabled(Trace.DEBUG))
+            Trace.log(Trace.DEBUG, "Matches Service Pattern: " + service);
+        StringBuilder content = new StringBuilder();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = open(service)) {
+            int read;
+            while((read = in.read(buffer)) > 0)
+                content.append(new String(buffer, 0, read));
             
-            String childPath = prefix + child.getName();
-            if(childPath.equals("META-INF/runtime.js") ||
-                    childPath.equals("runtime.js")) {
-                runtimeFiles.add(child);
-                continue;
-            }
+            String implClass = content.toString().trim();
+            int dash = implClass.indexOf('#');
+            if(dash > -1)
+                implClass = implClass.substring(0, dash).trim();
             
-            Matcher matcher = SERVICE_PATTERN.matcher(childPath);
-            if(matcher.matches()) {
-                System.out.println("Matches Service Pattern: " + childPath);
-                StringBuilder content = new StringBuilder();
-                byte[] buffer = new byte[4096];
-                try {
-                    int read;
-                    InputStream in = new FileInputStream(child);
-                    while((read = in.read(buffer)) > 0)
-                        content.append(new String(buffer, 0, read));
-                    
-                    String implClass = content.toString().trim();
-                    int dash = implClass.indexOf('#');
-                    if(dash > -1)
-                        implClass = implClass.substring(0, dash).trim();
-                    
-                    String name = child.getName();
-                    List<String> implList = serviceMap.get(name);
-                    if(implList == null) {
-                        serviceMap.put(name, implList = new ArrayList());
-                        if(!extraClasses.contains("java/lang/Iterable"))
-                            extraClasses.add("java/lang/Iterable");
-                        if(!extraClasses.contains("java/lang/Iterator"))
-                            extraClasses.add("java/lang/Iterator");
-                    }
-                    
-                    String implClassPath = implClass.replace(".", "/");
-                    implList.add(implClassPath);
-                    extraClasses.add(implClassPath);
-                } catch (IOException ex) {
-                    throw new CompileError("Failed to process service", ex);
-                }
-                continue;
+            String name = service.getName();
+            List<String> implList = serviceMap.get(name);
+            if(implList == null) {
+                serviceMap.put(name, implList = new ArrayList());
+                if(!extraClasses.contains("java/lang/Iterable"))
+                    extraClasses.add("java/lang/Iterable");
+                if(!extraClasses.contains("java/lang/Iterator"))
+                    extraClasses.add("java/lang/Iterator");
             }
             
-            if(child.isDirectory()) {
-                if(child.getName().equals(".git"))
-                    continue;
-                
-                scan(child, childPath);
-            } else if(!classpathContents.containsKey(childPath))
-                classpathContents.put(childPath, child);
+            String implClassPath = implClass.replace(".", "/");
+            implList.add(implClassPath);
+            if(!extraClasses.contains(implClassPath))
+                extraClasses.add(implClassPath);
+        } catch (IOException ex) {
+            throw new CompileError("Failed to process service", ex);
         }
     }
     
@@ -561,7 +1272,60 @@ public class Compiler {
         return classname.replaceAll("net/nexustools/jvm/runtime/", "");
     }
     
-    public static void writeAccess(int access, BufferedWriter bw) throws IOException {
+    /**
+     * @param operand The operand of a NEWARRAY
+     * @return The element type as a descriptor
+     */
+    public static char arrayElementType(int operand) {
+        switch(operand) {
+            case Opcodes.T_BOOLEAN:
+                return 'Z';
+            case Opcodes.T_CHAR:
+                return 'C';
+            case Opcodes.T_FLOAT:
+                return 'F';
+            case Opcodes.T_DOUBLE:
+                return 'D';
+            case Opcodes.T_BYTE:
+                return 'B';
+            case Opcodes.T_SHORT:
+                return 'S';
+            case Opcodes.T_INT:
+                return 'I';
+            default:
+                return 'J';
+        }
+    }
+    
+    /**
+     * Longs have no typed array that holds them exactly, so long arrays
+     * stay plain arrays like reference arrays.
+     * 
+     * @param elementType The element type as a descriptor
+     * @return The typed array backing arrays of the type, or null if there is none
+     */
+    public static String typedArray(char elementType) {
+        switch(elementType) {
+            case 'Z':
+                return "Uint8Array";
+            case 'B':
+                return "Int8Array";
+            case 'C':
+                return "Uint16Array";
+            case 'S':
+                return "Int16Array";
+            case 'I':
+                return "Int32Array";
+            case 'F':
+                return "Float32Array";
+            case 'D':
+                return "Float64Array";
+            default:
+                return null;
+        }
+    }
+    
+    public static void writeAccess(int access, BufferedWriter bw) throws IOException {
         bw.append("\t\t\t\"access\": [\n");
         
         List<String> modes = new ArrayList();
@@ -594,49 +1358,73 @@ public class Compiler {
     public File resolveOutput(File original, String outputPath) {
         int classpathIndex = 0;
         for(File path : classpath) {
-            if(original.getPath().startsWith(path.getPath()))
+            if(original instanceof Archive.Entry) {
+                if(((Archive.Entry)original).archive.file.getAbsoluteFile().equals(path.getAbsoluteFile()))
+                    break;
+            } else if(original.getPath().startsWith(path.getPath()))
                 break;
             classpathIndex ++;
         }
         
         File resolved = new File(outputFolder, "classpath" + classpathIndex + "/" + outputPath);
-        System.out.println("Resolving output: " + outputPath + " to " + resolved);
+        if(Trace.enabled(Trace.DEBUG))
+            Trace.log(Trace.DEBUG, "Resolving output: " + outputPath + " to " + resolved);
         return resolved;
     }
     
+    public boolean isBuiltIn(String runtimeClassname) {
+        for(String builtin : BUILT_IN)
+            if(builtin.equals(runtimeClassname))
+                return true;
+        return false;
+    }
+    
+    public static String resolveClassname(String rawClassname) {
+        if(javaClass.matcher(rawClassname).find())
+            return "net/nexustools/jvm/runtime/" + rawClassname;
+        return rawClassname;
+    }
+    
     public void compile(String rawClassname) throws IOException {
-        if(processed.contains(rawClassname))
+        List<String> references = translate(rawClassname);
+        if(references == null)
             return;
-        processed.add(rawClassname);
-        
-        System.out.println("Resolving class " + rawClassname);
         
-        final String classname, runtimeClassname = convertRuntime(rawClassname);
+        if(Trace.enabled(Trace.DEBUG))
+            Trace.log(Trace.DEBUG, "\tProcessing references: " + references);
+        for(String ref : references)
+            compile(ref);
+    }
+    
+    /**
+     * Translates a single class without following its references.
+     * 
+     * @param rawClassname
+     * @return The references of the class, or null if it was already processed or is built-in
+     * @throws IOException 
+     */
+    List<String> translate(String rawClassname) throws IOException {
+        if(!processed.add(rawClassname))
+            return null;
         
-        for(String builtin : BUILT_IN)
-            if(builtin.equals(runtimeClassname)) {
-                usedbuiltins.add(builtin);
-                return; // Skip
-            }
+        if(Trace.enabled(Trace.DEBUG))
+            Trace.log(Trace.DEBUG, "Resolving class " + rawClassname);
         
-        if(javaClass.matcher(rawClassname).find())
-            classname = "net/nexustools/jvm/runtime/" + rawClassname;
-        else
-            classname = rawClassname;
+        final String classname = resolveClassname(rawClassname), runtimeClassname = convertRuntime(rawClassname);
+        if(isBuiltIn(runtimeClassname)) {
+            usedbuiltins.add(runtimeClassname);
+            return null; // Skip
+        }
         
         File findFile = resolve(classname + ".class");
-        ClassReader reader;
+        byte[] classBytes;
         
         try {
             if(findFile.exists()) {
-                if(!classname.equals(rawClassname)) {
-                    if(processed.contains(classname))
-                        return;
-                    
-                    processed.add(classname);
-                }
+                if(!classname.equals(rawClassname) && !processed.add(classname))
+                    return null;
                 
-                reader = new ClassReader(new FileInputStream(findFile));
+                classBytes = readBytes(findFile);
             } else {
                 throw new CompileError("No implementation found: " + classname);
                 //reader = new ClassReader(rawClassname);
@@ -647,19 +1435,47 @@ public class Compiler {
         }
         
         int offset = outputFolder.getPath().length()+1;
-        File output = resolveOutput(findFile, runtimeClassname + ".js");
+        File output = resolveOutput(findFile, runtimeClassname + descriptorExtension());
         File parentFile = output.getParentFile();
-        if(!parentFile.isDirectory() && !parentFile.mkdirs())
+        if(!parentFile.mkdirs() && !parentFile.isDirectory())
             throw new RuntimeException("Cannot create directory: " + parentFile);
         
+        String outputPath = output.getPath().substring(offset);
+        String nativePath = null, hash = null;
         File nativeFile = resolve(classname + ".native.js");
+        if(buildCache != null) {
+            hash = nativeFile.exists() ? BuildCache.hash(classBytes, readBytes(nativeFile)) : BuildCache.hash(classBytes);
+            if(reachability != null)
+                hash = BuildCache.hash(hash.getBytes("UTF-8"), describe(reachability, runtimeClassname).getBytes("UTF-8"));
+            
+            BuildCache.Entry cached = buildCache.get(runtimeClassname);
+            if(cached != null && hash.equals(cached.hash) && outputPath.equals(cached.output) && output.isFile() &&
+                    (cached.nativeOutput == null || new File(outputFolder, cached.nativeOutput).isFile()) && unchanged(cached.inlined)) {
+                if(Trace.enabled(Trace.DEBUG))
+                    Trace.log(Trace.DEBUG, "\tUnchanged since last build, skipping");
+                if(cached.inlined != null)
+                    inlinedFrom.put(runtimeClassname, cached.inlined);
+                if(cached.nativeOutput != null)
+                    natives.add(cached.nativeOutput);
+                compiled.add(outputPath);
+                emitted.put(runtimeClassname, new String[]{outputPath, cached.nativeOutput});
+                
+                List<String> references = new ArrayList(cached.references);
+                referenceMap.put(runtimeClassname, references);
+                return references;
+            }
+        }
+        
         if(nativeFile.exists()) {
             File outputResolvedPath = new File(parentFile, nativeFile.getName());
-            copy(new FileInputStream(nativeFile), new FileOutputStream(outputResolvedPath));
-            natives.add(outputResolvedPath.getPath().substring(offset));
+            copy(nativeFile, outputResolvedPath);
+            nativePath = outputResolvedPath.getPath().substring(offset);
+            natives.add(nativePath);
         }
-        compiled.add(output.getPath().substring(offset));
+        compiled.add(outputPath);
+        emitted.put(runtimeClassname, new String[]{outputPath, nativePath});
         
+        ClassReader reader = new ClassReader(classBytes);
         final List<String> references = new ArrayList();
         final Referencer referencer = new Referencer() {
             @Override
@@ -673,6 +1489,16 @@ public class Compiler {
                 return true;
             }
         };
+        final Map<Label, String> labels = new HashMap();
+        final LabelConverter labelConverter = new LabelConverter() {
+            @Override
+            public String convert(Label label) {
+                String name = labels.get(label);
+                if(name == null)
+                    labels.put(label, name = "L" + labels.size());
+                return name;
+            }
+        };
         final SignatureConverter converter = new SignatureConverter() {
             @Override
             public String convert(String input) {
@@ -689,597 +1515,346 @@ public class Compiler {
             }
         };
         
-        final OutputStreamWriter oSw = new OutputStreamWriter(new FileOutputStream(output));
-        
-        final BufferedWriter bw = new BufferedWriter(oSw);
-        
+        final DescriptorWriter writer = createDescriptorWriter(output);
+        Inliner inliner = null;
         try {
-            bw.append("(function JVM_");
-            bw.append(runtimeClassname.replaceAll("\\W", "_"));
-            bw.append("($JVM, JVM){\n\t$JVM.ClassLoader.defineClass(\"");
-            bw.append(runtimeClassname);
-            bw.append("\", [");
-
             String[] interfaces = reader.getInterfaces();
             references.addAll(Arrays.asList(interfaces));
-            for(int i=0; i<interfaces.length; i++) {
-                if(i > 0)
-                    bw.append(',');
-                bw.append('\"');
-                bw.append(convertRuntime(interfaces[i]));
-                bw.append('\"');
-            }
-
-            bw.append("], ");
             String parent = reader.getSuperName();
-            if(parent != null && !references.contains(parent)) {
-                bw.append('\"');
-                bw.append(convertRuntime(parent));
-                bw.append('\"');
+            if(parent != null && !references.contains(parent))
                 references.add(parent);
-            } else
-                bw.append("null");
-            bw.append(", [\n");
+            else
+                parent = null;
+            writer.beginClass(runtimeClassname, interfaces, parent);
             
             final List<String> fields = new ArrayList();
             final List<String> methods = new ArrayList();
-            System.out.println("\tVisiting class " + classname);
+            if(Trace.enabled(Trace.DEBUG))
+                Trace.log(Trace.DEBUG, "\tVisiting class " + classname);
             
-            final int[] methodAccess = new int[1];
             final MethodVisitor methodVisitor = new MethodVisitor(Opcodes.ASM4) {
                 
                 @Override
                 public void visitEnd() {
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"end\"\n");
-                        bw.append("\t\t\t\t}\n");
-
-                        bw.append("\t\t\t],\n");
-
-                        writeAccess(methodAccess[0], bw);
-
-                        bw.append("\t\t},\n");
+                        writer.endMethod();
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
-                    System.out.println("\t\t\tvisitTryCatchBlock: " + start + ", " + end + ", " + handler + ", " + type);
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitTryCatchBlock: " + start + ", " + end + ", " + handler + ", " + type);
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"try\",\n");
-
-                        bw.append("\t\t\t\t\t\"start\": \"");
-                        bw.append(start.toString());
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"end\": \"");
-                        bw.append(end.toString());
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"handler\": \"");
-                        bw.append(handler.toString());
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"catch\": \"");
-                        bw.append(type);
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.tryCatch(labelConverter.convert(start), labelConverter.convert(end), labelConverter.convert(handler), type);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-                    System.out.println("\t\t\tvisitMethodInsn: " + nameForOpcode(opcode) + ", " + owner + ", " + name + ", " + desc + ", " + itf);
-
-                    /*if(name.equals("<init>") && desc.equals("()V") && runtimeClassname.equals("java/lang/Object")) {
-                        try {
-                            bw.append("\t\t\t\t{\n");
-                            bw.append("\t\t\t\t\t\"type\": \"initobject\"\n");
-                            bw.append("\t\t\t\t},\n");
-                        } catch (IOException ex) {
-                            throw new RuntimeException(ex);
-                        }
-
-                        return;
-                    }*/
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitMethodInsn: " + nameForOpcode(opcode) + ", " + owner + ", " + name + ", " + desc + ", " + itf);
+                    
+                    converter.convert(owner);
+                    convertMethodSignature(desc, converter);
+                    String target = null;
+                    if(config.devirtualize && reachability != null && (opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKEINTERFACE) && !owner.startsWith("["))
+                        target = reachability.target(convertRuntime(owner), name + desc);
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"method\",\n");
-
-                        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
-                        bw.append(nameForOpcode(opcode));
-                        bw.append(",\n");
-
-                        bw.append("\t\t\t\t\t\"owner\": ");
-                        bw.append(converter.convert(owner));
-                        bw.append(",\n");
-
-                        bw.append("\t\t\t\t\t\"name\": \"");
-                        bw.append(name);
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"signature\": {\n");
-                        bw.append("\t\t\t\t\t\t\"raw\": \"");
-                        bw.append(convertRuntime(desc));
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\t\"return\": ");
-
-                        Matcher matcher = methodSignature.matcher(desc);
-                        if(!matcher.matches())
-                            throw new IllegalArgumentException("Corrupt or invalid method signature: " + desc);
-
-                        bw.append(converter.convert(matcher.group(2)));
-                        bw.append(",\n");
-
-                        String args = matcher.group(1);
-                        if(args != null) {
-                            bw.append("\t\t\t\t\t\t\"args\": [\n");
-
-
-                            String[] argsl = splitArguments(args);
-                            /*matcher = classSignature.matcher(args);
-                            while(matcher.find())
-                                argsl.add(converter.convert(matcher.group(1)));*/
-
-                            for(int i=0; i<argsl.length; i++) {
-                                bw.append("\t\t\t\t\t\t\t");
-                                bw.append(converter.convert(argsl[i]));
-                                if(i < argsl.length-1)
-                                    bw.append(',');
-                                bw.append('\n');
-                            }
-
-                            bw.append("\t\t\t\t\t\t]\n");
-                        } else
-                            bw.append("\t\t\t\t\t\t\"args\": []\n");
-                        bw.append("\t\t\t\t\t},\n");
-
-                        bw.append("\t\t\t\t\t\"interface\": ");
-                        bw.append(itf ? "true" : "false");
-                        bw.append("\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.methodInsn(opcode, owner, name, desc, itf, target);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
-                    System.out.println("\t\t\tvisitTableSwitchInsn: " + min + ", " + max + ", " + dflt + ", " + Arrays.toString(labels));
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitTableSwitchInsn: " + min + ", " + max + ", " + dflt + ", " + Arrays.toString(labels));
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"tableSwitch\",\n");
-
-                        bw.append("\t\t\t\t\t\"min\": \"");
-                        bw.append(String.valueOf(min));
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"max\": \"");
-                        bw.append(String.valueOf(max));
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"default\": \"");
-                        bw.append(dflt.toString());
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"jumps\": [\n");
-                        for(int i=0; i<labels.length; i++) {
-                            bw.append("\t\t\t\t\t\t\"");
-                            bw.append(labels[i].toString());
-                            bw.append('"');
-                            if(i < labels.length-1)
-                                bw.append(',');
-                            bw.append('\n');
-                        }
-                        bw.append("\t\t\t\t\t]\n");
-                        bw.append("\t\t\t\t},\n");
+                        String dfltName = labelConverter.convert(dflt);
+                        writer.tableSwitch(min, max, dfltName, convertLabels(labels, labelConverter));
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitMultiANewArrayInsn(String desc, int dims) {
-                    System.out.println("\t\t\tvisitMultiANewArrayInsn: " + desc + ", " + dims);
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitMultiANewArrayInsn: " + desc + ", " + dims);
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"array\",\n");
-
-                        bw.append("\t\t\t\t\t\"desc\": \"");
-                        bw.append(desc);
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"size\": \"");
-                        bw.append(String.valueOf(dims));
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        String typedArray = typedArray(desc.charAt(desc.length()-1));
+                        if(config.typedArrays && typedArray != null && desc.lastIndexOf('[') == dims-1)
+                            writer.newTypedArray(desc, dims, typedArray); // Every dimension is allocated, down to the primitive arrays
+                        else
+                            writer.multiANewArray(desc, dims);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitIincInsn(int var, int increment) {
-                    System.out.println("\t\t\tvisitIincInsn: " + var + ", " + increment);
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitIincInsn: " + var + ", " + increment);
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"iinc\",\n");
-
-                        bw.append("\t\t\t\t\t\"index\": \"");
-                        bw.append(String.valueOf(var));
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"by\": \"");
-                        bw.append(String.valueOf(increment));
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.iinc(var, increment);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
-                    System.out.println("\t\t\tvisitLookupSwitchInsn: " + dflt + ", " + Arrays.toString(keys) + ", " + Arrays.toString(labels));
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitLookupSwitchInsn: " + dflt + ", " + Arrays.toString(keys) + ", " + Arrays.toString(labels));
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"switch\",\n");
-
-                        if(dflt != null) {
-                            bw.append("\t\t\t\t\t\"default\": \"");
-                            bw.append(dflt.toString());
-                            bw.append("\",\n");
-                        }
-
-                        bw.append("\t\t\t\t\t\"keys\": [\n");
-                        for(int i=0; i<keys.length; i++) {
-                            bw.append("\t\t\t\t\t\t");
-                            bw.append(String.valueOf(keys[i]));
-                            if(i < keys.length-1)
-                                bw.append(',');
-                            bw.append('\n');
-                        }
-                        bw.append("\t\t\t\t\t],\n");
-
-                        bw.append("\t\t\t\t\t\"jumps\": [\n");
-                        for(int i=0; i<labels.length; i++) {
-                            bw.append("\t\t\t\t\t\t\"");
-                            bw.append(labels[i].toString());
-                            bw.append('"');
-                            if(i < labels.length-1)
-                                bw.append(',');
-                            bw.append('\n');
-                        }
-                        bw.append("\t\t\t\t\t]\n");
-                        bw.append("\t\t\t\t},\n");
+                        String dfltName = dflt == null ? null : labelConverter.convert(dflt);
+                        writer.lookupSwitch(dfltName, keys, convertLabels(labels, labelConverter));
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
-                    System.out.println("\t\t\tvisitLocalVariable: " + name + ", " + desc + ", " + start + ", " + end + ", " + index);
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitLocalVariable: " + name + ", " + desc + ", " + start + ", " + end + ", " + index);
+                    
+                    converter.convert(desc);
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"declare\",\n");
-
-                        bw.append("\t\t\t\t\t\"name\": \"");
-                        bw.append(String.valueOf(name));
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"signature\": ");
-                        bw.append(converter.convert(desc));
-                        bw.append(",\n");
-
-                        bw.append("\t\t\t\t\t\"index\": \"");
-                        bw.append(String.valueOf(index));
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"start\": \"");
-                        bw.append(start.toString());
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"end\": \"");
-                        bw.append(end.toString());
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.localVariable(name, desc, labelConverter.convert(start), labelConverter.convert(end), index);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitParameter(String name, int access) {
-                    System.out.println("\t\t\tvisitParameter: " + name + ", " + access);
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitParameter: " + name + ", " + access);
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"arg\",\n");
-
-                        bw.append("\t\t\t\t\t\"name\": \"");
-                        bw.append(name);
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"access\": \"");
-                        bw.append(String.valueOf(access));
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.parameter(name, access);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitVarInsn(int opcode, int var) {
-                    System.out.println("\t\t\tvisitVarInsn: " + nameForOpcode(opcode) + ", " + var);
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitVarInsn: " + nameForOpcode(opcode) + ", " + var);
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"var\",\n");
-
-                        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
-                        bw.append(nameForOpcode(opcode));
-                        bw.append(",\n");
-
-                        bw.append("\t\t\t\t\t\"index\": \"");
-                        bw.append(String.valueOf(var));
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.varInsn(opcode, var);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitTypeInsn(int opcode, String type) {
-                    System.out.println("\t\t\tvisitTypeInsn: " + nameForOpcode(opcode) + ", " + type);
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitTypeInsn: " + nameForOpcode(opcode) + ", " + type);
+                    
+                    converter.convert(type);
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"type\",\n");
-
-                        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
-                        bw.append(nameForOpcode(opcode));
-                        bw.append(",\n");
-
-                        bw.append("\t\t\t\t\t\"signature\": ");
-                        bw.append(converter.convert(type));
-                        bw.append('\n');
-                        bw.append("\t\t\t\t},\n");
+                        writer.typeInsn(opcode, type);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitLdcInsn(Object cst) {
-                    System.out.println("\t\t\tvisitLdcInsn: " + cst);
-                    try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"ldc\",\n");
-
-                        if(cst instanceof String) {
-                            bw.append("\t\t\t\t\t\"stringValue\": ");
-                            bw.append(new Gson().toJson((String)cst));
-                            bw.append("\n");
-                        } else if(cst instanceof Number) {
-                            bw.append("\t\t\t\t\t\"numericValue\": ");
-                            bw.append(String.valueOf((Number)cst));
-                            bw.append("\n");
-                        } else if(cst instanceof org.objectweb.asm.Type) {
-                            org.objectweb.asm.Type type = (org.objectweb.asm.Type)cst;
-                            switch(type.getSort()) {
-                                case Type.OBJECT:
-                                    System.out.println("OBJECT REFERENCE");
-                                    String ref = type.getInternalName();
-                                    bw.append("\t\t\t\t\t\"objectRef\": ");
-                                    bw.append(converter.convert(ref));
-                                    bw.append("\n");
-                                    break;
-                                    
-                                default:
-                                    throw new UnsupportedOperationException("Cannot handle type: " + type.getSort());
-                            }
-                            
-                            
-                            /*System.out.println("asm type: " + type.getInternalName());
-                            System.out.println(type.getReturnType());
-                            System.out.println(type.getDescriptor());
-                            System.out.println(type.getElementType());
-                            System.out.println(type.getDimensions());
-                            System.out.println(type.getClassName());
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitLdcInsn: " + cst);
+                    
+                    if(cst instanceof org.objectweb.asm.Type) {
+                        org.objectweb.asm.Type type = (org.objectweb.asm.Type)cst;
+                        switch(type.getSort()) {
+                            case Type.OBJECT:
+                                if(Trace.enabled(Trace.TRACE))
+                                    Trace.log(Trace.TRACE, "OBJECT REFERENCE");
+                                converter.convert(type.getInternalName());
+                                break;
                             
-                            throw new UnsupportedOperationException("Cannot handle types yet...");*/
-                        } else
-                            throw new UnsupportedOperationException("Unsupported type for LDC: " + cst.getClass().getName());
-
-                        bw.append("\t\t\t\t},\n");
+                            default:
+                                throw new UnsupportedOperationException("Cannot handle type: " + type.getSort());
+                        }
+                    } else if(!(cst instanceof String) && !(cst instanceof Number))
+                        throw new UnsupportedOperationException("Unsupported type for LDC: " + cst.getClass().getName());
+                    
+                    try {
+                        writer.ldc(cst);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
-                    throw new UnsupportedOperationException();
-
-                    /*System.out.println("\t\t\tvisitInvokeDynamicInsn: " + name + ", " + desc + ", " + bsm + ", " + Arrays.toString(bsmArgs));
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitInvokeDynamicInsn: " + name + ", " + desc + ", " + bsm + ", " + Arrays.toString(bsmArgs));
+                    
+                    if(bsm.getOwner().equals(STRING_CONCAT_FACTORY) && (bsm.getName().equals("makeConcat") || bsm.getName().equals("makeConcatWithConstants"))) {
+                        convertMethodSignature(desc, converter);
+                        try {
+                            writer.concat(desc, concatParts(desc, bsmArgs));
+                        } catch (IOException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                        return;
+                    }
+                    if(!bsm.getOwner().equals(LAMBDA_METAFACTORY) || !(bsm.getName().equals("metafactory") || bsm.getName().equals("altMetafactory")))
+                        throw new UnsupportedOperationException("Unsupported bootstrap method: " + bsm.getOwner() + "." + bsm.getName() + bsm.getDesc());
+                    
+                    Handle impl = (Handle)bsmArgs[1];
+                    int implOpcode;
+                    switch(impl.getTag()) {
+                        case Opcodes.H_INVOKESTATIC:
+                            implOpcode = Opcodes.INVOKESTATIC;
+                            break;
+                        case Opcodes.H_INVOKEVIRTUAL:
+                            implOpcode = Opcodes.INVOKEVIRTUAL;
+                            break;
+                        case Opcodes.H_INVOKEINTERFACE:
+                            implOpcode = Opcodes.INVOKEINTERFACE;
+                            break;
+                        case Opcodes.H_INVOKESPECIAL:
+                            implOpcode = Opcodes.INVOKESPECIAL;
+                            break;
+                        case Opcodes.H_NEWINVOKESPECIAL:
+                            implOpcode = Opcodes.NEW;
+                            break;
+                        default:
+                            throw new UnsupportedOperationException("Unsupported lambda implementation: " + impl);
+                    }
+                    
+                    List<String> markers = new ArrayList(), bridges = new ArrayList();
+                    if(bsmArgs.length > 3) { // altMetafactory
+                        int flags = (Integer)bsmArgs[3], next = 4;
+                        if((flags & FLAG_SERIALIZABLE) != 0)
+                            markers.add("java/io/Serializable");
+                        if((flags & FLAG_MARKERS) != 0) {
+                            int count = (Integer)bsmArgs[next++];
+                            for(int i=0; i<count; i++)
+                                markers.add(((Type)bsmArgs[next++]).getInternalName());
+                        }
+                        if((flags & FLAG_BRIDGES) != 0) {
+                            int count = (Integer)bsmArgs[next++];
+                            for(int i=0; i<count; i++)
+                                bridges.add(((Type)bsmArgs[next++]).getDescriptor());
+                        }
+                    }
+                    
+                    convertMethodSignature(desc, converter);
+                    converter.convert(impl.getOwner());
+                    convertMethodSignature(impl.getDesc(), converter);
+                    for(String marker : markers)
+                        converter.convert(marker);
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"invokeDynamic\",\n");
-
-                        bw.append("\t\t\t\t\t\"name\": \"");
-                        bw.append(name);
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"signature\": \"");
-                        bw.append(desc);
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.lambda(name, desc, ((Type)bsmArgs[0]).getDescriptor(), ((Type)bsmArgs[2]).getDescriptor(), implOpcode, impl.getOwner(), impl.getName(), impl.getDesc(), impl.isInterface(),
+                                markers.toArray(new String[markers.size()]), bridges.toArray(new String[bridges.size()]));
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
-                    }*/
+                    }
                 }
-
+                
                 @Override
                 public void visitLabel(Label label) {
-                    System.out.println("\t\t\tvisitLabel: " + label.toString());
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitLabel: " + label.toString());
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"label\",\n");
-
-                        bw.append("\t\t\t\t\t\"name\": \"");
-                        bw.append(label.toString());
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.label(labelConverter.convert(label));
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitJumpInsn(int opcode, Label label) {
-                    System.out.println("\t\t\tvisitJumpInsn: " + nameForOpcode(opcode) + ", " + label.toString());
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitJumpInsn: " + nameForOpcode(opcode) + ", " + label.toString());
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"jump\",\n");
-
-                        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
-                        bw.append(nameForOpcode(opcode));
-                        bw.append(",\n");
-
-                        bw.append("\t\t\t\t\t\"name\": \"");
-                        bw.append(label.toString());
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.jumpInsn(opcode, labelConverter.convert(label));
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitInsn(int opcode) {
-                    System.out.println("\t\t\tvisitInsn: " + nameForOpcode(opcode));
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitInsn: " + nameForOpcode(opcode));
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"insn\",\n");
-
-                        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
-                        bw.append(nameForOpcode(opcode));
-                        bw.append("\n");
-                        bw.append("\t\t\t\t},\n");
+                        writer.insn(opcode);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitIntInsn(int opcode, int operand) {
-                    System.out.println("\t\t\tvisitIntInsn: " + nameForOpcode(opcode) + ", " + operand);
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitIntInsn: " + nameForOpcode(opcode) + ", " + operand);
+                    
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"int\",\n");
-
-                        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
-                        bw.append(nameForOpcode(opcode));
-                        bw.append(",\n");
-
-                        bw.append("\t\t\t\t\t\"operand\": \"");
-                        bw.append(String.valueOf(operand));
-                        bw.append("\"\n");
-                        bw.append("\t\t\t\t},\n");
+                        String typedArray = opcode == Opcodes.NEWARRAY ? typedArray(arrayElementType(operand)) : null;
+                        if(config.typedArrays && typedArray != null)
+                            writer.newTypedArray("[" + arrayElementType(operand), 1, typedArray);
+                        else
+                            writer.intInsn(opcode, operand);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
-
+                
                 @Override
                 public void visitFieldInsn(int opcode, String owner, String name, String desc) {
-                    System.out.println("\t\t\tvisitFieldInsn: " + nameForOpcode(opcode) + ", " + owner + ", " + name + ", " + desc);
-
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\t\tvisitFieldInsn: " + nameForOpcode(opcode) + ", " + owner + ", " + name + ", " + desc);
+                    
+                    converter.convert(owner);
+                    converter.convert(desc);
                     try {
-                        bw.append("\t\t\t\t{\n");
-                        bw.append("\t\t\t\t\t\"type\": \"field\",\n");
-
-                        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
-                        bw.append(nameForOpcode(opcode));
-                        bw.append(",\n");
-
-                        bw.append("\t\t\t\t\t\"class\": ");
-                        bw.append(converter.convert(owner));
-                        bw.append(",\n");
-
-                        bw.append("\t\t\t\t\t\"name\": \"");
-                        bw.append(name);
-                        bw.append("\",\n");
-
-                        bw.append("\t\t\t\t\t\"signature\": ");
-                        bw.append(converter.convert(desc));
-                        bw.append('\n');
-
-                        bw.append("\t\t\t\t},\n");
+                        writer.fieldInsn(opcode, owner, name, desc);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }
             };
             
-            final ClassOptimizer[] classOptimizer = new ClassOptimizer[1];
             ClassVisitor classVisitor = new ClassVisitor(Opcodes.ASM4) {
-
+                
                 @Override
                 public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
-                    System.out.println("\t\tField: " + name + ", " + desc + ", " + value + ", " + access);
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\tField: " + name + ", " + desc + ", " + value + ", " + access);
                     if(!fields.contains(name)) {
                         fields.add(name);
                     }
                     
+                    converter.convert(desc);
+                    if(value != null && !(value instanceof String) && !(value instanceof Number))
+                        throw new RuntimeException("Unhandled initial value: " + value);
+                    
                     try {
-                        bw.append("\t\t{\n");
-                        
-                        bw.append("\t\t\t\"type\": \"field\",\n");
-                        
-                        bw.append("\t\t\t\"name\": \"");
-                        bw.append(name);
-                        bw.append("\",\n");
-                        
-                        bw.append("\t\t\t\"signature\": ");
-                        bw.append(converter.convert(desc));
-                        bw.append(",\n");
-                        
-                        if(value instanceof String) {
-                            bw.append("\t\t\t\"stringValue\": \"");
-                            bw.append(((String)value).replace("\n", "\\n").replace("\"", "\\\""));
-                            bw.append("\",\n");
-                        } else if(value instanceof Number) {
-                            bw.append("\t\t\t\"numericValue\": ");
-                            bw.append(String.valueOf((Number)value));
-                            bw.append(",\n");
-                        } else if(value != null)
-                            throw new RuntimeException("Unhandled initial value: " + value);
-                        
-                        writeAccess(access, bw);
-                        bw.append("\t\t},\n");
+                        writer.field(name, desc, value, access);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
@@ -1289,105 +1864,37 @@ public class Compiler {
                         if(matcher.matches() && !references.contains(matcher.group(1)))
                             references.add(matcher.group(1));
                     //}
-
+                    
                     return super.visitField(access, name, desc, signature, value);
                 }
-
+                
                 @Override
                 public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-                    System.out.println("\t\tMethod: " + name + ", " + desc + ", " + signature + ", " + access + ", " + Arrays.toString(exceptions));
+                    if(Trace.enabled(Trace.TRACE))
+                        Trace.log(Trace.TRACE, "\t\tMethod: " + name + ", " + desc + ", " + signature + ", " + access + ", " + Arrays.toString(exceptions));
+                    if(config.treeShake && reachability != null && !reachability.isReachable(runtimeClassname, name, desc)) {
+                        if(Trace.enabled(Trace.DEBUG))
+                            Trace.log(Trace.DEBUG, "\tDropping unreachable method " + name + desc);
+                        return null;
+                    }
                     if(!methods.contains(name))
                         methods.add(name);
                     
-                    try {
-                        bw.append("\t\t{\n");
-                        
-                        bw.append("\t\t\t\"type\": \"method\",\n");
-                        
-                        bw.append("\t\t\t\"name\": \"");
-                        bw.append(name);
-                        bw.append("\",\n");
-                        
-                        bw.append("\t\t\t\"signature\": \"");
-                        bw.append(convertRuntime(desc));
-                        bw.append("\",\n");
-                        
-                        bw.append("\t\t\t\"sigparts\": {\n");
-                        bw.append("\t\t\t\t\"return\": ");
-
-                        Matcher matcher = methodSignature.matcher(desc);
-                        if(!matcher.matches())
-                            throw new IllegalArgumentException("Corrupt or invalid method signature: " + desc);
-
-                        bw.append(converter.convert(matcher.group(2)));
-                        bw.append(",\n");
-
-                        String args = matcher.group(1);
-                        if(args != null) {
-                            bw.append("\t\t\t\t\"args\": [\n");
-
-
-                            String[] argsl = splitArguments(args);
-                            /*matcher = classSignature.matcher(args);
-                            while(matcher.find())
-                                argsl.add(converter.convert(matcher.group(1)));*/
-
-                            for(int i=0; i<argsl.length; i++) {
-                                bw.append("\t\t\t\t\t");
-                                bw.append(converter.convert(argsl[i]));
-                                if(i < argsl.length-1)
-                                    bw.append(',');
-                                bw.append('\n');
-                            }
-
-                            bw.append("\t\t\t\t]\n");
-                        } else
-                            bw.append("\t\t\t\t\"args\": []\n");
-                        bw.append("\t\t\t},\n");
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
-
-                    if(exceptions != null) {
-                        try {
-                            bw.append("\t\t\t\"exceptions\": [\n");
-                        } catch (IOException ex) {
-                            throw new RuntimeException(ex);
-                        }
-                        
-                        for(int i=0; i<exceptions.length; i++) {
-                            String exception = exceptions[i];
+                    convertMethodSignature(desc, converter);
+                    if(exceptions != null)
+                        for(String exception : exceptions)
                             if(!references.contains(exception))
                                 references.add(exception);
-                            
-                            try {
-                                bw.append("\t\t\t\t\"");
-                                bw.append(convertRuntime(exception));
-                                bw.append('"');
-                                if(i<exceptions.length-1)
-                                    bw.append(',');
-                                bw.append('\n');
-                            } catch (IOException ex) {
-                                throw new RuntimeException(ex);
-                            }
-                        }
-                        
-                        try {
-                            bw.append("\t\t\t],\n");
-                        } catch (IOException ex) {
-                            throw new RuntimeException(ex);
-                        }
-                    }
-
+                    
                     Matcher matcher = methodSignature.matcher(desc);
                     matcher.matches();
                     String args = matcher.group(1);
                     String ret = matcher.group(2);
-
+                    
                     matcher = classSignature.matcher(ret);
                     if(matcher.matches() && !references.contains(matcher.group(1)))
                         references.add(matcher.group(1));
-
+                    
                     if(args != null) {
                         matcher = classSignature.matcher(args);
                         while(matcher.find())
@@ -1395,69 +1902,137 @@ public class Compiler {
                                 references.add(matcher.group(1));
                     }
                     
-                    if((access & Opcodes.ACC_NATIVE) != 0) {
-                        try {
-                            bw.append("\t\t\t\"implementation\": \"");
-                            bw.append(runtimeClassname + ".native.js");
-                            bw.append("\",\n");
-                            
-                            writeAccess(access, bw);
-                            bw.append("\t\t},\n");
-                        } catch (IOException ex) {
-                            throw new RuntimeException(ex);
-                        }
-                        
-                        return super.visitMethod(access, name, desc, signature, exceptions);
-                    }
-                    
+                    boolean isNative = (access & Opcodes.ACC_NATIVE) != 0;
                     try {
-                        bw.append("\t\t\t\"implementation\": [\n");
-                        bw.flush();
+                        writer.beginMethod(name, desc, exceptions, access, isNative ? runtimeClassname + ".native.js" : null);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                     
-                    methodAccess[0] = access;
-                    //return new MethodOptimizer(classOptimizer[0], access, desc, methodVisitor, new Remapper() {});
+                    if(isNative)
+                        return super.visitMethod(access, name, desc, signature, exceptions);
+                    
                     return methodVisitor;
                 }
             };
             
-            //classOptimizer[0] = new ClassOptimizer(classVisitor, new Remapper() {});
-            //reader.accept(classOptimizer[0], 0);
-            reader.accept(classVisitor, 0);
-
-            bw.append("\t\t{\n");
-            bw.append("\t\t\t\"type\": \"references\",\n");
-            bw.append("\t\t\t\"value\": [\n");
+            ClassVisitor visitor = config.annotateTypes ? new TypeAnnotator(classVisitor, writer, labelConverter) : classVisitor;
+            if(config.annotateLongs)
+                visitor = new LongAnnotator(visitor, writer, labelConverter);
+            if(config.annotateStructure)
+                visitor = new StructureAnnotator(visitor, writer, labelConverter);
+            if(config.aheadOfTime)
+                visitor = new JavaScriptGenerator(visitor, writer);
+            if(config.precompute.enabled)
+                visitor = new StaticEvaluator(visitor, writer, labelConverter, config.precompute, config.typedArrays);
+            if(config.lowerConcat)
+                visitor = new ConcatRewriter(visitor);
+            if(config.optimize.enabled)
+                visitor = new Optimizer(visitor, config.optimize);
+            if(config.inline.enabled)
+                visitor = inliner = new Inliner(visitor, this, config.inline);
+            reader.accept(visitor, config.annotateTypes ? ClassReader.EXPAND_FRAMES : 0);
             
-            List<String> written = new ArrayList();
-            for(int i=0; i<references.size(); i++) {
-                String ref = convertRuntime(references.get(i));
-                if(written.contains(ref))
-                    continue;
-                written.add(ref);
-                
-                bw.append("\t\t\t\t\"");
-                bw.append(ref);
-                bw.append('"');
-                if(i < references.size()-1)
-                    bw.append(',');
-                bw.append('\n');
-            }
-            bw.append("\t\t\t]\n");
-            bw.append("\t\t}\n");
-            bw.append("\t]);\n");
-            bw.append("})($currentJVM, JVM);");
+            writer.endClass(references);
         } finally {
-            bw.close();
+            writer.close();
         }
         
-        System.out.println("\tProcessing references: " + references);
-        for(String ref : references)
-            compile(ref);
-        
         referenceMap.put(runtimeClassname, references);
+        if(inliner != null && !inliner.dependencies.isEmpty())
+            inlinedFrom.put(runtimeClassname, inliner.dependencies);
+        else
+            inlinedFrom.remove(runtimeClassname);
+        if(buildCache != null) {
+            BuildCache.Entry entry = new BuildCache.Entry();
+            entry.hash = hash;
+            entry.output = outputPath;
+            entry.nativeOutput = nativePath;
+            entry.references = references;
+            entry.inlined = inlinedFrom.get(runtimeClassname);
+            buildCache.put(runtimeClassname, entry);
+        }
+        return references;
+    }
+    
+    /**
+     * @param inlined The classes read while inlining, with the hash of their bytes at the time
+     * @return Whether all of them still have the same bytes
+     * @throws IOException 
+     */
+    private boolean unchanged(Map<String, String> inlined) throws IOException {
+        if(inlined == null)
+            return true;
+        
+        for(Entry<String, String> dependency : inlined.entrySet()) {
+            File file = resolve(dependency.getKey() + ".class");
+            if(!file.exists() || !BuildCache.hash(readBytes(file)).equals(dependency.getValue()))
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Splits a StringConcatFactory call site into the constant strings and
+     * arguments it joins, in order. makeConcat joins the arguments alone,
+     * makeConcatWithConstants follows its recipe, where \1 stands for the
+     * next argument and \2 for the next constant.
+     * 
+     * @param desc
+     * @param bsmArgs
+     * @return Constant strings and argument indexes as Integers, as {@link DescriptorWriter#concat(String, Object[])} takes them
+     */
+    static Object[] concatParts(String desc, Object[] bsmArgs) {
+        List<Object> parts = new ArrayList();
+        if(bsmArgs.length == 0) {
+            for(int i=0; i<Type.getArgumentTypes(desc).length; i++)
+                parts.add(i);
+            return parts.toArray();
+        }
+        
+        String recipe = (String)bsmArgs[0];
+        StringBuilder text = new StringBuilder();
+        int arg = 0, constant = 1;
+        for(int i=0; i<recipe.length(); i++) {
+            char c = recipe.charAt(i);
+            if(c == '\u0001') {
+                if(text.length() > 0) {
+                    parts.add(text.toString());
+                    text.setLength(0);
+                }
+                parts.add(arg++);
+            } else if(c == '\u0002')
+                text.append(String.valueOf(bsmArgs[constant++]));
+            else
+                text.append(c);
+        }
+        if(text.length() > 0)
+            parts.add(text.toString());
+        return parts.toArray();
+    }
+    
+    /**
+     * Passes the return and argument types of a method descriptor through a converter.
+     * 
+     * @param desc
+     * @param converter 
+     */
+    private static void convertMethodSignature(String desc, SignatureConverter converter) {
+        Matcher matcher = methodSignature.matcher(desc);
+        if(!matcher.matches())
+            throw new IllegalArgumentException("Corrupt or invalid method signature: " + desc);
+        
+        converter.convert(matcher.group(2));
+        if(matcher.group(1) != null)
+            for(String arg : splitArguments(matcher.group(1)))
+                converter.convert(arg);
+    }
+    
+    private static String[] convertLabels(Label[] labels, LabelConverter converter) {
+        String[] names = new String[labels.length];
+        for(int i=0; i<labels.length; i++)
+            names[i] = converter.convert(labels[i]);
+        return names;
     }
     
     private static String repeatArray(int arraydepth) {
@@ -1490,12 +2065,37 @@ public class Compiler {
         return split.toArray(new String[split.size()]);
     }
     
-    public static byte[] buffer = new byte[1024];
     public static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[4096];
         int red;
         
         while((red = in.read(buffer)) > 0)
             out.write(buffer, 0, red);
     }
     
+    public static void copy(File from, File to) throws IOException {
+        try (InputStream in = open(from); OutputStream out = new FileOutputStream(to)) {
+            copy(in, out);
+        }
+    }
+    
+    /**
+     * Opens a file on the classpath, which may be an entry of an archive.
+     * 
+     * @param file
+     * @return
+     * @throws IOException 
+     */
+    public static InputStream open(File file) throws IOException {
+        if(file instanceof Archive.Entry)
+            return new ByteArrayInputStream(((Archive.Entry)file).read());
+        return new FileInputStream(file);
+    }
+    
+    public static byte[] readBytes(File file) throws IOException {
+        if(file instanceof Archive.Entry)
+            return ((Archive.Entry)file).read();
+        return Files.readAllBytes(file.toPath());
+    }
+    
 }
@@ -0,0 +1,362 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+/**
+ * Rewrites the StringBuilder chains older compilers emit for string
+ * concatenation, new, init, appends and toString, into the
+ * StringConcatFactory invokedynamic newer ones emit, which the
+ * compiler writes as a single concat instruction.
+ * 
+ * The values appended are left where they are computed, only the
+ * builder itself is taken off the stack. A chain is only rewritten when
+ * nothing but its own calls touches the builder, nothing jumps into or
+ * out of it and it only appends single values. Constant strings, chars
+ * and ints appended become part of the recipe.
+ * 
+ * @author kate
+ */
+public class ConcatRewriter extends ClassVisitor {
+    private static final Handle MAKE_CONCAT = new Handle(Opcodes.H_INVOKESTATIC, Compiler.STRING_CONCAT_FACTORY, "makeConcatWithConstants",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+    private static final Set<String> APPENDS = new HashSet(Arrays.asList(
+        "Ljava/lang/String;", "Ljava/lang/Object;", "Ljava/lang/CharSequence;", "Ljava/lang/StringBuffer;",
+        "Z", "C", "I", "J", "F", "D"
+    ));
+    
+    public ConcatRewriter(ClassVisitor classVisitor) {
+        super(Opcodes.ASM5, classVisitor);
+    }
+    
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        final MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+        if(methodVisitor == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+            return methodVisitor;
+        
+        return new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions) {
+            @Override
+            public void visitEnd() {
+                int rewritten = rewrite(this);
+                if(rewritten > 0 && Trace.enabled(Trace.DEBUG))
+                    Trace.log(Trace.DEBUG, "\tRewrote " + rewritten + " string builder chains in " + name + desc);
+                accept(methodVisitor);
+            }
+        };
+    }
+    
+    private static boolean isBuilder(String owner) {
+        owner = Compiler.convertRuntime(owner);
+        return owner.equals("java/lang/StringBuilder") || owner.equals("java/lang/StringBuffer");
+    }
+    
+    /**
+     * A chain found in a method, the nodes making up
+     * the builder calls and the values appended.
+     */
+    private static class Chain {
+        final int start, end; // The new and the toString
+        final List<AbstractInsnNode> builder = new ArrayList(); // The new, dup, init and appends
+        final List<List<AbstractInsnNode>> spans = new ArrayList(); // The nodes computing each appended value
+        final List<Type> types = new ArrayList();
+        Chain(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+    
+    /**
+     * Rewrites every chain in a method that can be.
+     *
+     * @param method
+     * @return The number of chains rewritten
+     */
+    public static int rewrite(MethodNode method) {
+        boolean found = false;
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null && !found; node = node.getNext())
+            found = node.getOpcode() == Opcodes.NEW && isBuilder(((TypeInsnNode)node).desc);
+        if(!found)
+            return 0;
+        
+        TypeAnalyzer types = new TypeAnalyzer(method);
+        if(!types.complete)
+            return 0;
+        
+        AbstractInsnNode[] insns = method.instructions.toArray();
+        List<Chain> chains = new ArrayList();
+        for(int i=0; i<insns.length; i++)
+            if(insns[i].getOpcode() == Opcodes.NEW && isBuilder(((TypeInsnNode)insns[i]).desc)) {
+                Chain chain = match(method, insns, types, i);
+                if(chain != null)
+                    chains.add(chain);
+            }
+        
+        Set<AbstractInsnNode> removed = new HashSet();
+        for(Chain chain : chains)
+            apply(method, insns, chain, removed);
+        return chains.size();
+    }
+    
+    private static int next(AbstractInsnNode[] insns, int index) {
+        while(index < insns.length && insns[index].getOpcode() < 0)
+            index ++;
+        return index;
+    }
+    
+    /**
+     * Checks a node leaves the slots holding the builder alone,
+     * by running it with them marked.
+     */
+    private static boolean untouched(AbstractInsnNode node, TypeAnalyzer types, int index, int from, int count) {
+        String stack = types.stacks[index];
+        if(stack == null || stack.length() < from + count)
+            return false;
+        
+        StringBuilder marked = new StringBuilder(stack);
+        for(int i=from; i<from+count; i++)
+            marked.setCharAt(i, 'B');
+        String after = TypeAnalyzer.execute(node, new StringBuilder(types.locals[index]), marked.toString());
+        return after != null && after.length() >= from + count && after.startsWith(marked.substring(0, from + count)) && after.indexOf('B', from + count) < 0;
+    }
+    
+    private static Chain match(MethodNode method, AbstractInsnNode[] insns, TypeAnalyzer types, int start) {
+        String stack = types.stacks[start];
+        if(stack == null)
+            return null;
+        int depth = stack.length();
+        String owner = ((TypeInsnNode)insns[start]).desc;
+        
+        int dup = next(insns, start + 1);
+        if(dup >= insns.length || insns[dup].getOpcode() != Opcodes.DUP)
+            return null;
+        
+        List<AbstractInsnNode> builder = new ArrayList(), span = new ArrayList();
+        builder.add(insns[start]);
+        builder.add(insns[dup]);
+        
+        int index = dup + 1;
+        MethodInsnNode init = null;
+        for(; index < insns.length; index++) {
+            AbstractInsnNode node = insns[index];
+            if(node.getOpcode() < 0) {
+                span.add(node);
+                continue;
+            }
+            if(node.getOpcode() == Opcodes.INVOKESPECIAL && ((MethodInsnNode)node).owner.equals(owner) && ((MethodInsnNode)node).name.equals("<init>") &&
+                    types.stacks[index] != null && types.stacks[index].length() == depth + 2 + (Type.getArgumentsAndReturnSizes(((MethodInsnNode)node).desc) >> 2) - 1) {
+                init = (MethodInsnNode)node;
+                break;
+            }
+            if(!untouched(node, types, index, depth, 2))
+                return null;
+            span.add(node);
+        }
+        if(init == null)
+            return null;
+        
+        Chain chain = null;
+        List<List<AbstractInsnNode>> spans = new ArrayList();
+        List<Type> appended = new ArrayList();
+        if(Compiler.convertRuntime(init.desc).equals("(Ljava/lang/String;)V")) {
+            // new StringBuilder(null) throws, only take strings that cannot be null
+            AbstractInsnNode last = insns[index - 1];
+            while(last.getOpcode() < 0)
+                last = last.getPrevious();
+            boolean nonNull = (last instanceof LdcInsnNode && ((LdcInsnNode)last).cst instanceof String) ||
+                    (last.getOpcode() == Opcodes.INVOKESTATIC && Compiler.convertRuntime(((MethodInsnNode)last).owner).equals("java/lang/String") && ((MethodInsnNode)last).name.equals("valueOf"));
+            if(!nonNull)
+                return null;
+            spans.add(span);
+            appended.add(Type.getType(String.class));
+        } else if(!init.desc.equals("()V"))
+            return null;
+        builder.add(init);
+        
+        span = new ArrayList();
+        for(index++; index < insns.length; index++) {
+            AbstractInsnNode node = insns[index];
+            if(node.getOpcode() < 0) {
+                span.add(node);
+                continue;
+            }
+            
+            String before = types.stacks[index];
+            if(node.getOpcode() == Opcodes.INVOKEVIRTUAL && ((MethodInsnNode)node).owner.equals(owner) && before != null) {
+                MethodInsnNode call = (MethodInsnNode)node;
+                Type[] args = Type.getArgumentTypes(call.desc);
+                int slots = 0;
+                for(Type arg : args)
+                    slots += arg.getSize();
+                
+                if(before.length() == depth + 1 + slots) {
+                    if(call.name.equals("append") && args.length == 1 && APPENDS.contains(Compiler.convertRuntime(args[0].getDescriptor()))) {
+                        builder.add(call);
+                        spans.add(span);
+                        appended.add(args[0]);
+                        span = new ArrayList();
+                        continue;
+                    }
+                    if(call.name.equals("toString") && Compiler.convertRuntime(call.desc).equals("()Ljava/lang/String;"))
+                        chain = new Chain(start, index);
+                    break;
+                }
+            }
+            if(!untouched(node, types, index, depth, 1))
+                return null;
+            span.add(node);
+        }
+        if(chain == null)
+            return null;
+        
+        Set<LabelNode> inside = new HashSet();
+        for(int i=chain.start+1; i<chain.end; i++)
+            if(insns[i] instanceof LabelNode)
+                inside.add((LabelNode)insns[i]);
+        for(int i=0; i<insns.length; i++) {
+            boolean within = i > chain.start && i < chain.end;
+            for(LabelNode target : targets(insns[i]))
+                if(inside.contains(target) != within)
+                    return null;
+        }
+        for(TryCatchBlockNode tryCatch : method.tryCatchBlocks)
+            if(inside.contains(tryCatch.handler))
+                return null;
+        
+        chain.builder.addAll(builder);
+        chain.spans.addAll(spans);
+        chain.types.addAll(appended);
+        return chain;
+    }
+    
+    private static List<LabelNode> targets(AbstractInsnNode node) {
+        List<LabelNode> targets = new ArrayList();
+        if(node instanceof JumpInsnNode)
+            targets.add(((JumpInsnNode)node).label);
+        else if(node instanceof TableSwitchInsnNode) {
+            targets.add(((TableSwitchInsnNode)node).dflt);
+            targets.addAll(((TableSwitchInsnNode)node).labels);
+        } else if(node instanceof LookupSwitchInsnNode) {
+            targets.add(((LookupSwitchInsnNode)node).dflt);
+            targets.addAll(((LookupSwitchInsnNode)node).labels);
+        }
+        return targets;
+    }
+    
+    /**
+     * @return The text of a value appended by a single constant, or null if it is computed
+     */
+    private static String constant(List<AbstractInsnNode> span, Type type) {
+        AbstractInsnNode value = null;
+        for(AbstractInsnNode node : span)
+            if(node.getOpcode() >= 0) {
+                if(value != null)
+                    return null;
+                value = node;
+            }
+        if(value == null)
+            return null;
+        
+        Object cst;
+        int opcode = value.getOpcode();
+        if(value instanceof LdcInsnNode)
+            cst = ((LdcInsnNode)value).cst;
+        else if(opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5)
+            cst = opcode - Opcodes.ICONST_0;
+        else if(opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH)
+            cst = ((IntInsnNode)value).operand;
+        else
+            return null;
+        
+        if(cst instanceof String && type.getSort() == Type.OBJECT)
+            return (String)cst;
+        if(cst instanceof Integer && type.getSort() == Type.CHAR)
+            return String.valueOf((char)(int)(Integer)cst);
+        if(cst instanceof Integer && type.getSort() == Type.INT)
+            return String.valueOf(cst);
+        return null;
+    }
+    
+    /**
+     * @param removed Frames already taken out by an enclosing chain
+     */
+    private static void apply(MethodNode method, AbstractInsnNode[] insns, Chain chain, Set<AbstractInsnNode> removed) {
+        StringBuilder recipe = new StringBuilder(), desc = new StringBuilder("(");
+        int args = 0;
+        List<Object> constants = new ArrayList();
+        for(int i=0; i<chain.spans.size(); i++) {
+            List<AbstractInsnNode> span = chain.spans.get(i);
+            Type type = chain.types.get(i);
+            String text = constant(span, type);
+            if(text == null) {
+                recipe.append('\u0001');
+                desc.append(type.getDescriptor());
+                args ++;
+                continue;
+            }
+            
+            for(AbstractInsnNode node : span)
+                if(node.getOpcode() >= 0)
+                    method.instructions.remove(node);
+            if(text.indexOf('\u0001') > -1 || text.indexOf('\u0002') > -1) {
+                recipe.append('\u0002');
+                constants.add(text);
+            } else
+                recipe.append(text);
+        }
+        desc.append(")Ljava/lang/String;");
+        
+        for(int i=chain.start; i<chain.end; i++)
+            if(insns[i] instanceof FrameNode && removed.add(insns[i])) // They list the builder on the stack
+                method.instructions.remove(insns[i]);
+        for(AbstractInsnNode node : chain.builder)
+            method.instructions.remove(node);
+        
+        AbstractInsnNode concat;
+        if(args == 0 && constants.isEmpty())
+            concat = new LdcInsnNode(recipe.toString());
+        else {
+            constants.add(0, recipe.toString());
+            concat = new InvokeDynamicInsnNode("makeConcatWithConstants", desc.toString(), MAKE_CONCAT, constants.toArray());
+        }
+        method.instructions.set(insns[chain.end], concat);
+    }
+    
+}
@@ -49,6 +49,28 @@ public class Config {
     public String[] additionalClasses;
     
     public boolean proguard;
+    public boolean compactOutput; // Needs the compact.js decoder written alongside the runtime
+    public boolean binaryBundle; // Writes every class into one binary bundle instead of a script each
+    public boolean bundleScripts; // Concatenates libraries, classes and natives into chunks
+    public int chunkSize = 512; // Kilobytes per chunk, 0 writes a single chunk
+    public boolean treeShake; // Only translates methods reachable from the roots
+    public boolean devirtualize; // Marks virtual and interface calls that can only run one implementation with it
+    public final Optimizations optimize = new Optimizations(); // Passes run over each method before it is translated
+    public final Inlining inline = new Inlining(); // Copies small methods that cannot be overridden into their callers
+    public final Precompute precompute = new Precompute(); // Runs static initializers at build time and writes the values they leave
+    public boolean splitChunks; // Chunks classes not needed before main separately and loads them on demand, ignored for binary bundles
+    public boolean lowerConcat; // Turns StringBuilder append chains into a single concat instruction, like the invokedynamic newer compilers emit
+    public boolean typedArrays; // Allocates primitive arrays other than long arrays as typed arrays
+    public boolean aheadOfTime; // Generates JavaScript for simple numeric methods at build time
+    public boolean annotateStructure; // Describes the loops and branches of each method so the runtime can rebuild them
+    public boolean annotateTypes; // Writes the types of the locals and stack at each label
+    public boolean annotateLongs; // Tags methods using longs with the slots holding them and how to represent them
+    
+    public boolean incremental; // Reuses the output of classes that have not changed since the last build
+    public boolean persistentIndex; // Keeps classpath directory listings between runs
+    public String indexDirectory; // Defaults to ~/.jvmjs/index
+    public boolean parallel;
+    public int threads; // 0 uses one per available processor
 
     public void save(File file) throws IOException {
         try (FileWriter writer = new FileWriter(file)) {
@@ -60,4 +82,40 @@ public class Config {
         public String header;
         public String footer;
     }
+    
+    public static class Optimizations {
+        public boolean enabled;
+        public boolean deadCode = true;
+        public boolean unusedLabels = true;
+        public boolean constantFolding = true;
+        public boolean redundantLoadStore = true;
+        
+        @Override
+        public String toString() {
+            return (deadCode ? "d" : "") + (unusedLabels ? "l" : "") + (constantFolding ? "c" : "") + (redundantLoadStore ? "r" : "");
+        }
+    }
+    
+    public static class Inlining {
+        public boolean enabled;
+        public int maxSize = 16; // Instructions in the inlined method
+        public int maxDepth = 3; // Calls inlined within inlined code
+        public int maxCallerSize = 2000; // Nodes a method may grow to before calls stop being inlined into it
+        
+        @Override
+        public String toString() {
+            return maxSize + "," + maxDepth + "," + maxCallerSize;
+        }
+    }
+    
+    public static class Precompute {
+        public boolean enabled;
+        public int maxSteps = 1000000; // Instructions run before giving up on an initializer
+        public int maxElements = 65536; // Array elements an initializer may create
+        
+        @Override
+        public String toString() {
+            return maxSteps + "," + maxElements;
+        }
+    }
 }
@@ -0,0 +1,473 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+/**
+ * The control flow graph of a method, split into basic blocks with
+ * their dominators, natural loops and the merge point of each branch.
+ *
+ * @author kate
+ */
+public class ControlFlow {
+    
+    public static class Block {
+        public int index; // Reverse postorder, the entry is 0
+        public AbstractInsnNode first, last;
+        public LabelNode label;
+        public final List<Block> successors = new ArrayList(); // In the order the instruction names them
+        public final List<Block> handlers = new ArrayList();
+        public final List<Block> predecessors = new ArrayList();
+        public Block dominator, postDominator;
+        public Set<Block> loop; // Blocks of the loop this block heads
+        
+        private int visiting = -1;
+        private final List<Block> edges = new ArrayList();
+        
+        /**
+         * @return The last real instruction, or null if the block only holds labels and frames
+         */
+        public AbstractInsnNode terminator() {
+            for(AbstractInsnNode node = last; node != null; node = node.getPrevious()) {
+                if(node.getOpcode() >= 0)
+                    return node;
+                if(node == first)
+                    break;
+            }
+            return null;
+        }
+        
+        public boolean isLoopHeader() {
+            return loop != null;
+        }
+        
+        /**
+         * @return Whether more than one forward edge leads here
+         */
+        public boolean isMerge() {
+            int forward = 0;
+            for(Block predecessor : predecessors)
+                if(predecessor.index < index)
+                    forward ++;
+            return forward > 1;
+        }
+    }
+    
+    public final List<Block> blocks = new ArrayList(); // Reachable blocks in reverse postorder
+    public boolean reducible = true;
+    private final MethodNode method;
+    private final Map<AbstractInsnNode, Block> starting = new HashMap();
+    public ControlFlow(MethodNode method) {
+        this.method = method;
+        if(method.instructions.size() == 0)
+            return;
+        
+        Set<AbstractInsnNode> leaders = new HashSet();
+        leaders.add(method.instructions.getFirst());
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext()) {
+            int opcode = node.getOpcode();
+            if(opcode == Opcodes.JSR || opcode == Opcodes.RET) {
+                reducible = false; // Subroutines are left to the runtime
+                return;
+            }
+            
+            if(node instanceof JumpInsnNode)
+                leaders.add(leader(((JumpInsnNode)node).label));
+            else if(node instanceof TableSwitchInsnNode) {
+                leaders.add(leader(((TableSwitchInsnNode)node).dflt));
+                for(LabelNode label : ((TableSwitchInsnNode)node).labels)
+                    leaders.add(leader(label));
+            } else if(node instanceof LookupSwitchInsnNode) {
+                leaders.add(leader(((LookupSwitchInsnNode)node).dflt));
+                for(LabelNode label : ((LookupSwitchInsnNode)node).labels)
+                    leaders.add(leader(label));
+            } else if(!endsBlock(opcode))
+                continue;
+            
+            if(node.getNext() != null)
+                leaders.add(leader(node.getNext()));
+        }
+        for(TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+            leaders.add(leader(tryCatch.start));
+            leaders.add(leader(tryCatch.end));
+            leaders.add(leader(tryCatch.handler));
+        }
+        
+        List<Block> all = new ArrayList();
+        boolean leading = true;
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext()) {
+            if(leaders.contains(node)) {
+                Block block = new Block();
+                block.first = node;
+                starting.put(node, block);
+                all.add(block);
+                leading = true;
+            }
+            
+            Block block = all.get(all.size()-1);
+            block.last = node;
+            if(node.getOpcode() >= 0)
+                leading = false;
+            else if(leading && block.label == null && node instanceof LabelNode)
+                block.label = (LabelNode)node;
+        }
+        
+        for(int i=0; i<all.size(); i++) {
+            Block block = all.get(i);
+            Block next = i+1 < all.size() ? all.get(i+1) : null;
+            AbstractInsnNode terminator = block.terminator();
+            int opcode = terminator == null ? -1 : terminator.getOpcode();
+            if(terminator instanceof JumpInsnNode) {
+                add(block.successors, starting.get(leader(((JumpInsnNode)terminator).label)));
+                if(opcode != Opcodes.GOTO)
+                    add(block.successors, next);
+            } else if(terminator instanceof TableSwitchInsnNode) {
+                add(block.successors, starting.get(leader(((TableSwitchInsnNode)terminator).dflt)));
+                for(LabelNode label : ((TableSwitchInsnNode)terminator).labels)
+                    add(block.successors, starting.get(leader(label)));
+            } else if(terminator instanceof LookupSwitchInsnNode) {
+                add(block.successors, starting.get(leader(((LookupSwitchInsnNode)terminator).dflt)));
+                for(LabelNode label : ((LookupSwitchInsnNode)terminator).labels)
+                    add(block.successors, starting.get(leader(label)));
+            } else if(!endsBlock(opcode))
+                add(block.successors, next);
+        }
+        for(TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+            int start = method.instructions.indexOf(leader(tryCatch.start));
+            int end = method.instructions.indexOf(leader(tryCatch.end));
+            Block handler = starting.get(leader(tryCatch.handler));
+            for(Block block : all) {
+                int index = method.instructions.indexOf(block.first);
+                if(index >= start && index < end)
+                    add(block.handlers, handler);
+            }
+        }
+        for(Block block : all) {
+            block.edges.addAll(block.successors);
+            for(Block handler : block.handlers)
+                add(block.edges, handler);
+        }
+        
+        // Reverse postorder of everything reachable from the entry
+        LinkedList<Block> stack = new LinkedList();
+        all.get(0).visiting = 0;
+        stack.push(all.get(0));
+        while(!stack.isEmpty()) {
+            Block block = stack.peek();
+            if(block.visiting < block.edges.size()) {
+                Block next = block.edges.get(block.visiting++);
+                if(next.visiting < 0) {
+                    next.visiting = 0;
+                    stack.push(next);
+                }
+            } else {
+                stack.pop();
+                blocks.add(block);
+            }
+        }
+        Collections.reverse(blocks);
+        for(int i=0; i<blocks.size(); i++)
+            blocks.get(i).index = i;
+        for(Block block : blocks)
+            for(Block next : block.edges)
+                next.predecessors.add(block);
+        
+        int count = blocks.size();
+        int[][] successors = new int[count][];
+        int[][] predecessors = new int[count][];
+        for(Block block : blocks) {
+            successors[block.index] = indices(block.edges);
+            predecessors[block.index] = indices(block.predecessors);
+        }
+        int[] dominators = dominators(successors, predecessors, 0);
+        for(Block block : blocks)
+            if(block.index > 0)
+                block.dominator = blocks.get(dominators[block.index]);
+        
+        // Post dominators ignore exceptions, anything leaving the method flows to a virtual exit
+        int[][] reverseSuccessors = new int[count+1][];
+        int[][] reversePredecessors = new int[count+1][];
+        List<Block> exits = new ArrayList();
+        for(Block block : blocks) {
+            List<Block> normalPredecessors = new ArrayList();
+            for(Block predecessor : block.predecessors)
+                if(predecessor.successors.contains(block))
+                    normalPredecessors.add(predecessor);
+            reverseSuccessors[block.index] = indices(normalPredecessors);
+            reversePredecessors[block.index] = block.successors.isEmpty() ? new int[]{count} : indices(block.successors);
+            if(block.successors.isEmpty())
+                exits.add(block);
+        }
+        reverseSuccessors[count] = indices(exits);
+        reversePredecessors[count] = new int[0];
+        int[] postDominators = dominators(reverseSuccessors, reversePredecessors, count);
+        for(Block block : blocks)
+            if(postDominators[block.index] >= 0 && postDominators[block.index] < count)
+                block.postDominator = blocks.get(postDominators[block.index]);
+        
+        // Natural loops, a retreating edge to anything but a dominator makes the graph irreducible
+        for(Block block : blocks)
+            for(Block header : block.edges) {
+                if(header.index > block.index)
+                    continue;
+                
+                if(!dominates(header, block)) {
+                    reducible = false;
+                    continue;
+                }
+                
+                if(header.loop == null) {
+                    header.loop = new LinkedHashSet();
+                    header.loop.add(header);
+                }
+                LinkedList<Block> queue = new LinkedList();
+                if(header.loop.add(block))
+                    queue.add(block);
+                while(!queue.isEmpty())
+                    for(Block predecessor : queue.removeFirst().predecessors)
+                        if(header.loop.add(predecessor))
+                            queue.add(predecessor);
+            }
+    }
+    
+    private static boolean endsBlock(int opcode) {
+        return (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW;
+    }
+    
+    /**
+     * Labels, line numbers and frames do nothing, so a block
+     * starts at the first of them before an instruction.
+     */
+    private static AbstractInsnNode leader(AbstractInsnNode node) {
+        while(node.getPrevious() != null && node.getPrevious().getOpcode() < 0)
+            node = node.getPrevious();
+        return node;
+    }
+    
+    private static void add(List<Block> list, Block block) {
+        if(block != null && !list.contains(block))
+            list.add(block);
+    }
+    
+    private static int[] indices(List<Block> list) {
+        int[] indices = new int[list.size()];
+        for(int i=0; i<indices.length; i++)
+            indices[i] = list.get(i).index;
+        return indices;
+    }
+    
+    /**
+     * Finds the immediate dominator of each node using the iterative
+     * algorithm from Cooper, Harvey and Kennedy.
+     *
+     * @return The immediate dominator by node, the entry dominates itself and unreachable nodes are -1
+     */
+    private static int[] dominators(int[][] successors, int[][] predecessors, int entry) {
+        int count = successors.length;
+        int[] order = new int[count];
+        Arrays.fill(order, -1);
+        List<Integer> postorder = new ArrayList();
+        int[] visiting = new int[count];
+        LinkedList<Integer> stack = new LinkedList();
+        order[entry] = 0;
+        stack.push(entry);
+        while(!stack.isEmpty()) {
+            int node = stack.peek();
+            if(visiting[node] < successors[node].length) {
+                int next = successors[node][visiting[node]++];
+                if(order[next] < 0) {
+                    order[next] = 0;
+                    stack.push(next);
+                }
+            } else
+                postorder.add(stack.pop());
+        }
+        Collections.reverse(postorder);
+        for(int i=0; i<postorder.size(); i++)
+            order[postorder.get(i)] = i;
+        
+        int[] dominators = new int[count];
+        Arrays.fill(dominators, -1);
+        dominators[entry] = entry;
+        boolean changed;
+        do {
+            changed = false;
+            for(int node : postorder) {
+                if(node == entry)
+                    continue;
+                
+                int dominator = -1;
+                for(int predecessor : predecessors[node]) {
+                    if(dominators[predecessor] < 0)
+                        continue;
+                    
+                    if(dominator < 0)
+                        dominator = predecessor;
+                    else {
+                        int a = predecessor, b = dominator;
+                        while(a != b) {
+                            while(order[a] > order[b])
+                                a = dominators[a];
+                            while(order[b] > order[a])
+                                b = dominators[b];
+                        }
+                        dominator = a;
+                    }
+                }
+                if(dominator != dominators[node]) {
+                    dominators[node] = dominator;
+                    changed = true;
+                }
+            }
+        } while(changed);
+        return dominators;
+    }
+    
+    /**
+     * @param node
+     * @return The block starting at a node, or null if none does
+     */
+    public Block blockAt(AbstractInsnNode node) {
+        return starting.get(leader(node));
+    }
+    
+    public boolean dominates(Block a, Block b) {
+        while(b != null) {
+            if(a == b)
+                return true;
+            b = b.dominator;
+        }
+        return false;
+    }
+    
+    /**
+     * @param block
+     * @return The blocks immediately dominated by a block which more than one forward edge leads to, latest first
+     */
+    public List<Block> mergesWithin(Block block) {
+        List<Block> merges = new ArrayList();
+        for(int i=blocks.size()-1; i>block.index; i--) {
+            Block other = blocks.get(i);
+            if(other.dominator == block && other.isMerge())
+                merges.add(other);
+        }
+        return merges;
+    }
+    
+    /**
+     * Gives every block a label, inserting one where a block
+     * starts without one so the structure can refer to it.
+     */
+    public void labelBlocks() {
+        for(Block block : blocks)
+            if(block.label == null) {
+                block.label = new LabelNode();
+                method.instructions.insertBefore(block.first, block.label);
+                block.first = block.label;
+                starting.put(block.label, block);
+            }
+    }
+    
+    /**
+     * Describes the structure as JSON, with the blocks, the loops and
+     * the branches along with where their paths meet again.
+     *
+     * @param labelConverter
+     * @return
+     */
+    public String describe(Compiler.LabelConverter labelConverter) {
+        labelBlocks();
+        
+        Map<String, Object> structure = new LinkedHashMap();
+        structure.put("reducible", reducible);
+        Map<String, List<String>> successors = new LinkedHashMap();
+        Map<String, List<String>> handlers = new LinkedHashMap();
+        List<Map<String, Object>> loops = new ArrayList();
+        List<Map<String, Object>> branches = new ArrayList();
+        for(Block block : blocks) {
+            String name = labelConverter.convert(block.label.getLabel());
+            successors.put(name, names(block.successors, labelConverter));
+            if(!block.handlers.isEmpty())
+                handlers.put(name, names(block.handlers, labelConverter));
+            
+            if(block.isLoopHeader()) {
+                List<Block> body = new ArrayList(block.loop);
+                Collections.sort(body, new Comparator<Block>() {
+                    @Override
+                    public int compare(Block a, Block b) {
+                        return a.index - b.index;
+                    }
+                });
+                List<Block> exits = new ArrayList();
+                for(Block member : body)
+                    for(Block next : member.successors)
+                        if(!block.loop.contains(next))
+                            add(exits, next);
+                
+                Map<String, Object> loop = new LinkedHashMap();
+                loop.put("header", name);
+                loop.put("blocks", names(body, labelConverter));
+                loop.put("exits", names(exits, labelConverter));
+                loops.add(loop);
+            }
+            
+            if(block.successors.size() > 1) {
+                Map<String, Object> branch = new LinkedHashMap();
+                branch.put("block", name);
+                branch.put("targets", names(block.successors, labelConverter));
+                if(block.postDominator != null)
+                    branch.put("merge", labelConverter.convert(block.postDominator.label.getLabel()));
+                branches.add(branch);
+            }
+        }
+        structure.put("blocks", successors);
+        if(!handlers.isEmpty())
+            structure.put("handlers", handlers);
+        structure.put("loops", loops);
+        structure.put("branches", branches);
+        return new Gson().toJson(structure);
+    }
+    
+    private static List<String> names(List<Block> list, Compiler.LabelConverter labelConverter) {
+        List<String> names = new ArrayList();
+        for(Block block : list)
+            names.add(labelConverter.convert(block.label.getLabel()));
+        return names;
+    }
+    
+}
@@ -0,0 +1,366 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps compilers and the classpath scans they share
+ * resident between builds and accepts
+ * configs to build over a loopback socket.
+ *
+ * Clients send a config as a single line of JSON and
+ * receive lines of PROGRESS, MESSAGE and finally
+ * either SUCCESS with the time taken or ERROR.
+ * 
+ * Any local user can connect, so the config has to be preceded by
+ * a TOKEN line with the token the daemon writes to a file only its
+ * owner can read, and every path in it has to be absolute since the
+ * daemon does not share the working directory of its clients.
+ *
+ * @author kate
+ */
+public class Daemon implements Closeable {
+    public static final int DEFAULT_PORT = 4782;
+    public static final int MAX_SESSIONS = 16;
+    
+    /**
+     * @param port
+     * @return The file the daemon listening on a port keeps its token in
+     */
+    public static File tokenFile(int port) {
+        return new File(System.getProperty("user.home"), ".jvmjs/daemon-" + port + ".token");
+    }
+    
+    private static class Session {
+        public final Compiler compiler;
+        public final Watcher watcher;
+        public Session(Compiler compiler, Watcher watcher) {
+            this.compiler = compiler;
+            this.watcher = watcher;
+        }
+    }
+    
+    private final ServerSocket serverSocket;
+    private final File tokenFile;
+    private final byte[] token;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ClasspathIndex.Cache scanCache = new ClasspathIndex.Cache();
+    private final Map<File, Object> outputLocks = new HashMap();
+    private final Map<String, Session> sessions = new LinkedHashMap<String, Session>(MAX_SESSIONS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+            if(size() <= MAX_SESSIONS)
+                return false;
+            
+            close(eldest.getValue());
+            return true;
+        }
+    };
+    public Daemon(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for(byte b : random)
+            hex.append(String.format("%02x", b));
+        token = hex.toString().getBytes("UTF-8");
+        
+        tokenFile = tokenFile(serverSocket.getLocalPort());
+        try {
+            writeToken(tokenFile, token);
+            tokenFile.deleteOnExit();
+        } catch(IOException ex) {
+            serverSocket.close();
+            throw ex;
+        }
+    }
+    
+    private static void writeToken(File file, byte[] token) throws IOException {
+        File parent = file.getParentFile();
+        if(!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Cannot create directory `" + parent.getAbsolutePath() + "`");
+        
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch(UnsupportedOperationException ex) { // Not a POSIX file system
+            Files.createFile(path);
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+        Files.write(path, token);
+    }
+    
+    private static void checkAbsolute(String path) {
+        if(path != null && !new File(path).isAbsolute())
+            throw new Compiler.CompileError("Relative path `" + path + "`, clients have to send absolute paths");
+    }
+    
+    /**
+     * Accepts clients until closed.
+     *
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        Trace.log(Trace.INFO, "Listening on " + serverSocket.getLocalSocketAddress());
+        while(!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch(SocketException ex) {
+                if(serverSocket.isClosed())
+                    break;
+                throw ex;
+            }
+            
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+    
+    private void handle(Socket socket) {
+        try (Socket client = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+                final PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), "UTF-8"), true)) {
+            long start = System.currentTimeMillis();
+            Trace.begin();
+            try {
+                String request = in.readLine();
+                if(request == null)
+                    return;
+                if(!request.startsWith("TOKEN ") || !MessageDigest.isEqual(token, request.substring(6).getBytes("UTF-8"))) {
+                    out.println("ERROR Missing or wrong token");
+                    return;
+                }
+                
+                request = in.readLine();
+                if(request == null)
+                    return;
+                
+                Config config = new Gson().fromJson(request, Config.class);
+                if(config == null)
+                    throw new Compiler.CompileError("Empty config");
+                checkAbsolute(config.runtimeDirectoryJava);
+                checkAbsolute(config.runtimeDirectoryJS);
+                checkAbsolute(config.projectDirectory);
+                checkAbsolute(config.outputDirectory);
+                checkAbsolute(config.indexDirectory);
+                if(config.additionalClassDirectories != null)
+                    for(String directory : config.additionalClassDirectories)
+                        checkAbsolute(directory);
+                
+                build(config, new Compiler.ProgressListener() {
+                    @Override
+                    public void onProgress(float percent) {
+                        out.println("PROGRESS " + percent);
+                    }
+                    @Override
+                    public void onMessage(String message) {
+                        out.println("MESSAGE " + message.replace('\n', ' '));
+                    }
+                });
+                out.println("SUCCESS " + (System.currentTimeMillis() - start));
+            } catch(Throwable t) {
+                if(t instanceof Compiler.CompileError)
+                    Trace.dump(System.err);
+                t.printStackTrace();
+                out.println("ERROR " + String.valueOf(t.getMessage()).replace('\n', ' '));
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Builds a config, reusing the resident compiler from the last
+     * build of the same config if there is one, builds writing to
+     * the same output directory run one at a time.
+     *
+     * @param config
+     * @param listener
+     * @throws IOException
+     */
+    public void build(Config config, Compiler.ProgressListener listener) throws IOException {
+        File outputDirectory = new File(config.outputDirectory).getAbsoluteFile();
+        Object lock;
+        synchronized(outputLocks) {
+            lock = outputLocks.get(outputDirectory);
+            if(lock == null)
+                outputLocks.put(outputDirectory, lock = new Object());
+        }
+        
+        synchronized(lock) {
+            build(config, listener, new Gson().toJson(config));
+        }
+    }
+    
+    private void build(Config config, Compiler.ProgressListener listener, String key) throws IOException {
+        Session session;
+        synchronized(sessions) {
+            session = sessions.remove(key);
+        }
+        
+        if(session != null) {
+            if(session.compiler.outputFolder.isDirectory()) {
+                session.compiler.setProgressListener(listener);
+                try {
+                    session.compiler.refresh(session.watcher.pollChanges());
+                    session.compiler.writeOutput();
+                } catch(Compiler.CompileError | IOException ex) {
+                    close(session);
+                    throw ex;
+                }
+                
+                keep(key, session);
+                return;
+            }
+            
+            close(session);
+        }
+        
+        Compiler compiler = new Compiler(config, listener, scanCache);
+        Watcher watcher = new Watcher(compiler);
+        try {
+            compiler.build();
+        } catch(Compiler.CompileError | IOException ex) {
+            watcher.close();
+            throw ex;
+        }
+        keep(key, new Session(compiler, watcher));
+    }
+    
+    private void keep(String key, Session session) {
+        session.compiler.setProgressListener(null);
+        synchronized(sessions) {
+            Session replaced = sessions.put(key, session);
+            if(replaced != null)
+                close(replaced);
+        }
+    }
+    
+    private static void close(Session session) {
+        session.compiler.releaseArchives();
+        try {
+            session.watcher.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    private static String absolute(String path) {
+        return path == null ? null : new File(path).getAbsolutePath();
+    }
+    
+    /**
+     * Sends a config to a running daemon, printing its messages as they arrive.
+     * Its paths are made absolute first, relative to the working directory
+     * as they would be when building without the daemon.
+     *
+     * @param port
+     * @param configFile
+     * @param output
+     * @return Whether the build succeeded
+     * @throws IOException
+     */
+    public static boolean submit(int port, File configFile, PrintStream output) throws IOException {
+        Config config;
+        try {
+            config = Config.load(configFile);
+        } catch(JsonParseException ex) {
+            throw new IOException("Invalid config `" + configFile + "`", ex);
+        }
+        config.runtimeDirectoryJava = absolute(config.runtimeDirectoryJava);
+        config.runtimeDirectoryJS = absolute(config.runtimeDirectoryJS);
+        config.projectDirectory = absolute(config.projectDirectory);
+        config.outputDirectory = absolute(config.outputDirectory);
+        config.indexDirectory = absolute(config.indexDirectory);
+        if(config.additionalClassDirectories != null)
+            for(int i=0; i<config.additionalClassDirectories.length; i++)
+                config.additionalClassDirectories[i] = absolute(config.additionalClassDirectories[i]);
+        
+        File tokenFile = tokenFile(port);
+        if(!tokenFile.isFile())
+            throw new IOException("No daemon token in `" + tokenFile + "`, is the daemon running on port " + port + "?");
+        String token = new String(Files.readAllBytes(tokenFile.toPath()), "UTF-8");
+        
+        try (Socket socket = new Socket(InetAddress.getByName(null), port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true)) {
+            out.println("TOKEN " + token);
+            out.println(new Gson().toJson(config));
+            
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.startsWith("PROGRESS "))
+                    continue;
+                
+                output.println(line);
+                if(line.startsWith("SUCCESS "))
+                    return true;
+                if(line.startsWith("ERROR "))
+                    return false;
+            }
+        }
+        
+        return false;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        Files.deleteIfExists(tokenFile.toPath());
+        executor.shutdown();
+        synchronized(sessions) {
+            for(Session session : sessions.values())
+                close(session);
+            sessions.clear();
+        }
+    }
+    
+}
@@ -0,0 +1,111 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the descriptor of a single class as the compiler visits it.
+ * 
+ * Class names and descriptors are passed as they appear in the bytecode,
+ * labels as the names given to them by the compiler, and values have
+ * already been checked to be something the runtime can represent.
+ *
+ * @author kate
+ */
+public abstract class DescriptorWriter implements Closeable {
+    
+    public abstract void beginClass(String name, String[] interfaces, String parent) throws IOException;
+    public abstract void field(String name, String desc, Object value, int access) throws IOException;
+    
+    /**
+     * Starts a method, methods with a native implementation are complete
+     * once this returns, otherwise their code follows until {@link #endMethod()}.
+     */
+    public abstract void beginMethod(String name, String desc, String[] exceptions, int access, String nativeImplementation) throws IOException;
+    public abstract void endMethod() throws IOException;
+    
+    /**
+     * Attaches a property to the method being written, it ends up in the
+     * method descriptor next to the implementation.
+     * 
+     * @param key
+     * @param source The value as JavaScript source
+     */
+    public abstract void methodProperty(String key, String source) throws IOException;
+    
+    public abstract void tryCatch(String start, String end, String handler, String type) throws IOException;
+    
+    /**
+     * @param target The only class whose implementation a virtual or interface
+     * call can run, or null when that is not known
+     */
+    public abstract void methodInsn(int opcode, String owner, String name, String desc, boolean itf, String target) throws IOException;
+    
+    /**
+     * Creates an instance of a functional interface without a class of its
+     * own, taking the place of a LambdaMetafactory invokedynamic. Calling
+     * the interface method calls the implementation with the captured
+     * values, popped from the stack, followed by the arguments it was given.
+     * 
+     * @param name The interface method
+     * @param desc The captured values as arguments, returning the interface
+     * @param samDesc The erased descriptor of the interface method
+     * @param instantiatedDesc The descriptor of the interface method as the lambda implements it
+     * @param implOpcode INVOKESTATIC, INVOKEVIRTUAL, INVOKEINTERFACE, INVOKESPECIAL, or NEW for constructors
+     * @param interfaces Marker interfaces the instance also implements
+     * @param bridges Other descriptors the interface method is also called with
+     */
+    public abstract void lambda(String name, String desc, String samDesc, String instantiatedDesc, int implOpcode, String implOwner, String implName, String implDesc, boolean implItf, String[] interfaces, String[] bridges) throws IOException;
+    
+    /**
+     * Joins strings, taking the place of a StringConcatFactory invokedynamic.
+     * 
+     * @param desc The values popped from the stack as arguments, returning String
+     * @param parts Constant strings, and the indexes of the arguments as Integers, in the order they are joined
+     */
+    public abstract void concat(String desc, Object[] parts) throws IOException;
+    
+    /**
+     * Creates a primitive array backed by a typed array, taking the place of
+     * a NEWARRAY, or of a MULTIANEWARRAY whose innermost arrays are primitive.
+     * 
+     * @param desc The array created
+     * @param dims The lengths popped from the stack, outermost first
+     * @param typedArray What the innermost arrays are backed by, Int32Array for example
+     */
+    public abstract void newTypedArray(String desc, int dims, String typedArray) throws IOException;
+    public abstract void tableSwitch(int min, int max, String dflt, String[] labels) throws IOException;
+    public abstract void multiANewArray(String desc, int dims) throws IOException;
+    public abstract void iinc(int var, int increment) throws IOException;
+    public abstract void lookupSwitch(String dflt, int[] keys, String[] labels) throws IOException;
+    public abstract void localVariable(String name, String desc, String start, String end, int index) throws IOException;
+    public abstract void parameter(String name, int access) throws IOException;
+    public abstract void varInsn(int opcode, int var) throws IOException;
+    public abstract void typeInsn(int opcode, String type) throws IOException;
+    public abstract void ldc(Object cst) throws IOException;
+    public abstract void label(String name) throws IOException;
+    public abstract void jumpInsn(int opcode, String label) throws IOException;
+    public abstract void insn(int opcode) throws IOException;
+    public abstract void intInsn(int opcode, int operand) throws IOException;
+    public abstract void fieldInsn(int opcode, String owner, String name, String desc) throws IOException;
+    
+    public abstract void endClass(List<String> references) throws IOException;
+    
+}
@@ -59,6 +59,8 @@ public class GUI extends javax.swing.JFrame {
         }
     }
     
+    private Watcher watcher;
+    
     public static interface ListAdder {
         public String add();
     }
@@ -76,8 +78,8 @@ public class GUI extends javax.swing.JFrame {
             public String add() {
                 JFileChooser chooser  = new JFileChooser(new File("."));
 
-                chooser.setDialogTitle("Select Additional Classpath Directory");
-                chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+                chooser.setDialogTitle("Select Additional Classpath Directory or Archive");
+                chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
                 chooser.setAcceptAllFileFilterUsed(false);
 
                 if (chooser.showOpenDialog(GUI.this) == JFileChooser.APPROVE_OPTION)
@@ -203,7 +205,7 @@ public class GUI extends javax.swing.JFrame {
         config.additionalClassDirectories = new String[model.size()];
         for(int i=0; i<model.size(); i++) {
             String additionalDir = config.additionalClassDirectories[i] = (String)model.elementAt(i);
-            if(!new File(additionalDir).isDirectory())
+            if(!new File(additionalDir).isDirectory() && !Archive.isArchive(new File(additionalDir)))
                 throw new BadConfigState("Additional directory `" + additionalDir + "` does not exist!");
         }
         
@@ -325,6 +327,7 @@ public class GUI extends javax.swing.JFrame {
         txtBodyFooter = new javax.swing.JTextPane();
         jPanel10 = new javax.swing.JPanel();
         chkWriteIndex = new javax.swing.JCheckBox();
+        chkWatch = new javax.swing.JCheckBox();
         jLabel4 = new javax.swing.JLabel();
         txtScriptType = new javax.swing.JTextField();
         jPanel11 = new javax.swing.JPanel();
@@ -718,6 +721,8 @@ public class GUI extends javax.swing.JFrame {
         chkWriteIndex.setSelected(true);
         chkWriteIndex.setText("Write index.html");
 
+        chkWatch.setText("Keep watching for changes after compiling");
+
         jLabel4.setText("Script Type");
 
         txtScriptType.setText("text/javascript");
@@ -731,6 +736,9 @@ public class GUI extends javax.swing.JFrame {
                     .addGroup(jPanel10Layout.createSequentialGroup()
                         .addContainerGap()
                         .addComponent(chkWriteIndex, javax.swing.GroupLayout.DEFAULT_SIZE, 590, Short.MAX_VALUE))
+                    .addGroup(jPanel10Layout.createSequentialGroup()
+                        .addContainerGap()
+                        .addComponent(chkWatch, javax.swing.GroupLayout.DEFAULT_SIZE, 590, Short.MAX_VALUE))
                     .addGroup(jPanel10Layout.createSequentialGroup()
                         .addGap(28, 28, 28)
                         .addComponent(jLabel4, javax.swing.GroupLayout.PREFERRED_SIZE, 183, javax.swing.GroupLayout.PREFERRED_SIZE)
@@ -744,6 +752,8 @@ public class GUI extends javax.swing.JFrame {
                 .addContainerGap()
                 .addComponent(chkWriteIndex)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(chkWatch)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addGroup(jPanel10Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                     .addComponent(jLabel4)
                     .addComponent(txtScriptType, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
@@ -941,7 +951,13 @@ public class GUI extends javax.swing.JFrame {
 
     private void btnCompileActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnCompileActionPerformed
         try {
+            if(watcher != null) {
+                watcher.close();
+                return;
+            }
+            
             final Config config = convertToConfig();
+            final boolean watch = chkWatch.isSelected();
             pgrStatus.setMaximum(1000000);
             pgrStatus.setString("Starting...");
             disableAll();
@@ -957,6 +973,7 @@ public class GUI extends javax.swing.JFrame {
                 
                 @Override
                 public void run() {
+                    Trace.begin();
                     try {
                         Compiler compiler = new Compiler(config, new Compiler.ProgressListener() {
 
@@ -984,12 +1001,33 @@ public class GUI extends javax.swing.JFrame {
                                 });
                             }
                         });
-                        compiler.createOutputDirectory();
-                        compiler.compile();
-                        if(config.writeIndex)
-                            compiler.writeIndex(compiler.copyLibraries());
-                        else
-                            compiler.copyLibraries();
+                        compiler.build();
+                        
+                        if(watch) {
+                            final Watcher compilerWatcher = new Watcher(compiler);
+                            java.awt.EventQueue.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    watcher = compilerWatcher;
+                                    btnCompile.setText("Stop Watching");
+                                    btnCompile.setEnabled(true);
+                                    pgrStatus.setIndeterminate(false);
+                                    pgrStatus.setValue(0);
+                                    pgrStatus.setString("Watching for changes...");
+                                }
+                            });
+                            
+                            compilerWatcher.watch();
+                            java.awt.EventQueue.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    watcher = null;
+                                    btnCompile.setText("Compile");
+                                    finished();
+                                }
+                            });
+                            return;
+                        }
                         
                         java.awt.EventQueue.invokeLater(new Runnable() {
                             @Override
@@ -999,6 +1037,8 @@ public class GUI extends javax.swing.JFrame {
                             }
                         });
                     } catch(final Throwable t) {
+                        if(t instanceof Compiler.CompileError)
+                            Trace.dump(System.err);
                         java.awt.EventQueue.invokeLater(new Runnable() {
                             @Override
                             public void run() {
@@ -1012,7 +1052,7 @@ public class GUI extends javax.swing.JFrame {
                     }
                 }
             }.start();
-        } catch (BadConfigState ex) {
+        } catch (BadConfigState | IOException ex) {
             JOptionPane.showMessageDialog(this, ex.getMessage(), "Error occured", JOptionPane.ERROR_MESSAGE);
         }
     }//GEN-LAST:event_btnCompileActionPerformed
@@ -1077,6 +1117,7 @@ public class GUI extends javax.swing.JFrame {
     private javax.swing.JButton btnRemoveAdditional;
     private javax.swing.JButton btnRemoveForceCompile;
     private javax.swing.JCheckBox chkProguard;
+    private javax.swing.JCheckBox chkWatch;
     private javax.swing.JCheckBox chkWriteIndex;
     private javax.swing.JComboBox cmbCompilerVersion;
     private javax.swing.JButton jButton1;
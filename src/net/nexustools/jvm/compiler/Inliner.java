@@ -0,0 +1,380 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Replaces calls to small methods that cannot be overridden with
+ * a copy of their body, loaded from the classpath.
+ *
+ * Static methods, private methods, super calls and methods that are
+ * final or belong to a final class are candidates, as long as they are
+ * no bigger than the configured size and are not synchronized. The
+ * arguments are stored into fresh locals, returns become jumps to the
+ * end of the copy and the try blocks of the callee are placed in front
+ * of those of the caller. Calls through a null receiver still throw.
+ *
+ * Static calls into another class are only inlined when that would not
+ * skip running a static initializer. The runtime does not check member
+ * access, so accessors like access$000 can be inlined into inner classes.
+ *
+ * Every class read while inlining is kept in {@link #dependencies},
+ * since the output now changes when they do.
+ *
+ * @author kate
+ */
+public class Inliner extends ClassVisitor {
+    
+    public final Config.Inlining settings;
+    public final Map<String, String> dependencies = new LinkedHashMap(); // Classes read, with the hash of their bytes
+    private final Compiler compiler;
+    private final Map<String, ClassNode> classes = new HashMap();
+    private final Map<MethodNode, Boolean> inlinable = new HashMap();
+    private String classname;
+    public Inliner(ClassVisitor classVisitor, Compiler compiler, Config.Inlining settings) {
+        super(Opcodes.ASM5, classVisitor);
+        this.compiler = compiler;
+        this.settings = settings;
+    }
+    
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        classname = name;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+    
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        final MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+        if(methodVisitor == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+            return methodVisitor;
+        
+        return new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions) {
+            @Override
+            public void visitEnd() {
+                int inlined = inline(this);
+                if(inlined > 0 && Trace.enabled(Trace.DEBUG))
+                    Trace.log(Trace.DEBUG, "\tInlined " + inlined + " calls into " + name + desc);
+                accept(methodVisitor);
+            }
+        };
+    }
+    
+    /**
+     * Inlines every call in a method that can be, including the calls
+     * within the copies up to the configured depth.
+     *
+     * @param method
+     * @return The number of calls inlined
+     */
+    public int inline(MethodNode method) {
+        Map<AbstractInsnNode, List<String>> chains = new HashMap(); // The methods each copied call was inlined through
+        List<String> root = new ArrayList();
+        root.add(classname + '.' + method.name + method.desc);
+        
+        boolean thisIntact = (method.access & Opcodes.ACC_STATIC) == 0;
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null && thisIntact; node = node.getNext())
+            if((node instanceof VarInsnNode && node.getOpcode() >= Opcodes.ISTORE && ((VarInsnNode)node).var == 0) ||
+                    (node instanceof IincInsnNode && ((IincInsnNode)node).var == 0))
+                thisIntact = false;
+        
+        int inlined = 0;
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null; ) {
+            AbstractInsnNode next = node.getNext();
+            if(node instanceof MethodInsnNode && method.instructions.size() <= settings.maxCallerSize) {
+                MethodInsnNode call = (MethodInsnNode)node;
+                List<String> chain = chains.containsKey(call) ? chains.get(call) : root;
+                MethodNode callee = chain.size() <= settings.maxDepth ? resolve(call) : null;
+                if(callee != null && !chain.contains(callee.name)) {
+                    List<String> through = new ArrayList(chain);
+                    through.add(callee.name);
+                    AbstractInsnNode first = splice(method, call, callee, thisIntact, through, chains);
+                    if(first != null) {
+                        next = first;
+                        inlined ++;
+                    }
+                }
+            }
+            node = next;
+        }
+        return inlined;
+    }
+    
+    /**
+     * Finds the body a call will run, if it is known at build time
+     * and small enough to be inlined.
+     *
+     * The returned method is a copy named by its declaring class,
+     * name and descriptor, so calls inlined through it can be told apart.
+     *
+     * @param call
+     * @return The method, or null
+     */
+    private MethodNode resolve(MethodInsnNode call) {
+        if(call.name.startsWith("<") || call.owner.startsWith("["))
+            return null;
+        
+        String declaring = call.owner;
+        MethodNode found = null;
+        boolean finalClass = false;
+        for(String current = call.owner; current != null && found == null; ) {
+            ClassNode classNode = load(current);
+            if(classNode == null)
+                return null; // Built-in or missing, only the runtime knows
+            if(current.equals(call.owner))
+                finalClass = (classNode.access & Opcodes.ACC_FINAL) != 0;
+            
+            for(MethodNode method : classNode.methods)
+                if(method.name.equals(call.name) && method.desc.equals(call.desc)) {
+                    found = method;
+                    declaring = current;
+                    break;
+                }
+            current = classNode.superName;
+        }
+        if(found == null)
+            return null;
+        
+        int access = found.access;
+        if((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_SYNCHRONIZED)) != 0)
+            return null;
+        switch(call.getOpcode()) {
+            case Opcodes.INVOKESTATIC:
+                if((access & Opcodes.ACC_STATIC) == 0 || !initialized(declaring))
+                    return null;
+                break;
+            case Opcodes.INVOKESPECIAL:
+                if((access & Opcodes.ACC_STATIC) != 0)
+                    return null;
+                break;
+            case Opcodes.INVOKEVIRTUAL:
+                if((access & Opcodes.ACC_STATIC) != 0 || (!finalClass && (access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL)) == 0))
+                    return null;
+                break;
+            default:
+                return null;
+        }
+        
+        int size = 0;
+        for(AbstractInsnNode node = found.instructions.getFirst(); node != null; node = node.getNext()) {
+            int opcode = node.getOpcode();
+            if(opcode == Opcodes.JSR || opcode == Opcodes.RET)
+                return null;
+            if(opcode == Opcodes.INVOKESPECIAL && !declaring.equals(classname) && !((MethodInsnNode)node).name.equals("<init>"))
+                return null; // Super calls depend on the class they are made from
+            if(opcode >= 0 && ++size > settings.maxSize)
+                return null;
+        }
+        if(!returnsCleanly(found))
+            return null;
+        
+        MethodNode callee = new MethodNode(Opcodes.ASM5, access, declaring + '.' + found.name + found.desc, found.desc, null, null);
+        callee.instructions = found.instructions;
+        callee.tryCatchBlocks = found.tryCatchBlocks;
+        callee.maxLocals = found.maxLocals;
+        callee.maxStack = found.maxStack;
+        return callee;
+    }
+    
+    /**
+     * @param method
+     * @return Whether the stack holds nothing but the return value at each return
+     */
+    private boolean returnsCleanly(MethodNode method) {
+        Boolean clean = inlinable.get(method);
+        if(clean != null)
+            return clean;
+        
+        TypeAnalyzer analyzer = new TypeAnalyzer(method);
+        clean = analyzer.complete;
+        int returned = TypeAnalyzer.slots(Type.getReturnType(method.desc)).length();
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null && clean; node = node.getNext())
+            if(node.getOpcode() >= Opcodes.IRETURN && node.getOpcode() <= Opcodes.RETURN) {
+                String stack = analyzer.stackAt(node);
+                clean = stack == null || stack.length() == returned;
+            }
+        inlinable.put(method, clean);
+        return clean;
+    }
+    
+    /**
+     * Calling a static method initializes its class, which must
+     * already have happened for the copy to do without the call.
+     *
+     * @param declaring
+     * @return Whether every class with a static initializer the call
+     * would run is this class or one of its superclasses
+     */
+    private boolean initialized(String declaring) {
+        List<String> initialized = new ArrayList();
+        for(String current = classname; current != null; ) {
+            initialized.add(current);
+            ClassNode classNode = load(current);
+            current = classNode == null ? null : classNode.superName;
+        }
+        
+        for(String current = declaring; current != null && !initialized.contains(current); ) {
+            ClassNode classNode = load(current);
+            if(classNode == null)
+                return false;
+            for(MethodNode method : classNode.methods)
+                if(method.name.equals("<clinit>"))
+                    return false;
+            current = classNode.superName;
+        }
+        return true;
+    }
+    
+    /**
+     * Replaces a call with a copy of the method it runs.
+     *
+     * @return The first node of the copy, or null if it could not be placed here
+     */
+    private AbstractInsnNode splice(MethodNode method, MethodInsnNode call, MethodNode callee, boolean thisIntact, List<String> chain, Map<AbstractInsnNode, List<String>> chains) {
+        boolean instance = call.getOpcode() != Opcodes.INVOKESTATIC;
+        Type[] args = Type.getArgumentTypes(call.desc);
+        int words = instance ? 1 : 0;
+        for(Type arg : args)
+            words += arg.getSize();
+        
+        if(!callee.tryCatchBlocks.isEmpty()) {
+            // Entering a handler empties the stack, so nothing of the caller may be left on it
+            String stack = new TypeAnalyzer(method).stackAt(call);
+            if(stack == null || stack.length() != words)
+                return null;
+        }
+        
+        int base = method.maxLocals;
+        InsnList copy = new InsnList();
+        int slot = base + words;
+        for(int i=args.length-1; i>=0; i--) {
+            slot -= args[i].getSize();
+            copy.add(new VarInsnNode(args[i].getOpcode(Opcodes.ISTORE), slot));
+        }
+        if(instance) {
+            AbstractInsnNode previous = call.getPrevious();
+            while(previous != null && previous.getOpcode() < 0)
+                previous = previous.getPrevious();
+            copy.add(new VarInsnNode(Opcodes.ASTORE, base));
+            
+            if(!thisIntact || args.length > 0 || previous == null || previous.getOpcode() != Opcodes.ALOAD || ((VarInsnNode)previous).var != 0) {
+                LabelNode present = new LabelNode();
+                copy.add(new VarInsnNode(Opcodes.ALOAD, base));
+                copy.add(new JumpInsnNode(Opcodes.IFNONNULL, present));
+                copy.add(new InsnNode(Opcodes.ACONST_NULL));
+                copy.add(new InsnNode(Opcodes.ATHROW)); // Throws a NullPointerException
+                copy.add(present);
+            }
+        }
+        
+        Map<LabelNode, LabelNode> labels = new HashMap();
+        for(AbstractInsnNode node = callee.instructions.getFirst(); node != null; node = node.getNext())
+            if(node instanceof LabelNode)
+                labels.put((LabelNode)node, new LabelNode());
+        
+        AbstractInsnNode last = callee.instructions.getLast();
+        while(last != null && last.getOpcode() < 0)
+            last = last.getPrevious();
+        
+        LabelNode end = new LabelNode();
+        for(AbstractInsnNode node = callee.instructions.getFirst(); node != null; node = node.getNext()) {
+            int opcode = node.getOpcode();
+            if(node instanceof FrameNode || node instanceof LineNumberNode)
+                continue;
+            if(opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                if(node != last)
+                    copy.add(new JumpInsnNode(Opcodes.GOTO, end));
+                continue;
+            }
+            
+            AbstractInsnNode cloned = node.clone(labels);
+            if(cloned instanceof VarInsnNode)
+                ((VarInsnNode)cloned).var += base;
+            else if(cloned instanceof IincInsnNode)
+                ((IincInsnNode)cloned).var += base;
+            else if(cloned instanceof MethodInsnNode)
+                chains.put(cloned, chain);
+            copy.add(cloned);
+        }
+        copy.add(end);
+        
+        List<TryCatchBlockNode> tryCatchBlocks = new ArrayList();
+        for(TryCatchBlockNode block : callee.tryCatchBlocks)
+            tryCatchBlocks.add(new TryCatchBlockNode(labels.get(block.start), labels.get(block.end), labels.get(block.handler), block.type));
+        method.tryCatchBlocks.addAll(0, tryCatchBlocks);
+        
+        method.maxLocals = base + Math.max(callee.maxLocals, words);
+        method.maxStack += callee.maxStack;
+        
+        AbstractInsnNode first = copy.getFirst();
+        method.instructions.insertBefore(call, copy);
+        method.instructions.remove(call);
+        return first;
+    }
+    
+    /**
+     * @param name
+     * @return The class as read from the classpath, or null for built-in and missing classes
+     */
+    private ClassNode load(String name) {
+        if(classes.containsKey(name))
+            return classes.get(name);
+        
+        ClassNode classNode = null;
+        String resolved = Compiler.resolveClassname(name);
+        File file = compiler.resolve(resolved + ".class");
+        if(!compiler.isBuiltIn(Compiler.convertRuntime(name)) && file.exists()) {
+            try {
+                byte[] bytes = Compiler.readBytes(file);
+                classNode = new ClassNode();
+                new ClassReader(bytes).accept(classNode, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+                if(!name.equals(classname))
+                    dependencies.put(resolved, BuildCache.hash(bytes));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        classes.put(name, classNode);
+        return classNode;
+    }
+    
+}
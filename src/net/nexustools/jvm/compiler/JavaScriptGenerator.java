@@ -0,0 +1,619 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import net.nexustools.jvm.compiler.ControlFlow.Block;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Generates the JavaScript for methods ahead of time, the operand stack
+ * is simulated into locals and control flow is rebuilt into loops and
+ * blocks, falling back to a switch over the jump targets when the flow
+ * graph is irreducible.
+ *
+ * Only methods working purely on int, float and double values are
+ * generated, anything touching objects, arrays, longs, calls or exceptions
+ * is left to the runtime. The result is attached to the method descriptor
+ * as its "compiled" property, a function taking the arguments in order
+ * after the instance for non-static methods, which the class loader can
+ * install instead of compiling the implementation.
+ *
+ * @author kate
+ */
+public class JavaScriptGenerator extends ClassVisitor {
+    public static final String PROPERTY = "compiled";
+    
+    private final DescriptorWriter writer;
+    public JavaScriptGenerator(ClassVisitor classVisitor, DescriptorWriter writer) {
+        super(Opcodes.ASM5, classVisitor);
+        this.writer = writer;
+    }
+    
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        final MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+        if(methodVisitor == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+            return methodVisitor;
+        
+        return new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions) {
+            @Override
+            public void visitEnd() {
+                String source = generate(this);
+                if(source != null) {
+                    if(Trace.enabled(Trace.DEBUG))
+                        Trace.log(Trace.DEBUG, "\tGenerated JavaScript for " + name + desc);
+                    try {
+                        writer.methodProperty(PROPERTY, source);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                accept(methodVisitor);
+            }
+        };
+    }
+    
+    private static char kind(Type type) {
+        switch(type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.CHAR:
+            case Type.SHORT:
+            case Type.INT:
+                return 'I';
+            case Type.FLOAT:
+                return 'F';
+            case Type.DOUBLE:
+                return 'D';
+            case Type.VOID:
+                return 'V';
+        }
+        return 0;
+    }
+    
+    /**
+     * @param method
+     * @return The source of a function implementing the method, or null when it uses anything unsupported
+     */
+    public static String generate(MethodNode method) {
+        if(!method.tryCatchBlocks.isEmpty() || method.instructions.size() == 0)
+            return null;
+        
+        Type[] args = Type.getArgumentTypes(method.desc);
+        if(kind(Type.getReturnType(method.desc)) == 0)
+            return null;
+        
+        StringBuilder params = new StringBuilder();
+        TreeSet<Integer> locals = new TreeSet();
+        int slot = 0;
+        if((method.access & Opcodes.ACC_STATIC) == 0) {
+            params.append("l0");
+            slot ++;
+        }
+        for(Type arg : args) {
+            char kind = kind(arg);
+            if(kind == 0)
+                return null;
+            
+            if(params.length() > 0)
+                params.append(", ");
+            params.append('l').append(slot);
+            slot += arg.getSize();
+        }
+        
+        Map<LabelNode, Integer> cases = new HashMap();
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext()) {
+            if(node instanceof JumpInsnNode)
+                target(cases, ((JumpInsnNode)node).label);
+            else if(node instanceof TableSwitchInsnNode) {
+                target(cases, ((TableSwitchInsnNode)node).dflt);
+                for(LabelNode label : ((TableSwitchInsnNode)node).labels)
+                    target(cases, label);
+            } else if(node instanceof LookupSwitchInsnNode) {
+                target(cases, ((LookupSwitchInsnNode)node).dflt);
+                for(LabelNode label : ((LookupSwitchInsnNode)node).labels)
+                    target(cases, label);
+            } else if(node instanceof VarInsnNode && ((VarInsnNode)node).var >= slot)
+                locals.add(((VarInsnNode)node).var);
+            else if(node instanceof IincInsnNode && ((IincInsnNode)node).var >= slot)
+                locals.add(((IincInsnNode)node).var);
+        }
+        
+        // Work out the stack at each instruction
+        Map<AbstractInsnNode, String> stacks = new HashMap();
+        LinkedList<AbstractInsnNode> queue = new LinkedList();
+        StringBuilder scratch = new StringBuilder();
+        stacks.put(method.instructions.getFirst(), "");
+        queue.add(method.instructions.getFirst());
+        int maxStack = 0;
+        while(!queue.isEmpty()) {
+            AbstractInsnNode node = queue.removeFirst();
+            String stack = stacks.get(node);
+            scratch.setLength(0);
+            String after = translate(node, stack, scratch, cases);
+            if(after == null)
+                return null;
+            maxStack = Math.max(maxStack, Math.max(stack.length(), after.length()));
+            if(node.getOpcode() == Opcodes.SWAP)
+                maxStack = Math.max(maxStack, stack.length() + 1); // Swaps through the next free slot
+            
+            if(node instanceof JumpInsnNode && !flow(stacks, queue, ((JumpInsnNode)node).label, after))
+                return null;
+            if(node instanceof TableSwitchInsnNode) {
+                if(!flow(stacks, queue, ((TableSwitchInsnNode)node).dflt, after))
+                    return null;
+                for(LabelNode label : ((TableSwitchInsnNode)node).labels)
+                    if(!flow(stacks, queue, label, after))
+                        return null;
+            } else if(node instanceof LookupSwitchInsnNode) {
+                if(!flow(stacks, queue, ((LookupSwitchInsnNode)node).dflt, after))
+                    return null;
+                for(LabelNode label : ((LookupSwitchInsnNode)node).labels)
+                    if(!flow(stacks, queue, label, after))
+                        return null;
+            }
+            
+            int opcode = node.getOpcode();
+            boolean terminal = opcode == Opcodes.GOTO || opcode == Opcodes.TABLESWITCH || opcode == Opcodes.LOOKUPSWITCH ||
+                    (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN);
+            if(!terminal && node.getNext() != null && !flow(stacks, queue, node.getNext(), after))
+                return null;
+        }
+        
+        ControlFlow flow = new ControlFlow(method);
+        StringBuilder body = new StringBuilder();
+        if(flow.reducible)
+            new Structurer(flow, stacks).tree(flow.blocks.get(0), "\t", body);
+        else
+            for(AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext()) {
+                String stack = stacks.get(node);
+                if(stack == null)
+                    continue; // Never reached
+                
+                Integer id = cases.get(node);
+                if(id != null)
+                    body.append("\t\tcase ").append(id).append(":\n");
+                
+                scratch.setLength(0);
+                translate(node, stack, scratch, cases);
+                if(scratch.length() > 0)
+                    body.append("\t\t\t").append(scratch).append('\n');
+            }
+        
+        StringBuilder source = new StringBuilder("function(");
+        source.append(params).append(") {\n");
+        StringBuilder vars = new StringBuilder();
+        for(int local : locals)
+            vars.append(vars.length() > 0 ? ", " : "").append('l').append(local).append(" = 0");
+        for(int i=0; i<maxStack; i++)
+            vars.append(vars.length() > 0 ? ", " : "").append('s').append(i);
+        if(!flow.reducible)
+            vars.append(vars.length() > 0 ? ", " : "").append("pc = 0");
+        if(vars.length() > 0)
+            source.append("\tvar ").append(vars).append(";\n");
+        
+        if(flow.reducible)
+            source.append(body);
+        else {
+            source.append("\tfor(;;) switch(pc) {\n\t\tcase 0:\n");
+            source.append(body);
+            source.append("\t}\n");
+        }
+        return source.append('}').toString();
+    }
+    
+    /**
+     * Writes reducible control flow as nested loops and labelled blocks,
+     * following Ramsey's "Beyond Relooper". Each block is written where
+     * its dominator ends, blocks more than one forward edge leads to
+     * follow a labelled block their predecessors break out of and loop
+     * headers wrap their body in a loop their back edges continue.
+     */
+    private static class Structurer {
+        private final ControlFlow flow;
+        private final Map<AbstractInsnNode, String> stacks;
+        private final StringBuilder scratch = new StringBuilder();
+        public Structurer(ControlFlow flow, Map<AbstractInsnNode, String> stacks) {
+            this.flow = flow;
+            this.stacks = stacks;
+        }
+        
+        public void tree(Block block, String indent, StringBuilder out) {
+            List<Block> merges = flow.mergesWithin(block);
+            if(block.isLoopHeader()) {
+                out.append(indent).append("loop").append(block.index).append(": for(;;) {\n");
+                within(block, merges, 0, indent + "\t", out);
+                out.append(indent).append("}\n");
+            } else
+                within(block, merges, 0, indent, out);
+        }
+        
+        private void within(Block block, List<Block> merges, int index, String indent, StringBuilder out) {
+            if(index == merges.size()) {
+                code(block, indent, out);
+                return;
+            }
+            
+            Block merge = merges.get(index);
+            out.append(indent).append("block").append(merge.index).append(": {\n");
+            within(block, merges, index + 1, indent + "\t", out);
+            out.append(indent).append("}\n");
+            tree(merge, indent, out);
+        }
+        
+        private void branch(Block from, Block to, String indent, StringBuilder out) {
+            if(to.index <= from.index)
+                out.append(indent).append("continue loop").append(to.index).append(";\n");
+            else if(to.isMerge())
+                out.append(indent).append("break block").append(to.index).append(";\n");
+            else
+                tree(to, indent, out);
+        }
+        
+        private void code(Block block, String indent, StringBuilder out) {
+            AbstractInsnNode terminator = block.terminator();
+            for(AbstractInsnNode node = block.first; ; node = node.getNext()) {
+                String stack = stacks.get(node);
+                if(node != terminator || terminator.getType() != AbstractInsnNode.JUMP_INSN && terminator.getType() != AbstractInsnNode.TABLESWITCH_INSN && terminator.getType() != AbstractInsnNode.LOOKUPSWITCH_INSN) {
+                    scratch.setLength(0);
+                    translate(node, stack, scratch, null);
+                    if(scratch.length() > 0)
+                        out.append(indent).append(scratch).append('\n');
+                }
+                if(node == block.last)
+                    break;
+            }
+            
+            if(terminator instanceof JumpInsnNode) {
+                if(block.successors.size() > 1) {
+                    out.append(indent).append("if(").append(condition(terminator.getOpcode(), stacks.get(terminator))).append(") {\n");
+                    branch(block, block.successors.get(0), indent + "\t", out);
+                    out.append(indent).append("}\n");
+                    branch(block, block.successors.get(1), indent, out);
+                } else
+                    branch(block, block.successors.get(0), indent, out);
+            } else if(terminator instanceof TableSwitchInsnNode) {
+                TableSwitchInsnNode table = (TableSwitchInsnNode)terminator;
+                Map<Block, List<String>> cases = new LinkedHashMap();
+                for(int i=0; i<table.labels.size(); i++)
+                    label(cases, flow.blockAt(table.labels.get(i)), "case " + (table.min + i) + ":");
+                label(cases, flow.blockAt(table.dflt), "default:");
+                select(block, stacks.get(terminator), cases, indent, out);
+            } else if(terminator instanceof LookupSwitchInsnNode) {
+                LookupSwitchInsnNode lookup = (LookupSwitchInsnNode)terminator;
+                Map<Block, List<String>> cases = new LinkedHashMap();
+                for(int i=0; i<lookup.labels.size(); i++)
+                    label(cases, flow.blockAt(lookup.labels.get(i)), "case " + lookup.keys.get(i) + ":");
+                label(cases, flow.blockAt(lookup.dflt), "default:");
+                select(block, stacks.get(terminator), cases, indent, out);
+            } else if(!block.successors.isEmpty())
+                branch(block, block.successors.get(0), indent, out);
+        }
+        
+        private static void label(Map<Block, List<String>> cases, Block target, String label) {
+            List<String> labels = cases.get(target);
+            if(labels == null)
+                cases.put(target, labels = new ArrayList());
+            labels.add(label);
+        }
+        
+        private void select(Block block, String stack, Map<Block, List<String>> cases, String indent, StringBuilder out) {
+            out.append(indent).append("switch(s").append(stack.length()-1).append(") {\n");
+            for(Map.Entry<Block, List<String>> entry : cases.entrySet()) {
+                for(String label : entry.getValue())
+                    out.append(indent).append('\t').append(label).append('\n');
+                branch(block, entry.getKey(), indent + "\t\t", out);
+            }
+            out.append(indent).append("}\n");
+        }
+    }
+    
+    private static void target(Map<LabelNode, Integer> cases, LabelNode label) {
+        if(!cases.containsKey(label))
+            cases.put(label, cases.size() + 1);
+    }
+    
+    private static boolean flow(Map<AbstractInsnNode, String> stacks, LinkedList<AbstractInsnNode> queue, AbstractInsnNode node, String stack) {
+        String existing = stacks.get(node);
+        if(existing != null)
+            return existing.equals(stack);
+        
+        stacks.put(node, stack);
+        queue.add(node);
+        return true;
+    }
+    
+    private static String number(double value) {
+        if(Double.isNaN(value))
+            return "NaN";
+        if(Double.isInfinite(value))
+            return value > 0 ? "Infinity" : "-Infinity";
+        if(value == 0)
+            return 1 / value < 0 ? "-0" : "0";
+        if(value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long)value);
+        return Double.toString(value);
+    }
+    
+    private static String jump(Map<LabelNode, Integer> cases, LabelNode label) {
+        return "{ pc = " + cases.get(label) + "; continue; }";
+    }
+    
+    private static String condition(int opcode, String stack) {
+        int depth = stack.length();
+        if(opcode >= Opcodes.IF_ICMPEQ)
+            return "s" + (depth-2) + comparison(opcode) + "s" + (depth-1);
+        return "s" + (depth-1) + comparison(opcode) + "0";
+    }
+    
+    private static String comparison(int opcode) {
+        switch(opcode) {
+            case Opcodes.IFEQ:
+            case Opcodes.IF_ICMPEQ:
+                return " === ";
+            case Opcodes.IFNE:
+            case Opcodes.IF_ICMPNE:
+                return " !== ";
+            case Opcodes.IFLT:
+            case Opcodes.IF_ICMPLT:
+                return " < ";
+            case Opcodes.IFGE:
+            case Opcodes.IF_ICMPGE:
+                return " >= ";
+            case Opcodes.IFGT:
+            case Opcodes.IF_ICMPGT:
+                return " > ";
+            default:
+                return " <= ";
+        }
+    }
+    
+    /**
+     * Writes the JavaScript for a single instruction.
+     *
+     * @return The kinds on the stack afterwards, or null if the instruction is unsupported
+     */
+    private static String translate(AbstractInsnNode node, String stack, StringBuilder out, Map<LabelNode, Integer> cases) {
+        int opcode = node.getOpcode();
+        if(opcode < 0)
+            return stack; // Labels, line numbers and frames
+        
+        int depth = stack.length();
+        String push = "s" + depth, top = "s" + (depth-1), second = "s" + (depth-2);
+        char topKind = depth > 0 ? stack.charAt(depth-1) : 0;
+        String popped = depth > 0 ? stack.substring(0, depth-1) : null;
+        String popped2 = depth > 1 ? stack.substring(0, depth-2) : null;
+        switch(opcode) {
+            case Opcodes.NOP:
+                return stack;
+            
+            case Opcodes.ICONST_M1:
+            case Opcodes.ICONST_0:
+            case Opcodes.ICONST_1:
+            case Opcodes.ICONST_2:
+            case Opcodes.ICONST_3:
+            case Opcodes.ICONST_4:
+            case Opcodes.ICONST_5:
+                out.append(push).append(" = ").append(opcode - Opcodes.ICONST_0).append(';');
+                return stack + 'I';
+            case Opcodes.FCONST_0:
+            case Opcodes.FCONST_1:
+            case Opcodes.FCONST_2:
+                out.append(push).append(" = ").append(opcode - Opcodes.FCONST_0).append(';');
+                return stack + 'F';
+            case Opcodes.DCONST_0:
+            case Opcodes.DCONST_1:
+                out.append(push).append(" = ").append(opcode - Opcodes.DCONST_0).append(';');
+                return stack + 'D';
+            case Opcodes.BIPUSH:
+            case Opcodes.SIPUSH:
+                out.append(push).append(" = ").append(((IntInsnNode)node).operand).append(';');
+                return stack + 'I';
+            case Opcodes.LDC:
+                Object cst = ((LdcInsnNode)node).cst;
+                char kind;
+                if(cst instanceof Integer)
+                    kind = 'I';
+                else if(cst instanceof Float)
+                    kind = 'F';
+                else if(cst instanceof Double)
+                    kind = 'D';
+                else
+                    return null;
+                out.append(push).append(" = ").append(number(((Number)cst).doubleValue())).append(';');
+                return stack + kind;
+            
+            case Opcodes.ILOAD:
+            case Opcodes.FLOAD:
+            case Opcodes.DLOAD:
+                out.append(push).append(" = l").append(((VarInsnNode)node).var).append(';');
+                return stack + "IFD".charAt(opcode == Opcodes.ILOAD ? 0 : opcode == Opcodes.FLOAD ? 1 : 2);
+            case Opcodes.ISTORE:
+            case Opcodes.FSTORE:
+            case Opcodes.DSTORE:
+                out.append('l').append(((VarInsnNode)node).var).append(" = ").append(top).append(';');
+                return popped;
+            case Opcodes.IINC:
+                IincInsnNode iinc = (IincInsnNode)node;
+                out.append('l').append(iinc.var).append(" = (l").append(iinc.var).append(" + ").append(iinc.incr).append(") | 0;");
+                return stack;
+            
+            case Opcodes.POP:
+                if(topKind == 'D')
+                    return null;
+                return popped;
+            case Opcodes.POP2:
+                if(topKind == 'D')
+                    return popped;
+                if(depth < 2 || stack.charAt(depth-2) == 'D')
+                    return null;
+                return popped2;
+            case Opcodes.DUP:
+                if(topKind == 'D')
+                    return null;
+                out.append(push).append(" = ").append(top).append(';');
+                return stack + topKind;
+            case Opcodes.DUP2:
+                if(topKind != 'D')
+                    return null;
+                out.append(push).append(" = ").append(top).append(';');
+                return stack + topKind;
+            case Opcodes.SWAP:
+                if(topKind == 'D' || stack.charAt(depth-2) == 'D')
+                    return null;
+                out.append(push).append(" = ").append(top).append("; ").append(top).append(" = ").append(second).append("; ").append(second).append(" = ").append(push).append(';');
+                return popped2 + topKind + stack.charAt(depth-2);
+            
+            case Opcodes.IADD:
+            case Opcodes.ISUB:
+                out.append(second).append(" = (").append(second).append(opcode == Opcodes.IADD ? " + " : " - ").append(top).append(") | 0;");
+                return popped;
+            case Opcodes.IMUL:
+                out.append(second).append(" = Math.imul(").append(second).append(", ").append(top).append(");");
+                return popped;
+            case Opcodes.IAND:
+            case Opcodes.IOR:
+            case Opcodes.IXOR:
+            case Opcodes.ISHL:
+            case Opcodes.ISHR:
+                out.append(second).append(" = ").append(second).append(' ').append(opcode == Opcodes.IAND ? "&" : opcode == Opcodes.IOR ? "|" : opcode == Opcodes.IXOR ? "^" : opcode == Opcodes.ISHL ? "<<" : ">>").append(' ').append(top).append(';');
+                return popped;
+            case Opcodes.IUSHR:
+                out.append(second).append(" = (").append(second).append(" >>> ").append(top).append(") | 0;");
+                return popped;
+            case Opcodes.INEG:
+                out.append(top).append(" = (-").append(top).append(") | 0;");
+                return stack;
+            
+            case Opcodes.FADD:
+            case Opcodes.FSUB:
+            case Opcodes.FMUL:
+            case Opcodes.FDIV:
+            case Opcodes.FREM:
+                out.append(second).append(" = Math.fround(").append(second).append(' ').append("+-*/%".charAt((opcode - Opcodes.FADD) / 4)).append(' ').append(top).append(");");
+                return popped;
+            case Opcodes.DADD:
+            case Opcodes.DSUB:
+            case Opcodes.DMUL:
+            case Opcodes.DDIV:
+            case Opcodes.DREM:
+                out.append(second).append(" = ").append(second).append(' ').append("+-*/%".charAt((opcode - Opcodes.DADD) / 4)).append(' ').append(top).append(';');
+                return popped;
+            case Opcodes.FNEG:
+            case Opcodes.DNEG:
+                out.append(top).append(" = -").append(top).append(';');
+                return stack;
+            
+            case Opcodes.I2F:
+            case Opcodes.D2F:
+                out.append(top).append(" = Math.fround(").append(top).append(");");
+                return popped + 'F';
+            case Opcodes.I2D:
+            case Opcodes.F2D:
+                return popped + 'D';
+            case Opcodes.F2I:
+            case Opcodes.D2I:
+                out.append(top).append(" = ").append(top).append(" !== ").append(top).append(" ? 0 : ").append(top)
+                        .append(" >= 2147483647 ? 2147483647 : ").append(top).append(" <= -2147483648 ? -2147483648 : ").append(top).append(" | 0;");
+                return popped + 'I';
+            case Opcodes.I2B:
+                out.append(top).append(" = (").append(top).append(" << 24) >> 24;");
+                return stack;
+            case Opcodes.I2S:
+                out.append(top).append(" = (").append(top).append(" << 16) >> 16;");
+                return stack;
+            case Opcodes.I2C:
+                out.append(top).append(" = ").append(top).append(" & 0xFFFF;");
+                return stack;
+            
+            case Opcodes.FCMPL:
+            case Opcodes.FCMPG:
+            case Opcodes.DCMPL:
+            case Opcodes.DCMPG:
+                boolean greater = opcode == Opcodes.FCMPG || opcode == Opcodes.DCMPG;
+                out.append(second).append(" = ").append(second).append(" > ").append(top).append(" ? 1 : ").append(second).append(" < ").append(top)
+                        .append(" ? -1 : ").append(second).append(" === ").append(top).append(" ? 0 : ").append(greater ? "1;" : "-1;");
+                return popped2 + 'I';
+            
+            case Opcodes.IFEQ:
+            case Opcodes.IFNE:
+            case Opcodes.IFLT:
+            case Opcodes.IFGE:
+            case Opcodes.IFGT:
+            case Opcodes.IFLE:
+                out.append("if(").append(condition(opcode, stack)).append(") ").append(jump(cases, ((JumpInsnNode)node).label));
+                return popped;
+            case Opcodes.IF_ICMPEQ:
+            case Opcodes.IF_ICMPNE:
+            case Opcodes.IF_ICMPLT:
+            case Opcodes.IF_ICMPGE:
+            case Opcodes.IF_ICMPGT:
+            case Opcodes.IF_ICMPLE:
+                out.append("if(").append(condition(opcode, stack)).append(") ").append(jump(cases, ((JumpInsnNode)node).label));
+                return popped2;
+            case Opcodes.GOTO:
+                out.append("pc = ").append(cases.get(((JumpInsnNode)node).label)).append("; continue;");
+                return stack;
+            case Opcodes.TABLESWITCH:
+                TableSwitchInsnNode table = (TableSwitchInsnNode)node;
+                out.append("switch(").append(top).append(") {");
+                for(int i=0; i<table.labels.size(); i++)
+                    out.append(" case ").append(table.min + i).append(": pc = ").append(cases.get(table.labels.get(i))).append("; continue;");
+                out.append(" default: pc = ").append(cases.get(table.dflt)).append("; continue; }");
+                return popped;
+            case Opcodes.LOOKUPSWITCH:
+                LookupSwitchInsnNode lookup = (LookupSwitchInsnNode)node;
+                out.append("switch(").append(top).append(") {");
+                for(int i=0; i<lookup.labels.size(); i++)
+                    out.append(" case ").append(lookup.keys.get(i)).append(": pc = ").append(cases.get(lookup.labels.get(i))).append("; continue;");
+                out.append(" default: pc = ").append(cases.get(lookup.dflt)).append("; continue; }");
+                return popped;
+            
+            case Opcodes.IRETURN:
+            case Opcodes.FRETURN:
+            case Opcodes.DRETURN:
+                out.append("return ").append(top).append(';');
+                return popped;
+            case Opcodes.RETURN:
+                out.append("return;");
+                return stack;
+        }
+        return null;
+    }
+    
+}
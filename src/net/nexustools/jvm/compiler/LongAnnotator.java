@@ -0,0 +1,109 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import com.google.gson.Gson;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Tags methods working with longs with a "longs" property, giving the
+ * local slots that hold them and the representation the runtime should
+ * use for the method.
+ *
+ * Methods that only add, subtract, compare, shift and mask get "pair",
+ * a high and low int each of which stays in int math. Multiplying,
+ * dividing and taking remainders is costly on pairs, so methods doing
+ * any of them get "bigint" instead.
+ *
+ * @author kate
+ */
+public class LongAnnotator extends MethodAnnotator {
+    public static final String PROPERTY = "longs";
+    
+    public LongAnnotator(ClassVisitor classVisitor, DescriptorWriter writer, Compiler.LabelConverter labelConverter) {
+        super(classVisitor, writer, labelConverter, PROPERTY);
+    }
+    
+    @Override
+    protected String annotate(MethodNode method) {
+        TreeSet<Integer> locals = new TreeSet();
+        int slot = (method.access & Opcodes.ACC_STATIC) == 0 ? 1 : 0;
+        for(Type arg : Type.getArgumentTypes(method.desc)) {
+            if(arg.getSort() == Type.LONG)
+                locals.add(slot);
+            slot += arg.getSize();
+        }
+        
+        boolean used = Type.getReturnType(method.desc).getSort() == Type.LONG || !locals.isEmpty();
+        boolean costly = false;
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext())
+            switch(node.getOpcode()) {
+                case Opcodes.LLOAD:
+                case Opcodes.LSTORE:
+                    locals.add(((VarInsnNode)node).var);
+                    used = true;
+                    break;
+                case Opcodes.LMUL:
+                case Opcodes.LDIV:
+                case Opcodes.LREM:
+                    costly = true;
+                    used = true;
+                    break;
+                case Opcodes.LDC:
+                    used |= ((LdcInsnNode)node).cst instanceof Long;
+                    break;
+                case Opcodes.LCONST_0:
+                case Opcodes.LCONST_1:
+                case Opcodes.LALOAD:
+                case Opcodes.LASTORE:
+                case Opcodes.LADD:
+                case Opcodes.LSUB:
+                case Opcodes.LNEG:
+                case Opcodes.LSHL:
+                case Opcodes.LSHR:
+                case Opcodes.LUSHR:
+                case Opcodes.LAND:
+                case Opcodes.LOR:
+                case Opcodes.LXOR:
+                case Opcodes.LCMP:
+                case Opcodes.I2L:
+                case Opcodes.F2L:
+                case Opcodes.D2L:
+                case Opcodes.L2I:
+                case Opcodes.L2F:
+                case Opcodes.L2D:
+                    used = true;
+            }
+        if(!used)
+            return null;
+        
+        Map<String, Object> longs = new LinkedHashMap();
+        longs.put("representation", costly ? "bigint" : "pair");
+        longs.put("locals", locals);
+        return new Gson().toJson(longs);
+    }
+    
+}
@@ -0,0 +1,86 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Collects each method before it is translated and attaches
+ * what {@link #annotate(MethodNode)} finds as a method property.
+ *
+ * Labels are passed on as they came in so the names given to
+ * them here are the ones the translator goes on to write.
+ *
+ * @author kate
+ */
+public abstract class MethodAnnotator extends ClassVisitor {
+    
+    public final String property;
+    protected final DescriptorWriter writer;
+    protected final Compiler.LabelConverter labelConverter;
+    public MethodAnnotator(ClassVisitor classVisitor, DescriptorWriter writer, Compiler.LabelConverter labelConverter, String property) {
+        super(Opcodes.ASM5, classVisitor);
+        this.writer = writer;
+        this.labelConverter = labelConverter;
+        this.property = property;
+    }
+    
+    /**
+     * @param method
+     * @return The property as JavaScript source, or null to leave the method alone
+     */
+    protected abstract String annotate(MethodNode method);
+    
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        final MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+        if(methodVisitor == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+            return methodVisitor;
+        
+        return new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions) {
+            private final Map<Label, LabelNode> labelNodes = new HashMap();
+            @Override
+            protected LabelNode getLabelNode(Label label) {
+                LabelNode labelNode = labelNodes.get(label);
+                if(labelNode == null)
+                    labelNodes.put(label, labelNode = new LabelNode(label));
+                return labelNode;
+            }
+            
+            @Override
+            public void visitEnd() {
+                String source = annotate(this);
+                if(source != null)
+                    try {
+                        writer.methodProperty(property, source);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                accept(methodVisitor);
+            }
+        };
+    }
+    
+}
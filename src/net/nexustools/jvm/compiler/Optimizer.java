@@ -0,0 +1,446 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Sits in front of the translating visitor and rewrites each method
+ * before it is translated, running the passes enabled in the config
+ * until none of them change anything.
+ *
+ * @author kate
+ */
+public class Optimizer extends ClassVisitor {
+    
+    public final Config.Optimizations passes;
+    public Optimizer(ClassVisitor classVisitor, Config.Optimizations passes) {
+        super(Opcodes.ASM5, classVisitor);
+        this.passes = passes;
+    }
+    
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        final MethodVisitor methodVisitor = super.visitMethod(access, name, desc, signature, exceptions);
+        if(methodVisitor == null || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0)
+            return methodVisitor;
+        
+        return new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions) {
+            @Override
+            public void visitEnd() {
+                int before = instructions.size();
+                optimize(this, passes);
+                if(Trace.enabled(Trace.DEBUG))
+                    Trace.log(Trace.DEBUG, "\tOptimized " + name + desc + " from " + before + " to " + instructions.size() + " nodes");
+                accept(methodVisitor);
+            }
+        };
+    }
+    
+    /**
+     * Runs the enabled passes over a method until none of them change anything.
+     *
+     * @param method
+     * @param passes
+     */
+    public static void optimize(MethodNode method, Config.Optimizations passes) {
+        boolean changed;
+        do {
+            changed = false;
+            if(passes.constantFolding)
+                changed |= foldConstants(method.instructions);
+            if(passes.redundantLoadStore)
+                changed |= removeRedundantLoadStore(method.instructions);
+            if(passes.deadCode)
+                changed |= removeDeadCode(method);
+            if(passes.unusedLabels)
+                changed |= pruneLabels(method);
+        } while(changed);
+    }
+    
+    private static Integer intValue(AbstractInsnNode node) {
+        if(node == null)
+            return null;
+        
+        int opcode = node.getOpcode();
+        if(opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5)
+            return opcode - Opcodes.ICONST_0;
+        if(opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH)
+            return ((IntInsnNode)node).operand;
+        if(opcode == Opcodes.LDC && ((LdcInsnNode)node).cst instanceof Integer)
+            return (Integer)((LdcInsnNode)node).cst;
+        return null;
+    }
+    
+    private static AbstractInsnNode pushInt(int value) {
+        if(value >= -1 && value <= 5)
+            return new InsnNode(Opcodes.ICONST_0 + value);
+        if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            return new IntInsnNode(Opcodes.BIPUSH, value);
+        if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            return new IntInsnNode(Opcodes.SIPUSH, value);
+        return new LdcInsnNode(value);
+    }
+    
+    private static Integer fold(int opcode, int a, int b) {
+        switch(opcode) {
+            case Opcodes.IADD:
+                return a + b;
+            case Opcodes.ISUB:
+                return a - b;
+            case Opcodes.IMUL:
+                return a * b;
+            case Opcodes.IDIV:
+                return b == 0 ? null : a / b;
+            case Opcodes.IREM:
+                return b == 0 ? null : a % b;
+            case Opcodes.IAND:
+                return a & b;
+            case Opcodes.IOR:
+                return a | b;
+            case Opcodes.IXOR:
+                return a ^ b;
+            case Opcodes.ISHL:
+                return a << b;
+            case Opcodes.ISHR:
+                return a >> b;
+            case Opcodes.IUSHR:
+                return a >>> b;
+        }
+        return null;
+    }
+    
+    private static Integer fold(int opcode, int a) {
+        switch(opcode) {
+            case Opcodes.INEG:
+                return -a;
+            case Opcodes.I2B:
+                return (int)(byte)a;
+            case Opcodes.I2C:
+                return (int)(char)a;
+            case Opcodes.I2S:
+                return (int)(short)a;
+        }
+        return null;
+    }
+    
+    private static Boolean compare(int opcode, int a, int b) {
+        switch(opcode) {
+            case Opcodes.IFEQ:
+            case Opcodes.IF_ICMPEQ:
+                return a == b;
+            case Opcodes.IFNE:
+            case Opcodes.IF_ICMPNE:
+                return a != b;
+            case Opcodes.IFLT:
+            case Opcodes.IF_ICMPLT:
+                return a < b;
+            case Opcodes.IFGE:
+            case Opcodes.IF_ICMPGE:
+                return a >= b;
+            case Opcodes.IFGT:
+            case Opcodes.IF_ICMPGT:
+                return a > b;
+            case Opcodes.IFLE:
+            case Opcodes.IF_ICMPLE:
+                return a <= b;
+        }
+        return null;
+    }
+    
+    /**
+     * Folds int arithmetic on constants, and branches on constants into gotos or nothing.
+     */
+    static boolean foldConstants(InsnList instructions) {
+        boolean changed = false;
+        for(AbstractInsnNode node = instructions.getFirst(); node != null; ) {
+            AbstractInsnNode next = node.getNext();
+            int opcode = node.getOpcode();
+            AbstractInsnNode first = node.getPrevious();
+            Integer b = intValue(first);
+            if(b == null) {
+                node = next;
+                continue;
+            }
+            
+            AbstractInsnNode second = null;
+            Integer folded = fold(opcode, b);
+            Boolean taken = opcode >= Opcodes.IFEQ && opcode <= Opcodes.IFLE ? compare(opcode, b, 0) : null;
+            if(folded == null && taken == null) {
+                second = first.getPrevious();
+                Integer a = intValue(second);
+                if(a != null) {
+                    folded = fold(opcode, a, b);
+                    taken = opcode >= Opcodes.IF_ICMPEQ && opcode <= Opcodes.IF_ICMPLE ? compare(opcode, a, b) : null;
+                }
+                if(folded == null && taken == null) {
+                    node = next;
+                    continue;
+                }
+            }
+            
+            if(second != null)
+                instructions.remove(second);
+            instructions.remove(first);
+            if(folded != null)
+                instructions.set(node, pushInt(folded));
+            else if(taken)
+                instructions.set(node, new JumpInsnNode(Opcodes.GOTO, ((JumpInsnNode)node).label));
+            else
+                instructions.remove(node);
+            node = next;
+            changed = true;
+        }
+        return changed;
+    }
+    
+    private static int popFor(AbstractInsnNode node) {
+        int opcode = node.getOpcode();
+        switch(opcode) {
+            case Opcodes.LCONST_0:
+            case Opcodes.LCONST_1:
+            case Opcodes.DCONST_0:
+            case Opcodes.DCONST_1:
+            case Opcodes.LLOAD:
+            case Opcodes.DLOAD:
+            case Opcodes.DUP2:
+                return Opcodes.POP2;
+            case Opcodes.LDC:
+                Object cst = ((LdcInsnNode)node).cst;
+                return cst instanceof Long || cst instanceof Double ? Opcodes.POP2 : Opcodes.POP;
+            case Opcodes.ACONST_NULL:
+            case Opcodes.FCONST_0:
+            case Opcodes.FCONST_1:
+            case Opcodes.FCONST_2:
+            case Opcodes.BIPUSH:
+            case Opcodes.SIPUSH:
+            case Opcodes.ILOAD:
+            case Opcodes.FLOAD:
+            case Opcodes.ALOAD:
+            case Opcodes.DUP:
+                return Opcodes.POP;
+        }
+        return opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5 ? Opcodes.POP : -1;
+    }
+    
+    /**
+     * Removes values pushed only to be popped, locals loaded only to be
+     * stored back, and temporaries stored only to be loaded straight back.
+     */
+    static boolean removeRedundantLoadStore(InsnList instructions) {
+        Map<Integer, Integer> reads = new HashMap();
+        for(AbstractInsnNode node = instructions.getFirst(); node != null; node = node.getNext()) {
+            int var;
+            if(node instanceof VarInsnNode && (node.getOpcode() <= Opcodes.ALOAD || node.getOpcode() == Opcodes.RET))
+                var = ((VarInsnNode)node).var;
+            else if(node instanceof IincInsnNode)
+                var = ((IincInsnNode)node).var;
+            else
+                continue;
+            
+            Integer count = reads.get(var);
+            reads.put(var, count == null ? 1 : count + 1);
+        }
+        
+        boolean changed = false;
+        for(AbstractInsnNode node = instructions.getFirst(); node != null; ) {
+            AbstractInsnNode next = node.getNext();
+            if(next == null)
+                break;
+            
+            boolean redundant = false;
+            if(next.getOpcode() == Opcodes.POP || next.getOpcode() == Opcodes.POP2)
+                redundant = popFor(node) == next.getOpcode();
+            else if(node instanceof VarInsnNode && next instanceof VarInsnNode && ((VarInsnNode)node).var == ((VarInsnNode)next).var) {
+                int opcode = node.getOpcode(), nextOpcode = next.getOpcode();
+                if(opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD)
+                    redundant = nextOpcode == opcode + (Opcodes.ISTORE - Opcodes.ILOAD);
+                else if(opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE && nextOpcode == opcode - (Opcodes.ISTORE - Opcodes.ILOAD))
+                    redundant = reads.get(((VarInsnNode)node).var) == 1; // The value stays on the stack instead
+            }
+            
+            if(redundant) {
+                AbstractInsnNode previous = node.getPrevious();
+                instructions.remove(node);
+                instructions.remove(next);
+                node = previous == null ? instructions.getFirst() : previous;
+                changed = true;
+            } else
+                node = next;
+        }
+        return changed;
+    }
+    
+    private static boolean isTerminal(int opcode) {
+        return opcode == Opcodes.GOTO || opcode == Opcodes.ATHROW || opcode == Opcodes.RET ||
+                opcode == Opcodes.TABLESWITCH || opcode == Opcodes.LOOKUPSWITCH ||
+                (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN);
+    }
+    
+    /**
+     * Removes instructions no path from the start or an exception handler
+     * reaches, try blocks left empty, and gotos to the next instruction.
+     */
+    static boolean removeDeadCode(MethodNode method) {
+        InsnList instructions = method.instructions;
+        if(instructions.size() == 0)
+            return false;
+        
+        boolean changed = false;
+        for(AbstractInsnNode node = instructions.getFirst(); node != null; ) {
+            AbstractInsnNode next = node.getNext();
+            if(node.getOpcode() == Opcodes.GOTO) {
+                LabelNode target = ((JumpInsnNode)node).label;
+                AbstractInsnNode following = next;
+                while(following != null && following.getOpcode() < 0 && following != target)
+                    following = following.getNext();
+                if(following == target) {
+                    instructions.remove(node);
+                    changed = true;
+                }
+            }
+            node = next;
+        }
+        
+        Set<AbstractInsnNode> reachable = new HashSet();
+        LinkedList<AbstractInsnNode> queue = new LinkedList();
+        queue.add(instructions.getFirst());
+        boolean handlersChanged;
+        do {
+            while(!queue.isEmpty()) {
+                AbstractInsnNode node = queue.removeFirst();
+                while(node != null && reachable.add(node)) {
+                    if(node instanceof JumpInsnNode)
+                        queue.add(((JumpInsnNode)node).label);
+                    else if(node instanceof TableSwitchInsnNode) {
+                        queue.add(((TableSwitchInsnNode)node).dflt);
+                        queue.addAll(((TableSwitchInsnNode)node).labels);
+                    } else if(node instanceof LookupSwitchInsnNode) {
+                        queue.add(((LookupSwitchInsnNode)node).dflt);
+                        queue.addAll(((LookupSwitchInsnNode)node).labels);
+                    }
+                    
+                    if(isTerminal(node.getOpcode()))
+                        break;
+                    node = node.getNext();
+                }
+            }
+            
+            handlersChanged = false;
+            for(TryCatchBlockNode block : method.tryCatchBlocks) {
+                if(reachable.contains(block.handler))
+                    continue;
+                
+                for(AbstractInsnNode node = block.start; node != null && node != block.end; node = node.getNext())
+                    if(node.getOpcode() >= 0 && reachable.contains(node)) {
+                        queue.add(block.handler);
+                        handlersChanged = true;
+                        break;
+                    }
+            }
+        } while(handlersChanged);
+        
+        for(AbstractInsnNode node = instructions.getFirst(); node != null; ) {
+            AbstractInsnNode next = node.getNext();
+            if(!reachable.contains(node) && (node.getOpcode() >= 0 || node instanceof FrameNode)) {
+                instructions.remove(node);
+                changed = true;
+            }
+            node = next;
+        }
+        
+        for(Iterator<TryCatchBlockNode> it = method.tryCatchBlocks.iterator(); it.hasNext(); ) {
+            TryCatchBlockNode block = it.next();
+            boolean empty = true;
+            for(AbstractInsnNode node = block.start; node != null && node != block.end; node = node.getNext())
+                if(node.getOpcode() >= 0) {
+                    empty = false;
+                    break;
+                }
+            if(empty || !reachable.contains(block.handler)) {
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+    
+    /**
+     * Removes the line numbers and frames the translator ignores,
+     * and then every label nothing refers to.
+     */
+    static boolean pruneLabels(MethodNode method) {
+        Set<LabelNode> used = new HashSet();
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext()) {
+            if(node instanceof JumpInsnNode)
+                used.add(((JumpInsnNode)node).label);
+            else if(node instanceof TableSwitchInsnNode) {
+                used.add(((TableSwitchInsnNode)node).dflt);
+                used.addAll(((TableSwitchInsnNode)node).labels);
+            } else if(node instanceof LookupSwitchInsnNode) {
+                used.add(((LookupSwitchInsnNode)node).dflt);
+                used.addAll(((LookupSwitchInsnNode)node).labels);
+            }
+        }
+        for(TryCatchBlockNode block : method.tryCatchBlocks) {
+            used.add(block.start);
+            used.add(block.end);
+            used.add(block.handler);
+        }
+        if(method.localVariables != null)
+            for(LocalVariableNode local : method.localVariables) {
+                used.add(local.start);
+                used.add(local.end);
+            }
+        
+        boolean changed = false;
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null; ) {
+            AbstractInsnNode next = node.getNext();
+            if(node instanceof LineNumberNode || node instanceof FrameNode || (node instanceof LabelNode && !used.contains(node))) {
+                method.instructions.remove(node);
+                changed = true;
+            }
+            node = next;
+        }
+        return changed;
+    }
+    
+}
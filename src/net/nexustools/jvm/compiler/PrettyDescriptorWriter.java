@@ -0,0 +1,707 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import com.google.gson.Gson;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import static net.nexustools.jvm.compiler.Compiler.convertRuntime;
+import static net.nexustools.jvm.compiler.Compiler.convertSignature;
+import static net.nexustools.jvm.compiler.Compiler.methodSignature;
+import static net.nexustools.jvm.compiler.Compiler.nameForOpcode;
+import static net.nexustools.jvm.compiler.Compiler.splitArguments;
+import static net.nexustools.jvm.compiler.Compiler.writeAccess;
+
+/**
+ * Writes descriptors as indented javascript objects,
+ * passed straight to the runtime's class loader.
+ *
+ * @author kate
+ */
+public class PrettyDescriptorWriter extends DescriptorWriter {
+    private final BufferedWriter bw;
+    private int methodAccess;
+    private final StringBuilder methodProperties = new StringBuilder();
+    public PrettyDescriptorWriter(Writer writer) {
+        bw = new BufferedWriter(writer);
+    }
+    
+    @Override
+    public void beginClass(String name, String[] interfaces, String parent) throws IOException {
+        bw.append("(function JVM_");
+        bw.append(name.replaceAll("\\W", "_"));
+        bw.append("($JVM, JVM){\n\t$JVM.ClassLoader.defineClass(\"");
+        bw.append(name);
+        bw.append("\", [");
+        
+        for(int i=0; i<interfaces.length; i++) {
+            if(i > 0)
+                bw.append(',');
+            bw.append('\"');
+            bw.append(convertRuntime(interfaces[i]));
+            bw.append('\"');
+        }
+        
+        bw.append("], ");
+        if(parent != null) {
+            bw.append('\"');
+            bw.append(convertRuntime(parent));
+            bw.append('\"');
+        } else
+            bw.append("null");
+        bw.append(", [\n");
+    }
+    
+    @Override
+    public void field(String name, String desc, Object value, int access) throws IOException {
+        bw.append("\t\t{\n");
+        
+        bw.append("\t\t\t\"type\": \"field\",\n");
+        
+        bw.append("\t\t\t\"name\": \"");
+        bw.append(name);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\"signature\": ");
+        bw.append(convertSignature(desc));
+        bw.append(",\n");
+        
+        if(value instanceof String) {
+            bw.append("\t\t\t\"stringValue\": \"");
+            bw.append(((String)value).replace("\n", "\\n").replace("\"", "\\\""));
+            bw.append("\",\n");
+        } else if(value instanceof Number) {
+            bw.append("\t\t\t\"numericValue\": ");
+            bw.append(String.valueOf((Number)value));
+            bw.append(",\n");
+            if(value instanceof Long) {
+                bw.append("\t\t\t\"longValue\": ");
+                bw.append(longValue((Long)value));
+                bw.append(",\n");
+            }
+        }
+        
+        writeAccess(access, bw);
+        bw.append("\t\t},\n");
+    }
+    
+    @Override
+    public void beginMethod(String name, String desc, String[] exceptions, int access, String nativeImplementation) throws IOException {
+        bw.append("\t\t{\n");
+        
+        bw.append("\t\t\t\"type\": \"method\",\n");
+        
+        bw.append("\t\t\t\"name\": \"");
+        bw.append(name);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\"signature\": \"");
+        bw.append(convertRuntime(desc));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\"sigparts\": {\n");
+        bw.append("\t\t\t\t\"return\": ");
+        
+        Matcher matcher = methodSignature.matcher(desc);
+        if(!matcher.matches())
+            throw new IllegalArgumentException("Corrupt or invalid method signature: " + desc);
+        
+        bw.append(convertSignature(matcher.group(2)));
+        bw.append(",\n");
+        
+        String args = matcher.group(1);
+        if(args != null) {
+            bw.append("\t\t\t\t\"args\": [\n");
+            
+            String[] argsl = splitArguments(args);
+            for(int i=0; i<argsl.length; i++) {
+                bw.append("\t\t\t\t\t");
+                bw.append(convertSignature(argsl[i]));
+                if(i < argsl.length-1)
+                    bw.append(',');
+                bw.append('\n');
+            }
+            
+            bw.append("\t\t\t\t]\n");
+        } else
+            bw.append("\t\t\t\t\"args\": []\n");
+        bw.append("\t\t\t},\n");
+        
+        if(exceptions != null) {
+            bw.append("\t\t\t\"exceptions\": [\n");
+            for(int i=0; i<exceptions.length; i++) {
+                bw.append("\t\t\t\t\"");
+                bw.append(convertRuntime(exceptions[i]));
+                bw.append('"');
+                if(i<exceptions.length-1)
+                    bw.append(',');
+                bw.append('\n');
+            }
+            bw.append("\t\t\t],\n");
+        }
+        
+        if(nativeImplementation != null) {
+            bw.append("\t\t\t\"implementation\": \"");
+            bw.append(nativeImplementation);
+            bw.append("\",\n");
+            
+            writeAccess(access, bw);
+            bw.append("\t\t},\n");
+            return;
+        }
+        
+        bw.append("\t\t\t\"implementation\": [\n");
+        methodAccess = access;
+    }
+    
+    @Override
+    public void endMethod() throws IOException {
+        bw.append("\t\t\t\t{\n");
+        bw.append("\t\t\t\t\t\"type\": \"end\"\n");
+        bw.append("\t\t\t\t}\n");
+        
+        bw.append("\t\t\t],\n");
+        
+        bw.append(methodProperties);
+        methodProperties.setLength(0);
+        
+        writeAccess(methodAccess, bw);
+        
+        bw.append("\t\t},\n");
+    }
+    
+    @Override
+    public void methodProperty(String key, String source) throws IOException {
+        methodProperties.append("\t\t\t\"");
+        methodProperties.append(key);
+        methodProperties.append("\": ");
+        methodProperties.append(source.replace("\n", "\n\t\t\t"));
+        methodProperties.append(",\n");
+    }
+    
+    /**
+     * Longs go beyond what a double holds exactly,
+     * so they also get written as their high and low halves.
+     */
+    private static String longValue(long value) {
+        return "[" + (int)(value >>> 32) + ", " + (int)value + "]";
+    }
+    
+    private void beginInsn(String type) throws IOException {
+        bw.append("\t\t\t\t{\n");
+        bw.append("\t\t\t\t\t\"type\": \"");
+        bw.append(type);
+        bw.append("\",\n");
+    }
+    
+    @Override
+    public void tryCatch(String start, String end, String handler, String type) throws IOException {
+        beginInsn("try");
+        
+        bw.append("\t\t\t\t\t\"start\": \"");
+        bw.append(start);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"end\": \"");
+        bw.append(end);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"handler\": \"");
+        bw.append(handler);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"catch\": \"");
+        bw.append(type);
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void methodInsn(int opcode, String owner, String name, String desc, boolean itf, String target) throws IOException {
+        beginInsn("method");
+        
+        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
+        bw.append(nameForOpcode(opcode));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"owner\": ");
+        bw.append(convertSignature(owner));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"name\": \"");
+        bw.append(name);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"signature\": {\n");
+        bw.append("\t\t\t\t\t\t\"raw\": \"");
+        bw.append(convertRuntime(desc));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\t\"return\": ");
+        
+        Matcher matcher = methodSignature.matcher(desc);
+        if(!matcher.matches())
+            throw new IllegalArgumentException("Corrupt or invalid method signature: " + desc);
+        
+        bw.append(convertSignature(matcher.group(2)));
+        bw.append(",\n");
+        
+        String args = matcher.group(1);
+        if(args != null) {
+            bw.append("\t\t\t\t\t\t\"args\": [\n");
+            
+            String[] argsl = splitArguments(args);
+            for(int i=0; i<argsl.length; i++) {
+                bw.append("\t\t\t\t\t\t\t");
+                bw.append(convertSignature(argsl[i]));
+                if(i < argsl.length-1)
+                    bw.append(',');
+                bw.append('\n');
+            }
+            
+            bw.append("\t\t\t\t\t\t]\n");
+        } else
+            bw.append("\t\t\t\t\t\t\"args\": []\n");
+        bw.append("\t\t\t\t\t},\n");
+        
+        bw.append("\t\t\t\t\t\"interface\": ");
+        bw.append(itf ? "true" : "false");
+        if(target != null) {
+            bw.append(",\n\t\t\t\t\t\"target\": ");
+            bw.append(convertSignature(target));
+        }
+        bw.append("\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void lambda(String name, String desc, String samDesc, String instantiatedDesc, int implOpcode, String implOwner, String implName, String implDesc, boolean implItf, String[] interfaces, String[] bridges) throws IOException {
+        beginInsn("lambda");
+        
+        Matcher matcher = methodSignature.matcher(desc);
+        if(!matcher.matches())
+            throw new IllegalArgumentException("Corrupt or invalid method signature: " + desc);
+        
+        bw.append("\t\t\t\t\t\"interface\": ");
+        bw.append(convertSignature(matcher.group(2).substring(1, matcher.group(2).length()-1)));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"name\": \"");
+        bw.append(name);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"signature\": \"");
+        bw.append(convertRuntime(samDesc));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"instantiated\": \"");
+        bw.append(convertRuntime(instantiatedDesc));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"captured\": [");
+        if(matcher.group(1) != null) {
+            String[] captured = splitArguments(matcher.group(1));
+            for(int i=0; i<captured.length; i++) {
+                if(i > 0)
+                    bw.append(", ");
+                bw.append(convertSignature(captured[i]));
+            }
+        }
+        bw.append("],\n");
+        
+        bw.append("\t\t\t\t\t\"implementation\": {\n");
+        bw.append("\t\t\t\t\t\t\"opcode\": JVM.Opcodes.");
+        bw.append(nameForOpcode(implOpcode));
+        bw.append(",\n");
+        bw.append("\t\t\t\t\t\t\"owner\": ");
+        bw.append(convertSignature(implOwner));
+        bw.append(",\n");
+        bw.append("\t\t\t\t\t\t\"name\": \"");
+        bw.append(implName);
+        bw.append("\",\n");
+        bw.append("\t\t\t\t\t\t\"signature\": \"");
+        bw.append(convertRuntime(implDesc));
+        bw.append("\",\n");
+        bw.append("\t\t\t\t\t\t\"interface\": ");
+        bw.append(implItf ? "true" : "false");
+        bw.append("\n");
+        bw.append("\t\t\t\t\t}");
+        
+        if(interfaces.length > 0) {
+            bw.append(",\n\t\t\t\t\t\"interfaces\": [");
+            for(int i=0; i<interfaces.length; i++) {
+                if(i > 0)
+                    bw.append(", ");
+                bw.append(convertSignature(interfaces[i]));
+            }
+            bw.append("]");
+        }
+        if(bridges.length > 0) {
+            bw.append(",\n\t\t\t\t\t\"bridges\": [");
+            for(int i=0; i<bridges.length; i++) {
+                if(i > 0)
+                    bw.append(", ");
+                bw.append('"');
+                bw.append(convertRuntime(bridges[i]));
+                bw.append('"');
+            }
+            bw.append("]");
+        }
+        bw.append("\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void concat(String desc, Object[] parts) throws IOException {
+        beginInsn("concat");
+        
+        Matcher matcher = methodSignature.matcher(desc);
+        if(!matcher.matches())
+            throw new IllegalArgumentException("Corrupt or invalid method signature: " + desc);
+        
+        bw.append("\t\t\t\t\t\"args\": [");
+        if(matcher.group(1) != null) {
+            String[] args = splitArguments(matcher.group(1));
+            for(int i=0; i<args.length; i++) {
+                if(i > 0)
+                    bw.append(", ");
+                bw.append(convertSignature(args[i]));
+            }
+        }
+        bw.append("],\n");
+        
+        bw.append("\t\t\t\t\t\"parts\": [");
+        for(int i=0; i<parts.length; i++) {
+            if(i > 0)
+                bw.append(", ");
+            if(parts[i] instanceof String)
+                bw.append(new Gson().toJson(parts[i]));
+            else
+                bw.append(String.valueOf(parts[i]));
+        }
+        bw.append("]\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void newTypedArray(String desc, int dims, String typedArray) throws IOException {
+        beginInsn("typedarray");
+        
+        bw.append("\t\t\t\t\t\"desc\": \"");
+        bw.append(desc);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"size\": \"");
+        bw.append(String.valueOf(dims));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"typedArray\": \"");
+        bw.append(typedArray);
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void tableSwitch(int min, int max, String dflt, String[] labels) throws IOException {
+        beginInsn("tableSwitch");
+        
+        bw.append("\t\t\t\t\t\"min\": \"");
+        bw.append(String.valueOf(min));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"max\": \"");
+        bw.append(String.valueOf(max));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"default\": \"");
+        bw.append(dflt);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"jumps\": [\n");
+        for(int i=0; i<labels.length; i++) {
+            bw.append("\t\t\t\t\t\t\"");
+            bw.append(labels[i]);
+            bw.append('"');
+            if(i < labels.length-1)
+                bw.append(',');
+            bw.append('\n');
+        }
+        bw.append("\t\t\t\t\t]\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void multiANewArray(String desc, int dims) throws IOException {
+        beginInsn("array");
+        
+        bw.append("\t\t\t\t\t\"desc\": \"");
+        bw.append(desc);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"size\": \"");
+        bw.append(String.valueOf(dims));
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void iinc(int var, int increment) throws IOException {
+        beginInsn("iinc");
+        
+        bw.append("\t\t\t\t\t\"index\": \"");
+        bw.append(String.valueOf(var));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"by\": \"");
+        bw.append(String.valueOf(increment));
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void lookupSwitch(String dflt, int[] keys, String[] labels) throws IOException {
+        beginInsn("switch");
+        
+        if(dflt != null) {
+            bw.append("\t\t\t\t\t\"default\": \"");
+            bw.append(dflt);
+            bw.append("\",\n");
+        }
+        
+        bw.append("\t\t\t\t\t\"keys\": [\n");
+        for(int i=0; i<keys.length; i++) {
+            bw.append("\t\t\t\t\t\t");
+            bw.append(String.valueOf(keys[i]));
+            if(i < keys.length-1)
+                bw.append(',');
+            bw.append('\n');
+        }
+        bw.append("\t\t\t\t\t],\n");
+        
+        bw.append("\t\t\t\t\t\"jumps\": [\n");
+        for(int i=0; i<labels.length; i++) {
+            bw.append("\t\t\t\t\t\t\"");
+            bw.append(labels[i]);
+            bw.append('"');
+            if(i < labels.length-1)
+                bw.append(',');
+            bw.append('\n');
+        }
+        bw.append("\t\t\t\t\t]\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void localVariable(String name, String desc, String start, String end, int index) throws IOException {
+        beginInsn("declare");
+        
+        bw.append("\t\t\t\t\t\"name\": \"");
+        bw.append(String.valueOf(name));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"signature\": ");
+        bw.append(convertSignature(desc));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"index\": \"");
+        bw.append(String.valueOf(index));
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"start\": \"");
+        bw.append(start);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"end\": \"");
+        bw.append(end);
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void parameter(String name, int access) throws IOException {
+        beginInsn("arg");
+        
+        bw.append("\t\t\t\t\t\"name\": \"");
+        bw.append(name);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"access\": \"");
+        bw.append(String.valueOf(access));
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void varInsn(int opcode, int var) throws IOException {
+        beginInsn("var");
+        
+        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
+        bw.append(nameForOpcode(opcode));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"index\": \"");
+        bw.append(String.valueOf(var));
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void typeInsn(int opcode, String type) throws IOException {
+        beginInsn("type");
+        
+        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
+        bw.append(nameForOpcode(opcode));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"signature\": ");
+        bw.append(convertSignature(type));
+        bw.append('\n');
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void ldc(Object cst) throws IOException {
+        beginInsn("ldc");
+        
+        if(cst instanceof String) {
+            bw.append("\t\t\t\t\t\"stringValue\": ");
+            bw.append(new Gson().toJson((String)cst));
+            bw.append("\n");
+        } else if(cst instanceof Number) {
+            bw.append("\t\t\t\t\t\"numericValue\": ");
+            bw.append(String.valueOf((Number)cst));
+            if(cst instanceof Long) {
+                bw.append(",\n\t\t\t\t\t\"longValue\": ");
+                bw.append(longValue((Long)cst));
+            }
+            bw.append("\n");
+        } else {
+            bw.append("\t\t\t\t\t\"objectRef\": ");
+            bw.append(convertSignature(((org.objectweb.asm.Type)cst).getInternalName()));
+            bw.append("\n");
+        }
+        
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void label(String name) throws IOException {
+        beginInsn("label");
+        
+        bw.append("\t\t\t\t\t\"name\": \"");
+        bw.append(name);
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void jumpInsn(int opcode, String label) throws IOException {
+        beginInsn("jump");
+        
+        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
+        bw.append(nameForOpcode(opcode));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"name\": \"");
+        bw.append(label);
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void insn(int opcode) throws IOException {
+        beginInsn("insn");
+        
+        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
+        bw.append(nameForOpcode(opcode));
+        bw.append("\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void intInsn(int opcode, int operand) throws IOException {
+        beginInsn("int");
+        
+        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
+        bw.append(nameForOpcode(opcode));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"operand\": \"");
+        bw.append(String.valueOf(operand));
+        bw.append("\"\n");
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void fieldInsn(int opcode, String owner, String name, String desc) throws IOException {
+        beginInsn("field");
+        
+        bw.append("\t\t\t\t\t\"opcode\": JVM.Opcodes.");
+        bw.append(nameForOpcode(opcode));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"class\": ");
+        bw.append(convertSignature(owner));
+        bw.append(",\n");
+        
+        bw.append("\t\t\t\t\t\"name\": \"");
+        bw.append(name);
+        bw.append("\",\n");
+        
+        bw.append("\t\t\t\t\t\"signature\": ");
+        bw.append(convertSignature(desc));
+        bw.append('\n');
+        
+        bw.append("\t\t\t\t},\n");
+    }
+    
+    @Override
+    public void endClass(List<String> references) throws IOException {
+        bw.append("\t\t{\n");
+        bw.append("\t\t\t\"type\": \"references\",\n");
+        bw.append("\t\t\t\"value\": [\n");
+        
+        List<String> written = new ArrayList();
+        for(int i=0; i<references.size(); i++) {
+            String ref = convertRuntime(references.get(i));
+            if(written.contains(ref))
+                continue;
+            written.add(ref);
+            
+            bw.append("\t\t\t\t\"");
+            bw.append(ref);
+            bw.append('"');
+            if(i < references.size()-1)
+                bw.append(',');
+            bw.append('\n');
+        }
+        bw.append("\t\t\t]\n");
+        bw.append("\t\t}\n");
+        bw.append("\t]);\n");
+        bw.append("})($currentJVM, JVM);");
+    }
+    
+    @Override
+    public void close() throws IOException {
+        bw.close();
+    }
+    
+}
@@ -0,0 +1,568 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Works out which methods can ever run, starting from the roots and
+ * following calls, with virtual calls dispatched to every instantiated
+ * class that could receive them.
+ *
+ * Built-in classes are opaque, so methods an instantiated class overrides
+ * from one are assumed to be called. Roots and classes with natives
+ * keep every method.
+ * 
+ * Instances are assumed to come from NEW, invokedynamic or the roots,
+ * along with classes with natives, which may construct themselves. Once
+ * Class.newInstance, Constructor.newInstance or deserialization can run,
+ * every class loaded is assumed to be instantiated as well. Classes only
+ * created by the natives of other classes, or by reflection on a class
+ * that is never loaded by name, have to be listed as additional classes.
+ *
+ * Once analysed, the instantiated classes also tell which virtual and
+ * interface calls can only ever reach one implementation. Interfaces
+ * implemented at runtime through invokedynamic, like lambdas, and types
+ * from built-ins never have a single known implementation.
+ *
+ * @author kate
+ */
+public class Reachability {
+    public static final String INITIALIZER = "<clinit>()V";
+    private static final String[] OBJECT_METHODS = {
+        "equals(Ljava/lang/Object;)Z",
+        "hashCode()I",
+        "toString()Ljava/lang/String;",
+        "clone()Ljava/lang/Object;",
+        "finalize()V"
+    };
+    
+    private static final Set<String> REFLECTIVE = new HashSet(Arrays.asList(
+        "java/lang/Class.newInstance()Ljava/lang/Object;",
+        "java/lang/reflect/Constructor.newInstance([Ljava/lang/Object;)Ljava/lang/Object;",
+        "java/io/ObjectInputStream.readObject()Ljava/lang/Object;"
+    ));
+    
+    private static class Use {
+        public final int opcode;
+        public final String owner;
+        public final String method;
+        public Use(int opcode, String owner, String method) {
+            this.opcode = opcode;
+            this.owner = owner;
+            this.method = method;
+        }
+    }
+    
+    private static class ClassInfo {
+        public final String parent;
+        public final String[] interfaces;
+        public final boolean hasNatives;
+        public final Map<String, Integer> methods = new LinkedHashMap();
+        public final Map<String, List<Use>> bodies = new HashMap();
+        public ClassInfo(String parent, String[] interfaces, boolean hasNatives) {
+            this.parent = parent;
+            this.interfaces = interfaces;
+            this.hasNatives = hasNatives;
+        }
+    }
+    
+    private final Compiler compiler;
+    private final Map<String, ClassInfo> classes = new HashMap();
+    private final Set<String> missing = new HashSet();
+    private final Map<String, Set<String>> live = new HashMap();
+    private final List<String[]> pending = new ArrayList();
+    private final Set<String> touched = new HashSet();
+    private final Set<String> instantiated = new LinkedHashSet();
+    private final Set<String> virtualCalls = new HashSet();
+    private final List<String[]> virtualCallList = new ArrayList();
+    private final Set<String> generated = new HashSet(); // Types invokedynamic creates instances of
+    private boolean reflective; // Whether reflection can create instances of any loaded class
+    private final Map<String, String> targets = new HashMap();
+    public Reachability(Compiler compiler) {
+        this.compiler = compiler;
+    }
+    
+    /**
+     * Follows everything reachable from the given roots.
+     *
+     * @param roots Raw classnames
+     * @return this
+     * @throws IOException
+     */
+    public Reachability analyze(List<String> roots) throws IOException {
+        for(String root : roots) {
+            String runtimeClassname = Compiler.convertRuntime(root);
+            ClassInfo info = info(runtimeClassname);
+            if(info == null)
+                continue;
+            
+            touch(runtimeClassname);
+            instantiate(runtimeClassname);
+            keepAll(runtimeClassname, info);
+        }
+        
+        while(!pending.isEmpty()) {
+            String[] method = pending.remove(pending.size()-1);
+            List<Use> uses = classes.get(method[0]).bodies.get(method[1]);
+            if(uses != null)
+                for(Use use : uses)
+                    follow(use);
+        }
+        
+        if(Trace.enabled(Trace.INFO)) {
+            int total = 0, reachable = 0;
+            for(Map.Entry<String, ClassInfo> entry : classes.entrySet()) {
+                total += entry.getValue().methods.size();
+                Set<String> methods = live.get(entry.getKey());
+                if(methods != null)
+                    reachable += methods.size();
+            }
+            Trace.log(Trace.INFO, "Reachable methods: " + reachable + " of " + total + " in " + live.size() + " classes");
+        }
+        return this;
+    }
+    
+    /**
+     * @param runtimeClassname
+     * @param name
+     * @param desc
+     * @return Whether the method can ever run, classes that were never analysed keep everything
+     */
+    public boolean isReachable(String runtimeClassname, String name, String desc) {
+        if(!classes.containsKey(runtimeClassname))
+            return true;
+        
+        Set<String> methods = live.get(runtimeClassname);
+        return methods != null && methods.contains(name + desc);
+    }
+    
+    /**
+     * @param runtimeClassname
+     * @return The reachable methods of a class in a stable order, to tell when they change
+     */
+    public String describe(String runtimeClassname) {
+        if(!classes.containsKey(runtimeClassname))
+            return "*";
+        
+        Set<String> methods = live.get(runtimeClassname);
+        return methods == null ? "" : new TreeSet(methods).toString();
+    }
+    
+    /**
+     * @param owner The class or interface a virtual or interface call names
+     * @param method Name and descriptor
+     * @return The only class whose implementation the call can run, or null if there may be several or it is not known
+     */
+    public synchronized String target(String owner, String method) {
+        String key = owner + '.' + method;
+        if(targets.containsKey(key))
+            return targets.get(key);
+        
+        String target;
+        try {
+            target = findTarget(owner, method);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        targets.put(key, target);
+        return target;
+    }
+    
+    /**
+     * @param runtimeClassname
+     * @return The targets of the calls a class makes in a stable order, to tell when they change
+     */
+    public synchronized String describeTargets(String runtimeClassname) {
+        ClassInfo info;
+        try {
+            info = info(runtimeClassname);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        if(info == null)
+            return "";
+        
+        Set<String> described = new TreeSet();
+        for(List<Use> uses : info.bodies.values())
+            for(Use use : uses)
+                if(use.opcode == Opcodes.INVOKEVIRTUAL)
+                    described.add(use.owner + '.' + use.method + '=' + target(use.owner, use.method));
+        return described.toString();
+    }
+    
+    private String findTarget(String owner, String method) throws IOException {
+        if(info(owner) == null)
+            return null; // The runtime may have implementations of its own
+        for(String type : generated)
+            if(isSubtype(type, owner))
+                return null;
+        
+        String target = null;
+        for(String runtimeClassname : instantiated) {
+            if(!isSubtype(runtimeClassname, owner))
+                continue;
+            
+            String implementation = implementation(runtimeClassname, method);
+            if(implementation == null || (target != null && !target.equals(implementation)))
+                return null;
+            target = implementation;
+        }
+        return target;
+    }
+    
+    /**
+     * @return The class declaring the implementation an instance of the given
+     * class would run, or null if it is a default method or comes from a built-in
+     */
+    private String implementation(String runtimeClassname, String method) throws IOException {
+        for(String current = runtimeClassname; current != null; ) {
+            ClassInfo info = info(current);
+            if(info == null)
+                return null;
+            
+            Integer access = info.methods.get(method);
+            if(access != null && (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) == 0)
+                return current;
+            current = info.parent;
+        }
+        return null;
+    }
+    
+    private ClassInfo info(String runtimeClassname) throws IOException {
+        ClassInfo info = classes.get(runtimeClassname);
+        if(info != null || missing.contains(runtimeClassname))
+            return info;
+        
+        String classname = Compiler.resolveClassname(runtimeClassname);
+        File file = compiler.resolve(classname + ".class");
+        if(compiler.isBuiltIn(runtimeClassname) || !file.exists()) {
+            missing.add(runtimeClassname);
+            return null;
+        }
+        
+        ClassReader reader = new ClassReader(Compiler.readBytes(file));
+        String[] interfaces = reader.getInterfaces();
+        for(int i=0; i<interfaces.length; i++)
+            interfaces[i] = Compiler.convertRuntime(interfaces[i]);
+        String parent = reader.getSuperName() == null ? null : Compiler.convertRuntime(reader.getSuperName());
+        final ClassInfo created = new ClassInfo(parent, interfaces, compiler.resolve(classname + ".native.js").exists());
+        
+        reader.accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                final String method = name + desc;
+                final List<Use> uses = new ArrayList();
+                created.methods.put(method, access);
+                created.bodies.put(method, uses);
+                
+                return new MethodVisitor(Opcodes.ASM5) {
+                    private void type(Type type) {
+                        while(type.getSort() == Type.ARRAY)
+                            type = type.getElementType();
+                        if(type.getSort() == Type.OBJECT)
+                            uses.add(new Use(Opcodes.NOP, Compiler.convertRuntime(type.getInternalName()), null));
+                    }
+                    
+                    private void handle(Handle handle) {
+                        String owner = Compiler.convertRuntime(handle.getOwner());
+                        switch(handle.getTag()) {
+                            case Opcodes.H_INVOKESTATIC:
+                                uses.add(new Use(Opcodes.INVOKESTATIC, owner, handle.getName() + handle.getDesc()));
+                                break;
+                            case Opcodes.H_INVOKEVIRTUAL:
+                            case Opcodes.H_INVOKEINTERFACE:
+                                uses.add(new Use(Opcodes.INVOKEVIRTUAL, owner, handle.getName() + handle.getDesc()));
+                                break;
+                            case Opcodes.H_NEWINVOKESPECIAL:
+                                uses.add(new Use(Opcodes.NEW, owner, null));
+                                uses.add(new Use(Opcodes.INVOKESPECIAL, owner, handle.getName() + handle.getDesc()));
+                                break;
+                            case Opcodes.H_INVOKESPECIAL:
+                                uses.add(new Use(Opcodes.INVOKESPECIAL, owner, handle.getName() + handle.getDesc()));
+                                break;
+                            default:
+                                uses.add(new Use(Opcodes.NOP, owner, null));
+                        }
+                    }
+                    
+                    private void constant(Object cst) {
+                        if(cst instanceof Type)
+                            type((Type)cst);
+                        else if(cst instanceof Handle)
+                            handle((Handle)cst);
+                    }
+                    
+                    @Override
+                    public void visitTypeInsn(int opcode, String type) {
+                        if(opcode == Opcodes.NEW)
+                            uses.add(new Use(Opcodes.NEW, Compiler.convertRuntime(type), null));
+                        else
+                            type(Type.getObjectType(type));
+                    }
+                    
+                    @Override
+                    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+                        type(Type.getObjectType(owner));
+                    }
+                    
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                        if(owner.startsWith("["))
+                            owner = "java/lang/Object"; // clone() of an array
+                        uses.add(new Use(opcode == Opcodes.INVOKEINTERFACE ? Opcodes.INVOKEVIRTUAL : opcode, Compiler.convertRuntime(owner), name + desc));
+                    }
+                    
+                    @Override
+                    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                        Type returned = Type.getReturnType(desc);
+                        if(returned.getSort() == Type.OBJECT && bsm.getOwner().equals(Compiler.LAMBDA_METAFACTORY))
+                            uses.add(new Use(Opcodes.INVOKEDYNAMIC, Compiler.convertRuntime(returned.getInternalName()), null));
+                        handle(bsm);
+                        for(Object arg : bsmArgs)
+                            constant(arg);
+                    }
+                    
+                    @Override
+                    public void visitMultiANewArrayInsn(String desc, int dims) {
+                        type(Type.getType(desc));
+                    }
+                    
+                    @Override
+                    public void visitLdcInsn(Object cst) {
+                        constant(cst);
+                    }
+                    
+                    @Override
+                    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+                        if(type != null)
+                            type(Type.getObjectType(type));
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        
+        classes.put(runtimeClassname, created);
+        return created;
+    }
+    
+    private void follow(Use use) throws IOException {
+        touch(use.owner);
+        switch(use.opcode) {
+            case Opcodes.NEW:
+                instantiate(use.owner);
+                break;
+            
+            case Opcodes.INVOKESTATIC:
+            case Opcodes.INVOKESPECIAL:
+                markDeclaration(use.owner, use.method);
+                break;
+            
+            case Opcodes.INVOKEVIRTUAL:
+                virtualCall(use.owner, use.method);
+                if(!reflective && REFLECTIVE.contains(use.owner + '.' + use.method)) {
+                    reflective = true;
+                    for(String runtimeClassname : touched.toArray(new String[0]))
+                        instantiate(runtimeClassname);
+                }
+                break;
+            
+            case Opcodes.INVOKEDYNAMIC:
+                generated.add(use.owner);
+                break;
+        }
+    }
+    
+    private boolean mark(String runtimeClassname, String method) throws IOException {
+        ClassInfo info = info(runtimeClassname);
+        if(info == null || !info.methods.containsKey(method))
+            return false;
+        
+        Set<String> methods = live.get(runtimeClassname);
+        if(methods == null)
+            live.put(runtimeClassname, methods = new HashSet());
+        if(methods.add(method))
+            pending.add(new String[]{runtimeClassname, method});
+        return true;
+    }
+    
+    private void keepAll(String runtimeClassname, ClassInfo info) throws IOException {
+        for(String method : info.methods.keySet())
+            mark(runtimeClassname, method);
+    }
+    
+    /**
+     * Loading a class loads its supertypes, and initializing it runs their static initializers.
+     */
+    private void touch(String runtimeClassname) throws IOException {
+        if(!touched.add(runtimeClassname))
+            return;
+        
+        ClassInfo info = info(runtimeClassname);
+        if(info == null)
+            return;
+        
+        mark(runtimeClassname, INITIALIZER);
+        if(info.hasNatives) {
+            instantiate(runtimeClassname);
+            keepAll(runtimeClassname, info);
+        }
+        if(reflective)
+            instantiate(runtimeClassname);
+        if(info.parent != null)
+            touch(info.parent);
+        for(String iface : info.interfaces)
+            touch(iface);
+    }
+    
+    private void instantiate(String runtimeClassname) throws IOException {
+        if(info(runtimeClassname) == null || !instantiated.add(runtimeClassname))
+            return;
+        
+        for(String[] call : virtualCallList.toArray(new String[0][]))
+            if(isSubtype(runtimeClassname, call[0]))
+                dispatch(runtimeClassname, call[1]);
+        
+        // Built-in supertypes may call anything they declare
+        for(String opaque : opaqueSupertypes(runtimeClassname, new HashSet<String>())) {
+            if(opaque.equals("java/lang/Object")) {
+                for(String method : OBJECT_METHODS)
+                    virtualCall(opaque, method);
+                continue;
+            }
+            
+            for(String supertype = runtimeClassname; supertype != null; ) {
+                ClassInfo info = info(supertype);
+                if(info == null)
+                    break;
+                for(Map.Entry<String, Integer> method : info.methods.entrySet())
+                    if((method.getValue() & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) == 0 && !method.getKey().startsWith("<"))
+                        dispatch(runtimeClassname, method.getKey());
+                supertype = info.parent;
+            }
+        }
+    }
+    
+    private Set<String> opaqueSupertypes(String runtimeClassname, Set<String> opaque) throws IOException {
+        ClassInfo info = info(runtimeClassname);
+        if(info == null) {
+            opaque.add(runtimeClassname);
+            return opaque;
+        }
+        
+        if(info.parent != null)
+            opaqueSupertypes(info.parent, opaque);
+        for(String iface : info.interfaces)
+            opaqueSupertypes(iface, opaque);
+        return opaque;
+    }
+    
+    private void virtualCall(String owner, String method) throws IOException {
+        if(!virtualCalls.add(owner + '.' + method))
+            return;
+        
+        String[] call = new String[]{owner, method};
+        virtualCallList.add(call);
+        markDeclaration(owner, method);
+        for(String runtimeClassname : instantiated.toArray(new String[0]))
+            if(isSubtype(runtimeClassname, owner))
+                dispatch(runtimeClassname, method);
+    }
+    
+    /**
+     * Marks the first declaration of a method found walking up from a class,
+     * abstract or not, followed by the interfaces for default methods.
+     */
+    private void markDeclaration(String runtimeClassname, String method) throws IOException {
+        for(String current = runtimeClassname; current != null; ) {
+            if(mark(current, method))
+                return;
+            ClassInfo info = info(current);
+            current = info == null ? null : info.parent;
+        }
+        markInterfaces(runtimeClassname, method, new HashSet<String>());
+    }
+    
+    private boolean markInterfaces(String runtimeClassname, String method, Set<String> visited) throws IOException {
+        ClassInfo info = info(runtimeClassname);
+        if(info == null || !visited.add(runtimeClassname))
+            return false;
+        
+        for(String iface : info.interfaces)
+            if(mark(iface, method))
+                return true;
+        if(info.parent != null && markInterfaces(info.parent, method, visited))
+            return true;
+        for(String iface : info.interfaces)
+            if(markInterfaces(iface, method, visited))
+                return true;
+        return false;
+    }
+    
+    /**
+     * Marks the implementation of a method an instance of the given class would run.
+     */
+    private void dispatch(String runtimeClassname, String method) throws IOException {
+        for(String current = runtimeClassname; current != null; ) {
+            ClassInfo info = info(current);
+            if(info == null)
+                return; // Implemented by a built-in
+            
+            Integer access = info.methods.get(method);
+            if(access != null && (access & Opcodes.ACC_ABSTRACT) == 0) {
+                mark(current, method);
+                return;
+            }
+            current = info.parent;
+        }
+        markInterfaces(runtimeClassname, method, new HashSet<String>());
+    }
+    
+    private boolean isSubtype(String runtimeClassname, String supertype) throws IOException {
+        if(runtimeClassname.equals(supertype) || supertype.equals("java/lang/Object"))
+            return true;
+        
+        ClassInfo info = info(runtimeClassname);
+        if(info == null)
+            return false;
+        if(info.parent != null && isSubtype(info.parent, supertype))
+            return true;
+        for(String iface : info.interfaces)
+            if(isSubtype(iface, supertype))
+                return true;
+        return false;
+    }
+    
+}
@@ -0,0 +1,873 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Runs static initializers at build time and attaches the values they
+ * leave in the static fields to the initializer as its "precomputed"
+ * property, a function returning an object keyed by field name. A class
+ * loader that knows the property can assign its result instead of
+ * running the initializer, which is still written for those that do not.
+ * 
+ * Only initializers that cannot be told apart from their result are
+ * evaluated: arithmetic, locals, switches, strings and arrays, reading
+ * and writing the static fields of their own class. Calls, objects,
+ * class constants, other classes' fields, try blocks and anything that
+ * would throw leave the initializer to the runtime, as does a result
+ * holding long arrays or the same array twice.
+ * 
+ * Arrays are written as {"array": descriptor, "values": [...]}, or as
+ * typed arrays for primitive arrays when the runtime allocates those as
+ * typed arrays too, so a field holds the same kind of array whether its
+ * initializer ran or not. Longs are written as {"numericValue": n,
+ * "longValue": [high, low]} like long constants.
+ * 
+ * @author kate
+ */
+public class StaticEvaluator extends MethodAnnotator {
+    public static final String PROPERTY = "precomputed";
+    
+    private static final Gson gson = new Gson();
+    
+    public final Config.Precompute settings;
+    public final boolean typedArrays;
+    private final Map<String, String> staticFields = new LinkedHashMap(); // Name to descriptor
+    private final Map<String, Object> constantValues = new HashMap();
+    private String classname;
+    public StaticEvaluator(ClassVisitor classVisitor, DescriptorWriter writer, Compiler.LabelConverter labelConverter, Config.Precompute settings, boolean typedArrays) {
+        super(classVisitor, writer, labelConverter, PROPERTY);
+        this.settings = settings;
+        this.typedArrays = typedArrays;
+    }
+    
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        classname = name;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+    
+    @Override
+    public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+        if((access & Opcodes.ACC_STATIC) != 0) {
+            staticFields.put(name, desc);
+            if(value != null)
+                constantValues.put(name, value);
+        }
+        return super.visitField(access, name, desc, signature, value);
+    }
+    
+    @Override
+    protected String annotate(MethodNode method) {
+        if(!method.name.equals("<clinit>"))
+            return null;
+        
+        Map<String, Object> values;
+        try {
+            values = evaluate(method);
+        } catch (Unsupported ex) {
+            if(Trace.enabled(Trace.DEBUG))
+                Trace.log(Trace.DEBUG, "\tLeaving static initializer to the runtime: " + ex.getMessage());
+            return null;
+        }
+        if(values.isEmpty())
+            return null;
+        
+        StringBuilder source = new StringBuilder("function() {\n\treturn {");
+        boolean first = true;
+        for(Entry<String, Object> entry : values.entrySet()) {
+            if(!first)
+                source.append(',');
+            first = false;
+            source.append("\n\t\t");
+            source.append(gson.toJson(entry.getKey()));
+            source.append(": ");
+            literal(entry.getValue(), source);
+        }
+        source.append("\n\t};\n}");
+        
+        if(Trace.enabled(Trace.DEBUG))
+            Trace.log(Trace.DEBUG, "\tPrecomputed " + values.size() + " static fields");
+        return source.toString();
+    }
+    
+    private static class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+        public Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+    
+    /**
+     * An array of references, which needs its descriptor kept.
+     */
+    private static class ReferenceArray {
+        final String desc;
+        final Object[] values;
+        ReferenceArray(String desc, int length) {
+            this.desc = desc;
+            values = new Object[length];
+        }
+    }
+    
+    /**
+     * Interprets the initializer.
+     *
+     * @param method
+     * @return The final value of every static field it assigned
+     * @throws Unsupported When the initializer does anything its result would not capture
+     */
+    private Map<String, Object> evaluate(MethodNode method) throws Unsupported {
+        if(!method.tryCatchBlocks.isEmpty())
+            throw new Unsupported("try blocks");
+        
+        AbstractInsnNode[] insns = method.instructions.toArray();
+        Map<LabelNode, Integer> targets = new HashMap();
+        for(int i=0; i<insns.length; i++)
+            if(insns[i] instanceof LabelNode)
+                targets.put((LabelNode)insns[i], i);
+        
+        Map<String, Object> fields = new HashMap();
+        for(Entry<String, String> field : staticFields.entrySet()) {
+            Object value = constantValues.get(field.getKey());
+            fields.put(field.getKey(), value instanceof String ? ((String)value).intern() : value != null ? value : defaultValue(field.getValue()));
+        }
+        Map<String, Object> assigned = new LinkedHashMap();
+        
+        int maxLocals = method.maxLocals;
+        for(AbstractInsnNode insn : insns)
+            if(insn instanceof VarInsnNode)
+                maxLocals = Math.max(maxLocals, ((VarInsnNode)insn).var + 2);
+            else if(insn instanceof IincInsnNode)
+                maxLocals = Math.max(maxLocals, ((IincInsnNode)insn).var + 1);
+        Object[] locals = new Object[maxLocals];
+        List<Object> stack = new ArrayList();
+        int elements = 0;
+        int pc = 0;
+        for(int steps = 0; ; steps++) {
+            if(steps > settings.maxSteps)
+                throw new Unsupported("more than " + settings.maxSteps + " steps");
+            if(pc >= insns.length)
+                throw new Unsupported("fell off the end");
+            
+            AbstractInsnNode node = insns[pc++];
+            int opcode = node.getOpcode();
+            if(opcode < 0)
+                continue;
+            
+            switch(opcode) {
+                case Opcodes.NOP:
+                    break;
+                case Opcodes.ACONST_NULL:
+                    stack.add(null);
+                    break;
+                case Opcodes.ICONST_M1:
+                case Opcodes.ICONST_0:
+                case Opcodes.ICONST_1:
+                case Opcodes.ICONST_2:
+                case Opcodes.ICONST_3:
+                case Opcodes.ICONST_4:
+                case Opcodes.ICONST_5:
+                    stack.add(opcode - Opcodes.ICONST_0);
+                    break;
+                case Opcodes.LCONST_0:
+                case Opcodes.LCONST_1:
+                    stack.add((long)(opcode - Opcodes.LCONST_0));
+                    break;
+                case Opcodes.FCONST_0:
+                case Opcodes.FCONST_1:
+                case Opcodes.FCONST_2:
+                    stack.add((float)(opcode - Opcodes.FCONST_0));
+                    break;
+                case Opcodes.DCONST_0:
+                case Opcodes.DCONST_1:
+                    stack.add((double)(opcode - Opcodes.DCONST_0));
+                    break;
+                case Opcodes.BIPUSH:
+                case Opcodes.SIPUSH:
+                    stack.add(((IntInsnNode)node).operand);
+                    break;
+                case Opcodes.LDC: {
+                    Object cst = ((LdcInsnNode)node).cst;
+                    if(cst instanceof Type)
+                        throw new Unsupported("class constant");
+                    stack.add(cst instanceof String ? ((String)cst).intern() : cst);
+                    break;
+                }
+                
+                case Opcodes.ILOAD:
+                case Opcodes.LLOAD:
+                case Opcodes.FLOAD:
+                case Opcodes.DLOAD:
+                case Opcodes.ALOAD:
+                    stack.add(locals[((VarInsnNode)node).var]);
+                    break;
+                case Opcodes.ISTORE:
+                case Opcodes.LSTORE:
+                case Opcodes.FSTORE:
+                case Opcodes.DSTORE:
+                case Opcodes.ASTORE:
+                    locals[((VarInsnNode)node).var] = pop(stack);
+                    break;
+                case Opcodes.IINC: {
+                    IincInsnNode iinc = (IincInsnNode)node;
+                    locals[iinc.var] = (Integer)locals[iinc.var] + iinc.incr;
+                    break;
+                }
+                
+                case Opcodes.IALOAD:
+                case Opcodes.LALOAD:
+                case Opcodes.FALOAD:
+                case Opcodes.DALOAD:
+                case Opcodes.AALOAD:
+                case Opcodes.BALOAD:
+                case Opcodes.CALOAD:
+                case Opcodes.SALOAD: {
+                    int index = (Integer)pop(stack);
+                    Object array = pop(stack);
+                    checkIndex(array, index);
+                    stack.add(load(array, index));
+                    break;
+                }
+                case Opcodes.IASTORE:
+                case Opcodes.LASTORE:
+                case Opcodes.FASTORE:
+                case Opcodes.DASTORE:
+                case Opcodes.AASTORE:
+                case Opcodes.BASTORE:
+                case Opcodes.CASTORE:
+                case Opcodes.SASTORE: {
+                    Object value = pop(stack);
+                    int index = (Integer)pop(stack);
+                    Object array = pop(stack);
+                    checkIndex(array, index);
+                    store(array, index, value);
+                    break;
+                }
+                case Opcodes.ARRAYLENGTH: {
+                    Object array = pop(stack);
+                    if(array == null)
+                        throw new Unsupported("null array");
+                    stack.add(length(array));
+                    break;
+                }
+                case Opcodes.NEWARRAY: {
+                    int length = (Integer)pop(stack);
+                    elements = count(elements, length);
+                    stack.add(newArray("[" + Compiler.arrayElementType(((IntInsnNode)node).operand), length));
+                    break;
+                }
+                case Opcodes.ANEWARRAY: {
+                    String type = ((TypeInsnNode)node).desc;
+                    int length = (Integer)pop(stack);
+                    elements = count(elements, length);
+                    stack.add(newArray("[" + (type.startsWith("[") ? type : "L" + type + ";"), length));
+                    break;
+                }
+                case Opcodes.MULTIANEWARRAY: {
+                    MultiANewArrayInsnNode multi = (MultiANewArrayInsnNode)node;
+                    int[] lengths = new int[multi.dims];
+                    for(int i=multi.dims-1; i>=0; i--)
+                        lengths[i] = (Integer)pop(stack);
+                    int total = 1;
+                    for(int length : lengths) {
+                        if(length < 0)
+                            throw new Unsupported("negative array size");
+                        total = (int)Math.min((long)total * Math.max(length, 1), Integer.MAX_VALUE);
+                    }
+                    elements = count(elements, total);
+                    stack.add(newArray(multi.desc, lengths, 0));
+                    break;
+                }
+                
+                case Opcodes.POP:
+                    pop(stack);
+                    break;
+                case Opcodes.POP2:
+                    if(!wide(pop(stack)))
+                        pop(stack);
+                    break;
+                case Opcodes.DUP:
+                    stack.add(peek(stack, 0));
+                    break;
+                case Opcodes.DUP_X1:
+                    stack.add(stack.size() - 2, peek(stack, 0));
+                    break;
+                case Opcodes.DUP_X2:
+                    stack.add(stack.size() - (wide(peek(stack, 1)) ? 2 : 3), peek(stack, 0));
+                    break;
+                case Opcodes.DUP2:
+                    if(wide(peek(stack, 0)))
+                        stack.add(peek(stack, 0));
+                    else {
+                        stack.add(peek(stack, 1));
+                        stack.add(peek(stack, 1));
+                    }
+                    break;
+                case Opcodes.DUP2_X1:
+                    if(wide(peek(stack, 0)))
+                        stack.add(stack.size() - 2, peek(stack, 0));
+                    else {
+                        Object top = peek(stack, 0), second = peek(stack, 1);
+                        stack.add(stack.size() - 3, second);
+                        stack.add(stack.size() - 3, top);
+                    }
+                    break;
+                case Opcodes.DUP2_X2:
+                    if(wide(peek(stack, 0)))
+                        stack.add(stack.size() - (wide(peek(stack, 1)) ? 2 : 3), peek(stack, 0));
+                    else {
+                        Object top = peek(stack, 0), second = peek(stack, 1);
+                        int depth = wide(peek(stack, 2)) ? 3 : 4;
+                        stack.add(stack.size() - depth, second);
+                        stack.add(stack.size() - depth, top);
+                    }
+                    break;
+                case Opcodes.SWAP: {
+                    Object top = pop(stack);
+                    stack.add(stack.size() - 1, top);
+                    break;
+                }
+                
+                case Opcodes.IADD:
+                case Opcodes.ISUB:
+                case Opcodes.IMUL:
+                case Opcodes.IDIV:
+                case Opcodes.IREM:
+                case Opcodes.ISHL:
+                case Opcodes.ISHR:
+                case Opcodes.IUSHR:
+                case Opcodes.IAND:
+                case Opcodes.IOR:
+                case Opcodes.IXOR: {
+                    int b = (Integer)pop(stack), a = (Integer)pop(stack);
+                    stack.add(intOp(opcode, a, b));
+                    break;
+                }
+                case Opcodes.LADD:
+                case Opcodes.LSUB:
+                case Opcodes.LMUL:
+                case Opcodes.LDIV:
+                case Opcodes.LREM:
+                case Opcodes.LAND:
+                case Opcodes.LOR:
+                case Opcodes.LXOR: {
+                    long b = (Long)pop(stack), a = (Long)pop(stack);
+                    stack.add(longOp(opcode, a, b));
+                    break;
+                }
+                case Opcodes.LSHL:
+                case Opcodes.LSHR:
+                case Opcodes.LUSHR: {
+                    int b = (Integer)pop(stack);
+                    long a = (Long)pop(stack);
+                    stack.add(opcode == Opcodes.LSHL ? a << b : opcode == Opcodes.LSHR ? a >> b : a >>> b);
+                    break;
+                }
+                case Opcodes.FADD:
+                case Opcodes.FSUB:
+                case Opcodes.FMUL:
+                case Opcodes.FDIV:
+                case Opcodes.FREM: {
+                    float b = (Float)pop(stack), a = (Float)pop(stack);
+                    stack.add(opcode == Opcodes.FADD ? a + b : opcode == Opcodes.FSUB ? a - b : opcode == Opcodes.FMUL ? a * b : opcode == Opcodes.FDIV ? a / b : a % b);
+                    break;
+                }
+                case Opcodes.DADD:
+                case Opcodes.DSUB:
+                case Opcodes.DMUL:
+                case Opcodes.DDIV:
+                case Opcodes.DREM: {
+                    double b = (Double)pop(stack), a = (Double)pop(stack);
+                    stack.add(opcode == Opcodes.DADD ? a + b : opcode == Opcodes.DSUB ? a - b : opcode == Opcodes.DMUL ? a * b : opcode == Opcodes.DDIV ? a / b : a % b);
+                    break;
+                }
+                case Opcodes.INEG:
+                    stack.add(-(Integer)pop(stack));
+                    break;
+                case Opcodes.LNEG:
+                    stack.add(-(Long)pop(stack));
+                    break;
+                case Opcodes.FNEG:
+                    stack.add(-(Float)pop(stack));
+                    break;
+                case Opcodes.DNEG:
+                    stack.add(-(Double)pop(stack));
+                    break;
+                
+                case Opcodes.I2L:
+                    stack.add((long)(Integer)pop(stack));
+                    break;
+                case Opcodes.I2F:
+                    stack.add((float)(Integer)pop(stack));
+                    break;
+                case Opcodes.I2D:
+                    stack.add((double)(Integer)pop(stack));
+                    break;
+                case Opcodes.L2I:
+                    stack.add((int)(long)(Long)pop(stack));
+                    break;
+                case Opcodes.L2F:
+                    stack.add((float)(Long)pop(stack));
+                    break;
+                case Opcodes.L2D:
+                    stack.add((double)(Long)pop(stack));
+                    break;
+                case Opcodes.F2I:
+                    stack.add((int)(float)(Float)pop(stack));
+                    break;
+                case Opcodes.F2L:
+                    stack.add((long)(float)(Float)pop(stack));
+                    break;
+                case Opcodes.F2D:
+                    stack.add((double)(Float)pop(stack));
+                    break;
+                case Opcodes.D2I:
+                    stack.add((int)(double)(Double)pop(stack));
+                    break;
+                case Opcodes.D2L:
+                    stack.add((long)(double)(Double)pop(stack));
+                    break;
+                case Opcodes.D2F:
+                    stack.add((float)(double)(Double)pop(stack));
+                    break;
+                case Opcodes.I2B:
+                    stack.add((int)(byte)(int)(Integer)pop(stack));
+                    break;
+                case Opcodes.I2C:
+                    stack.add((int)(char)(int)(Integer)pop(stack));
+                    break;
+                case Opcodes.I2S:
+                    stack.add((int)(short)(int)(Integer)pop(stack));
+                    break;
+                
+                case Opcodes.LCMP: {
+                    long b = (Long)pop(stack), a = (Long)pop(stack);
+                    stack.add(a < b ? -1 : a > b ? 1 : 0);
+                    break;
+                }
+                case Opcodes.FCMPL:
+                case Opcodes.FCMPG: {
+                    float b = (Float)pop(stack), a = (Float)pop(stack);
+                    stack.add(Float.isNaN(a) || Float.isNaN(b) ? (opcode == Opcodes.FCMPG ? 1 : -1) : a < b ? -1 : a > b ? 1 : 0);
+                    break;
+                }
+                case Opcodes.DCMPL:
+                case Opcodes.DCMPG: {
+                    double b = (Double)pop(stack), a = (Double)pop(stack);
+                    stack.add(Double.isNaN(a) || Double.isNaN(b) ? (opcode == Opcodes.DCMPG ? 1 : -1) : a < b ? -1 : a > b ? 1 : 0);
+                    break;
+                }
+                
+                case Opcodes.IFEQ:
+                case Opcodes.IFNE:
+                case Opcodes.IFLT:
+                case Opcodes.IFGE:
+                case Opcodes.IFGT:
+                case Opcodes.IFLE:
+                    if(compare(opcode - Opcodes.IFEQ, (Integer)pop(stack), 0))
+                        pc = targets.get(((JumpInsnNode)node).label);
+                    break;
+                case Opcodes.IF_ICMPEQ:
+                case Opcodes.IF_ICMPNE:
+                case Opcodes.IF_ICMPLT:
+                case Opcodes.IF_ICMPGE:
+                case Opcodes.IF_ICMPGT:
+                case Opcodes.IF_ICMPLE: {
+                    int b = (Integer)pop(stack), a = (Integer)pop(stack);
+                    if(compare(opcode - Opcodes.IF_ICMPEQ, a, b))
+                        pc = targets.get(((JumpInsnNode)node).label);
+                    break;
+                }
+                case Opcodes.IF_ACMPEQ:
+                case Opcodes.IF_ACMPNE: {
+                    Object b = pop(stack), a = pop(stack);
+                    if((a == b) == (opcode == Opcodes.IF_ACMPEQ))
+                        pc = targets.get(((JumpInsnNode)node).label);
+                    break;
+                }
+                case Opcodes.IFNULL:
+                case Opcodes.IFNONNULL:
+                    if((pop(stack) == null) == (opcode == Opcodes.IFNULL))
+                        pc = targets.get(((JumpInsnNode)node).label);
+                    break;
+                case Opcodes.GOTO:
+                    pc = targets.get(((JumpInsnNode)node).label);
+                    break;
+                case Opcodes.TABLESWITCH: {
+                    TableSwitchInsnNode table = (TableSwitchInsnNode)node;
+                    int key = (Integer)pop(stack);
+                    pc = targets.get(key >= table.min && key <= table.max ? table.labels.get(key - table.min) : table.dflt);
+                    break;
+                }
+                case Opcodes.LOOKUPSWITCH: {
+                    LookupSwitchInsnNode lookup = (LookupSwitchInsnNode)node;
+                    int index = lookup.keys.indexOf((Integer)pop(stack));
+                    pc = targets.get(index > -1 ? lookup.labels.get(index) : lookup.dflt);
+                    break;
+                }
+                
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTSTATIC: {
+                    FieldInsnNode field = (FieldInsnNode)node;
+                    if(!field.owner.equals(classname) || !staticFields.containsKey(field.name))
+                        throw new Unsupported("field " + field.owner + "." + field.name);
+                    if(opcode == Opcodes.GETSTATIC)
+                        stack.add(fields.get(field.name));
+                    else {
+                        Object value = pop(stack);
+                        fields.put(field.name, value);
+                        assigned.put(field.name, value);
+                    }
+                    break;
+                }
+                case Opcodes.CHECKCAST: {
+                    String type = ((TypeInsnNode)node).desc;
+                    Object value = peek(stack, 0);
+                    if(value != null && !type.equals("java/lang/Object") && !type.equals(value instanceof String ? "java/lang/String" : arrayDesc(value)))
+                        throw new Unsupported("cast to " + type);
+                    break;
+                }
+                
+                case Opcodes.RETURN:
+                    checkAliasing(assigned.values());
+                    return assigned;
+                
+                default:
+                    throw new Unsupported(Compiler.nameForOpcode(opcode));
+            }
+        }
+    }
+    
+    private static Object pop(List<Object> stack) {
+        return stack.remove(stack.size() - 1);
+    }
+    
+    private static Object peek(List<Object> stack, int depth) {
+        return stack.get(stack.size() - 1 - depth);
+    }
+    
+    private static boolean wide(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+    
+    private static boolean compare(int test, int a, int b) {
+        switch(test) {
+            case 0:
+                return a == b;
+            case 1:
+                return a != b;
+            case 2:
+                return a < b;
+            case 3:
+                return a >= b;
+            case 4:
+                return a > b;
+            default:
+                return a <= b;
+        }
+    }
+    
+    private static int intOp(int opcode, int a, int b) throws Unsupported {
+        switch(opcode) {
+            case Opcodes.IADD:
+                return a + b;
+            case Opcodes.ISUB:
+                return a - b;
+            case Opcodes.IMUL:
+                return a * b;
+            case Opcodes.IDIV:
+            case Opcodes.IREM:
+                if(b == 0)
+                    throw new Unsupported("division by zero");
+                return opcode == Opcodes.IDIV ? a / b : a % b;
+            case Opcodes.ISHL:
+                return a << b;
+            case Opcodes.ISHR:
+                return a >> b;
+            case Opcodes.IUSHR:
+                return a >>> b;
+            case Opcodes.IAND:
+                return a & b;
+            case Opcodes.IOR:
+                return a | b;
+            default:
+                return a ^ b;
+        }
+    }
+    
+    private static long longOp(int opcode, long a, long b) throws Unsupported {
+        switch(opcode) {
+            case Opcodes.LADD:
+                return a + b;
+            case Opcodes.LSUB:
+                return a - b;
+            case Opcodes.LMUL:
+                return a * b;
+            case Opcodes.LDIV:
+            case Opcodes.LREM:
+                if(b == 0)
+                    throw new Unsupported("division by zero");
+                return opcode == Opcodes.LDIV ? a / b : a % b;
+            case Opcodes.LAND:
+                return a & b;
+            case Opcodes.LOR:
+                return a | b;
+            default:
+                return a ^ b;
+        }
+    }
+    
+    private static Object defaultValue(String desc) {
+        switch(desc.charAt(0)) {
+            case 'Z':
+            case 'B':
+            case 'C':
+            case 'S':
+            case 'I':
+                return 0;
+            case 'J':
+                return 0L;
+            case 'F':
+                return 0f;
+            case 'D':
+                return 0d;
+            default:
+                return null;
+        }
+    }
+    
+    private int count(int elements, int length) throws Unsupported {
+        if(length < 0)
+            throw new Unsupported("negative array size");
+        if((long)elements + length > settings.maxElements)
+            throw new Unsupported("more than " + settings.maxElements + " array elements");
+        return elements + length;
+    }
+    
+    private static Object newArray(String desc, int length) {
+        switch(desc.charAt(1)) {
+            case 'Z':
+                return new boolean[length];
+            case 'B':
+                return new byte[length];
+            case 'C':
+                return new char[length];
+            case 'S':
+                return new short[length];
+            case 'I':
+                return new int[length];
+            case 'J':
+                return new long[length];
+            case 'F':
+                return new float[length];
+            case 'D':
+                return new double[length];
+            default:
+                return new ReferenceArray(desc, length);
+        }
+    }
+    
+    private static Object newArray(String desc, int[] lengths, int dim) {
+        Object array = newArray(desc, lengths[dim]);
+        if(dim + 1 < lengths.length)
+            for(int i=0; i<lengths[dim]; i++)
+                ((ReferenceArray)array).values[i] = newArray(desc.substring(1), lengths, dim + 1);
+        return array;
+    }
+    
+    private static String arrayDesc(Object array) {
+        if(array instanceof ReferenceArray)
+            return ((ReferenceArray)array).desc;
+        return Type.getType(array.getClass()).getDescriptor();
+    }
+    
+    private static int length(Object array) {
+        if(array instanceof ReferenceArray)
+            return ((ReferenceArray)array).values.length;
+        return java.lang.reflect.Array.getLength(array);
+    }
+    
+    private static void checkIndex(Object array, int index) throws Unsupported {
+        if(array == null)
+            throw new Unsupported("null array");
+        if(index < 0 || index >= length(array))
+            throw new Unsupported("index out of bounds");
+    }
+    
+    private static Object load(Object array, int index) {
+        if(array instanceof ReferenceArray)
+            return ((ReferenceArray)array).values[index];
+        if(array instanceof boolean[])
+            return ((boolean[])array)[index] ? 1 : 0;
+        if(array instanceof byte[])
+            return (int)((byte[])array)[index];
+        if(array instanceof char[])
+            return (int)((char[])array)[index];
+        if(array instanceof short[])
+            return (int)((short[])array)[index];
+        return java.lang.reflect.Array.get(array, index);
+    }
+    
+    private static void store(Object array, int index, Object value) throws Unsupported {
+        if(array instanceof ReferenceArray) {
+            ReferenceArray references = (ReferenceArray)array;
+            String element = references.desc.substring(1);
+            if(value != null && !element.equals("Ljava/lang/Object;") && !element.equals(value instanceof String ? "Ljava/lang/String;" : arrayDesc(value)))
+                throw new Unsupported("storing into " + references.desc);
+            references.values[index] = value;
+        } else if(array instanceof boolean[])
+            ((boolean[])array)[index] = ((Integer)value & 1) != 0;
+        else if(array instanceof byte[])
+            ((byte[])array)[index] = (byte)(int)(Integer)value;
+        else if(array instanceof char[])
+            ((char[])array)[index] = (char)(int)(Integer)value;
+        else if(array instanceof short[])
+            ((short[])array)[index] = (short)(int)(Integer)value;
+        else
+            java.lang.reflect.Array.set(array, index, value);
+    }
+    
+    /**
+     * Literals create a new array each time, so an array
+     * found twice would end up as two different arrays.
+     */
+    private static void checkAliasing(Iterable<Object> values) throws Unsupported {
+        IdentityHashMap<Object, Boolean> seen = new IdentityHashMap();
+        List<Object> queue = new ArrayList();
+        for(Object value : values)
+            queue.add(value);
+        while(!queue.isEmpty()) {
+            Object value = pop(queue);
+            if(value == null || value instanceof String || value instanceof Number)
+                continue;
+            if(seen.put(value, true) != null)
+                throw new Unsupported("array stored more than once");
+            if(value instanceof long[])
+                throw new Unsupported("long array");
+            if(value instanceof ReferenceArray)
+                for(Object element : ((ReferenceArray)value).values)
+                    queue.add(element);
+        }
+    }
+    
+    private void literal(Object value, StringBuilder source) {
+        if(value == null)
+            source.append("null");
+        else if(value instanceof String)
+            source.append(gson.toJson(value));
+        else if(value instanceof Long) {
+            long l = (Long)value;
+            source.append("{\"numericValue\": ").append(l).append(", \"longValue\": [").append((int)(l >>> 32)).append(", ").append((int)l).append("]}");
+        } else if(value instanceof Float || value instanceof Double)
+            number((Number)value, source);
+        else if(value instanceof Integer)
+            source.append(value);
+        else if(value instanceof ReferenceArray) {
+            ReferenceArray array = (ReferenceArray)value;
+            source.append("{\"array\": ").append(gson.toJson(Compiler.convertRuntime(array.desc))).append(", \"values\": [");
+            for(int i=0; i<array.values.length; i++) {
+                if(i > 0)
+                    source.append(", ");
+                literal(array.values[i], source);
+            }
+            source.append("]}");
+        } else if(!typedArrays) {
+            source.append("{\"array\": ").append(gson.toJson(arrayDesc(value))).append(", \"values\": ");
+            elements(value, source);
+            source.append('}');
+        } else {
+            String desc = arrayDesc(value);
+            source.append("new ").append(Compiler.typedArray(desc.charAt(1))).append('(');
+            if(length(value) > 0 && !isZero(value))
+                elements(value, source);
+            else
+                source.append(length(value));
+            source.append(')');
+        }
+    }
+    
+    private static void elements(Object array, StringBuilder source) {
+        source.append('[');
+        for(int i=0, length=length(array); i<length; i++) {
+            if(i > 0)
+                source.append(',');
+            Object element = load(array, i);
+            if(element instanceof Integer)
+                source.append(element);
+            else
+                number((Number)element, source);
+        }
+        source.append(']');
+    }
+    
+    private static boolean isZero(Object array) {
+        for(int i=0, length=length(array); i<length; i++) {
+            Object element = load(array, i);
+            if(element instanceof Integer ? (Integer)element != 0 : Double.doubleToRawLongBits(((Number)element).doubleValue()) != 0)
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Floats are written the way the descriptor writers write them,
+     * as their shortest decimal form rather than widened to a double.
+     */
+    private static void number(Number number, StringBuilder source) {
+        number(number instanceof Float ? Double.parseDouble(number.toString()) : number.doubleValue(), source);
+    }
+    
+    private static void number(double value, StringBuilder source) {
+        if(Double.isNaN(value))
+            source.append("NaN");
+        else if(Double.isInfinite(value))
+            source.append(value > 0 ? "Infinity" : "-Infinity");
+        else if(value == 0)
+            source.append(1 / value < 0 ? "-0" : "0");
+        else if(value == Math.rint(value) && Math.abs(value) < 1e15)
+            source.append((long)value);
+        else
+            source.append(value);
+    }
+    
+}
@@ -0,0 +1,47 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Annotates each method with its control flow as a "structure" property,
+ * the loops and branches the runtime needs to rebuild real while and if
+ * blocks instead of dispatching on labels.
+ *
+ * @author kate
+ */
+public class StructureAnnotator extends MethodAnnotator {
+    public static final String PROPERTY = "structure";
+    
+    public StructureAnnotator(ClassVisitor classVisitor, DescriptorWriter writer, Compiler.LabelConverter labelConverter) {
+        super(classVisitor, writer, labelConverter, PROPERTY);
+    }
+    
+    @Override
+    protected String annotate(MethodNode method) {
+        ControlFlow flow = new ControlFlow(method);
+        if(flow.blocks.isEmpty())
+            return null;
+        
+        if(Trace.enabled(Trace.DEBUG))
+            Trace.log(Trace.DEBUG, "\tFound " + flow.blocks.size() + " blocks in " + method.name + method.desc + (flow.reducible ? "" : ", irreducible"));
+        return flow.describe(labelConverter);
+    }
+    
+}
@@ -0,0 +1,193 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.PrintStream;
+
+/**
+ * Level gated tracing for the compiler.
+ * 
+ * Messages above the current level are dropped before they are
+ * built, callers check {@link #enabled(int)} before concatenating
+ * anything so disabled tracing costs a single field read.
+ * 
+ * The level and sinks are shared, but each build keeps its own
+ * ring buffer, bound to the threads working on it, so the messages
+ * dumped when a build fails are that build's alone.
+ *
+ * @author kate
+ */
+public class Trace {
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+    public static final int TRACE = 5;
+    private static final String[] NAMES = {"OFF", "ERROR", "WARN", "INFO", "DEBUG", "TRACE"};
+    
+    public static interface Sink {
+        public void write(int level, String message);
+    }
+    
+    /**
+     * Prints messages up to a level, anything more detailed is left to the other sinks.
+     */
+    public static class Console implements Sink {
+        public final int level;
+        public Console(int level) {
+            this.level = level;
+        }
+        
+        @Override
+        public void write(int level, String message) {
+            if(level > this.level)
+                return;
+            
+            if(level <= WARN)
+                System.err.println(message);
+            else
+                System.out.println(message);
+        }
+    }
+    
+    /**
+     * Keeps the last messages of a build in memory, to be dumped when it fails.
+     */
+    public static class RingBuffer implements Sink {
+        public static final int DEFAULT_CAPACITY = 8192;
+        
+        private final String[] messages;
+        private int next;
+        private boolean wrapped;
+        public RingBuffer(int capacity) {
+            messages = new String[capacity];
+        }
+        
+        @Override
+        public synchronized void write(int level, String message) {
+            messages[next++] = message;
+            if(next == messages.length) {
+                next = 0;
+                wrapped = true;
+            }
+        }
+        
+        public synchronized void dump(PrintStream out) {
+            int start = wrapped ? next : 0;
+            int count = wrapped ? messages.length : next;
+            if(wrapped)
+                out.println("... earlier messages discarded");
+            for(int i=0; i<count; i++)
+                out.println(messages[(start + i) % messages.length]);
+            clear();
+        }
+        
+        public synchronized void clear() {
+            for(int i=0; i<messages.length; i++)
+                messages[i] = null;
+            next = 0;
+            wrapped = false;
+        }
+    }
+    
+    private static volatile int level = INFO;
+    private static volatile Sink[] sinks = {new Console(INFO)};
+    private static volatile int bufferCapacity;
+    private static final ThreadLocal<RingBuffer> buffer = new ThreadLocal();
+    
+    public static boolean enabled(int level) {
+        return level <= Trace.level;
+    }
+    
+    public static void log(int level, String message) {
+        if(level > Trace.level)
+            return;
+        
+        for(Sink sink : sinks)
+            sink.write(level, message);
+        RingBuffer current = buffer.get();
+        if(current != null)
+            current.write(level, message);
+    }
+    
+    /**
+     * @param level
+     * @param bufferCapacity Messages each build keeps to dump when it fails, 0 keeps none
+     * @param sinks Shared by every build
+     */
+    public static void configure(int level, int bufferCapacity, Sink... sinks) {
+        Trace.sinks = sinks.clone();
+        Trace.bufferCapacity = bufferCapacity;
+        Trace.level = level;
+    }
+    
+    /**
+     * Starts a build on the current thread, giving it a buffer of its own.
+     * 
+     * @return The buffer, or null when builds are not buffered
+     */
+    public static RingBuffer begin() {
+        RingBuffer started = bufferCapacity > 0 ? new RingBuffer(bufferCapacity) : null;
+        bind(started);
+        return started;
+    }
+    
+    /**
+     * @return The buffer of the build running on the current thread
+     */
+    public static RingBuffer current() {
+        return buffer.get();
+    }
+    
+    /**
+     * Makes the current thread log into a buffer, for threads
+     * that do work for a build started on another thread.
+     * 
+     * @param build The buffer from {@link #current()} on the thread that started the build
+     */
+    public static void bind(RingBuffer build) {
+        if(build == null)
+            buffer.remove();
+        else
+            buffer.set(build);
+    }
+    
+    public static int level() {
+        return level;
+    }
+    
+    public static int parseLevel(String name) {
+        for(int i=0; i<NAMES.length; i++)
+            if(NAMES[i].equalsIgnoreCase(name))
+                return i;
+        throw new IllegalArgumentException("Unknown trace level `" + name + "`");
+    }
+    
+    /**
+     * Writes out the messages buffered by the build running on
+     * the current thread, called when a compile fails.
+     * 
+     * @param out
+     */
+    public static void dump(PrintStream out) {
+        RingBuffer current = buffer.get();
+        if(current != null)
+            current.dump(out);
+    }
+    
+}
@@ -0,0 +1,499 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.util.LinkedList;
+import java.util.List;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Works out the kind of value in every local and stack slot before each
+ * instruction, taking the stack map frames as given where the class has
+ * them (read with EXPAND_FRAMES) and merging along every edge otherwise.
+ *
+ * Frames are strings with a character per slot, I for int, boolean, byte,
+ * char and short, J for long, F for float, D for double, A for references
+ * and . for anything unknown or the second slot of a long or double.
+ *
+ * @author kate
+ */
+public class TypeAnalyzer {
+    
+    public final String[] locals; // By instruction index, null where unreachable
+    public final String[] stacks;
+    public boolean complete = true; // False when the method uses subroutines or the stack did not line up
+    private final InsnList instructions;
+    public TypeAnalyzer(MethodNode method) {
+        instructions = method.instructions;
+        int count = instructions.size();
+        locals = new String[count];
+        stacks = new String[count];
+        if(count == 0)
+            return;
+        
+        StringBuilder entry = new StringBuilder();
+        if((method.access & Opcodes.ACC_STATIC) == 0)
+            entry.append('A');
+        for(Type arg : Type.getArgumentTypes(method.desc))
+            entry.append(slots(arg));
+        while(entry.length() < method.maxLocals)
+            entry.append('.');
+        
+        LinkedList<Integer> queue = new LinkedList();
+        merge(0, entry.toString(), "", queue);
+        while(!queue.isEmpty()) {
+            int index = queue.removeFirst();
+            AbstractInsnNode node = instructions.get(index);
+            String local = locals[index];
+            String stack = stacks[index];
+            
+            for(TryCatchBlockNode tryCatch : method.tryCatchBlocks)
+                if(index >= instructions.indexOf(tryCatch.start) && index < instructions.indexOf(tryCatch.end))
+                    merge(instructions.indexOf(tryCatch.handler), local, "A", queue);
+            
+            if(node instanceof FrameNode && ((FrameNode)node).type == Opcodes.F_NEW) {
+                FrameNode frame = (FrameNode)node;
+                local = frame(frame.local);
+                while(local.length() < locals[index].length())
+                    local += '.';
+                stack = frame(frame.stack);
+            } else if(node.getOpcode() >= 0) {
+                StringBuilder nextLocal = new StringBuilder(local);
+                stack = execute(node, nextLocal, stack);
+                if(stack == null) {
+                    complete = false;
+                    return;
+                }
+                local = nextLocal.toString();
+            }
+            
+            int opcode = node.getOpcode();
+            if(node instanceof JumpInsnNode)
+                merge(instructions.indexOf(((JumpInsnNode)node).label), local, stack, queue);
+            else if(node instanceof TableSwitchInsnNode) {
+                merge(instructions.indexOf(((TableSwitchInsnNode)node).dflt), local, stack, queue);
+                for(LabelNode label : ((TableSwitchInsnNode)node).labels)
+                    merge(instructions.indexOf(label), local, stack, queue);
+            } else if(node instanceof LookupSwitchInsnNode) {
+                merge(instructions.indexOf(((LookupSwitchInsnNode)node).dflt), local, stack, queue);
+                for(LabelNode label : ((LookupSwitchInsnNode)node).labels)
+                    merge(instructions.indexOf(label), local, stack, queue);
+            }
+            
+            boolean terminal = opcode == Opcodes.GOTO || opcode == Opcodes.TABLESWITCH || opcode == Opcodes.LOOKUPSWITCH ||
+                    opcode == Opcodes.ATHROW || (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN);
+            if(!terminal && index + 1 < count)
+                merge(index + 1, local, stack, queue);
+            if(!complete)
+                return;
+        }
+    }
+    
+    private void merge(int index, String local, String stack, LinkedList<Integer> queue) {
+        if(locals[index] == null) {
+            locals[index] = local;
+            stacks[index] = stack;
+            queue.add(index);
+            return;
+        }
+        
+        if(stacks[index].length() != stack.length()) {
+            complete = false;
+            return;
+        }
+        
+        String mergedLocal = merge(locals[index], local);
+        String mergedStack = merge(stacks[index], stack);
+        if(!mergedLocal.equals(locals[index]) || !mergedStack.equals(stacks[index])) {
+            locals[index] = mergedLocal;
+            stacks[index] = mergedStack;
+            queue.add(index);
+        }
+    }
+    
+    private static String merge(String a, String b) {
+        if(a.equals(b))
+            return a;
+        
+        StringBuilder merged = new StringBuilder(a);
+        for(int i=0; i<merged.length(); i++)
+            if(i >= b.length() || merged.charAt(i) != b.charAt(i))
+                merged.setCharAt(i, '.');
+        return merged.toString();
+    }
+    
+    /**
+     * @param type
+     * @return The slots a value of a type takes up
+     */
+    public static String slots(Type type) {
+        switch(type.getSort()) {
+            case Type.VOID:
+                return "";
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.CHAR:
+            case Type.SHORT:
+            case Type.INT:
+                return "I";
+            case Type.FLOAT:
+                return "F";
+            case Type.LONG:
+                return "J.";
+            case Type.DOUBLE:
+                return "D.";
+            default:
+                return "A";
+        }
+    }
+    
+    private static String frame(List<Object> types) {
+        StringBuilder slots = new StringBuilder();
+        if(types != null)
+            for(Object type : types) {
+                if(type == Opcodes.INTEGER)
+                    slots.append('I');
+                else if(type == Opcodes.FLOAT)
+                    slots.append('F');
+                else if(type == Opcodes.LONG)
+                    slots.append("J.");
+                else if(type == Opcodes.DOUBLE)
+                    slots.append("D.");
+                else if(type == Opcodes.TOP)
+                    slots.append('.');
+                else
+                    slots.append('A'); // Classes, null and uninitialized objects
+            }
+        return slots.toString();
+    }
+    
+    private static String pop(String stack, int slots) {
+        if(stack == null || slots > stack.length())
+            return null;
+        return stack.substring(0, stack.length() - slots);
+    }
+    
+    private static String push(String stack, String slots) {
+        return stack == null ? null : stack + slots;
+    }
+    
+    private static void store(StringBuilder local, int var, String slots) {
+        while(local.length() < var + slots.length())
+            local.append('.');
+        if(var > 0 && (local.charAt(var-1) == 'J' || local.charAt(var-1) == 'D'))
+            local.setCharAt(var-1, '.'); // Overwrote the second half
+        for(int i=0; i<slots.length(); i++)
+            local.setCharAt(var + i, slots.charAt(i));
+    }
+    
+    /**
+     * Rearranges the top slots of the stack, the pattern takes the top slots
+     * numbered from 1 at the top and writes them back in the given order.
+     */
+    private static String shuffle(String stack, int taken, String pattern) {
+        if(taken > stack.length())
+            return null;
+        
+        String top = stack.substring(stack.length() - taken);
+        StringBuilder result = new StringBuilder(stack.substring(0, stack.length() - taken));
+        for(int i=0; i<pattern.length(); i++)
+            result.append(top.charAt(taken - (pattern.charAt(i) - '0')));
+        return result.toString();
+    }
+    
+    private static String arguments(String desc) {
+        StringBuilder slots = new StringBuilder();
+        for(Type arg : Type.getArgumentTypes(desc))
+            slots.append(slots(arg));
+        return slots.toString();
+    }
+    
+    /**
+     * @return The stack after an instruction, or null if it cannot be followed
+     */
+    static String execute(AbstractInsnNode node, StringBuilder local, String stack) {
+        int opcode = node.getOpcode();
+        switch(opcode) {
+            case Opcodes.NOP:
+                return stack;
+            case Opcodes.ACONST_NULL:
+                return stack + 'A';
+            case Opcodes.ICONST_M1:
+            case Opcodes.ICONST_0:
+            case Opcodes.ICONST_1:
+            case Opcodes.ICONST_2:
+            case Opcodes.ICONST_3:
+            case Opcodes.ICONST_4:
+            case Opcodes.ICONST_5:
+            case Opcodes.BIPUSH:
+            case Opcodes.SIPUSH:
+                return stack + 'I';
+            case Opcodes.LCONST_0:
+            case Opcodes.LCONST_1:
+                return stack + "J.";
+            case Opcodes.FCONST_0:
+            case Opcodes.FCONST_1:
+            case Opcodes.FCONST_2:
+                return stack + 'F';
+            case Opcodes.DCONST_0:
+            case Opcodes.DCONST_1:
+                return stack + "D.";
+            case Opcodes.LDC:
+                Object cst = ((LdcInsnNode)node).cst;
+                if(cst instanceof Integer)
+                    return stack + 'I';
+                if(cst instanceof Float)
+                    return stack + 'F';
+                if(cst instanceof Long)
+                    return stack + "J.";
+                if(cst instanceof Double)
+                    return stack + "D.";
+                return stack + 'A';
+            
+            case Opcodes.ILOAD:
+                return stack + 'I';
+            case Opcodes.LLOAD:
+                return stack + "J.";
+            case Opcodes.FLOAD:
+                return stack + 'F';
+            case Opcodes.DLOAD:
+                return stack + "D.";
+            case Opcodes.ALOAD:
+                return stack + 'A';
+            case Opcodes.ISTORE:
+            case Opcodes.FSTORE:
+            case Opcodes.ASTORE:
+                store(local, ((VarInsnNode)node).var, opcode == Opcodes.ISTORE ? "I" : opcode == Opcodes.FSTORE ? "F" : "A");
+                return pop(stack, 1);
+            case Opcodes.LSTORE:
+            case Opcodes.DSTORE:
+                store(local, ((VarInsnNode)node).var, opcode == Opcodes.LSTORE ? "J." : "D.");
+                return pop(stack, 2);
+            case Opcodes.IINC:
+                return stack;
+            
+            case Opcodes.IALOAD:
+            case Opcodes.BALOAD:
+            case Opcodes.CALOAD:
+            case Opcodes.SALOAD:
+                return push(pop(stack, 2), "I");
+            case Opcodes.LALOAD:
+                return push(pop(stack, 2), "J.");
+            case Opcodes.FALOAD:
+                return push(pop(stack, 2), "F");
+            case Opcodes.DALOAD:
+                return push(pop(stack, 2), "D.");
+            case Opcodes.AALOAD:
+                return push(pop(stack, 2), "A");
+            case Opcodes.IASTORE:
+            case Opcodes.BASTORE:
+            case Opcodes.CASTORE:
+            case Opcodes.SASTORE:
+            case Opcodes.FASTORE:
+            case Opcodes.AASTORE:
+                return pop(stack, 3);
+            case Opcodes.LASTORE:
+            case Opcodes.DASTORE:
+                return pop(stack, 4);
+            
+            case Opcodes.POP:
+                return pop(stack, 1);
+            case Opcodes.POP2:
+                return pop(stack, 2);
+            case Opcodes.DUP:
+                return shuffle(stack, 1, "11");
+            case Opcodes.DUP_X1:
+                return shuffle(stack, 2, "121");
+            case Opcodes.DUP_X2:
+                return shuffle(stack, 3, "1321");
+            case Opcodes.DUP2:
+                return shuffle(stack, 2, "2121");
+            case Opcodes.DUP2_X1:
+                return shuffle(stack, 3, "21321");
+            case Opcodes.DUP2_X2:
+                return shuffle(stack, 4, "214321");
+            case Opcodes.SWAP:
+                return shuffle(stack, 2, "12");
+            
+            case Opcodes.IADD:
+            case Opcodes.ISUB:
+            case Opcodes.IMUL:
+            case Opcodes.IDIV:
+            case Opcodes.IREM:
+            case Opcodes.ISHL:
+            case Opcodes.ISHR:
+            case Opcodes.IUSHR:
+            case Opcodes.IAND:
+            case Opcodes.IOR:
+            case Opcodes.IXOR:
+            case Opcodes.FCMPL:
+            case Opcodes.FCMPG:
+                return push(pop(stack, 2), "I");
+            case Opcodes.LADD:
+            case Opcodes.LSUB:
+            case Opcodes.LMUL:
+            case Opcodes.LDIV:
+            case Opcodes.LREM:
+            case Opcodes.LAND:
+            case Opcodes.LOR:
+            case Opcodes.LXOR:
+                return push(pop(stack, 4), "J.");
+            case Opcodes.LSHL:
+            case Opcodes.LSHR:
+            case Opcodes.LUSHR:
+                return push(pop(stack, 3), "J.");
+            case Opcodes.FADD:
+            case Opcodes.FSUB:
+            case Opcodes.FMUL:
+            case Opcodes.FDIV:
+            case Opcodes.FREM:
+                return push(pop(stack, 2), "F");
+            case Opcodes.DADD:
+            case Opcodes.DSUB:
+            case Opcodes.DMUL:
+            case Opcodes.DDIV:
+            case Opcodes.DREM:
+                return push(pop(stack, 4), "D.");
+            case Opcodes.LCMP:
+            case Opcodes.DCMPL:
+            case Opcodes.DCMPG:
+                return push(pop(stack, 4), "I");
+            case Opcodes.INEG:
+            case Opcodes.F2I:
+            case Opcodes.I2B:
+            case Opcodes.I2C:
+            case Opcodes.I2S:
+            case Opcodes.ARRAYLENGTH:
+            case Opcodes.INSTANCEOF:
+                return push(pop(stack, 1), "I");
+            case Opcodes.LNEG:
+            case Opcodes.D2L:
+                return push(pop(stack, 2), "J.");
+            case Opcodes.FNEG:
+            case Opcodes.I2F:
+                return push(pop(stack, 1), "F");
+            case Opcodes.DNEG:
+            case Opcodes.L2D:
+                return push(pop(stack, 2), "D.");
+            case Opcodes.I2L:
+            case Opcodes.F2L:
+                return push(pop(stack, 1), "J.");
+            case Opcodes.I2D:
+            case Opcodes.F2D:
+                return push(pop(stack, 1), "D.");
+            case Opcodes.L2I:
+            case Opcodes.D2I:
+                return push(pop(stack, 2), "I");
+            case Opcodes.L2F:
+            case Opcodes.D2F:
+                return push(pop(stack, 2), "F");
+            
+            case Opcodes.IFEQ:
+            case Opcodes.IFNE:
+            case Opcodes.IFLT:
+            case Opcodes.IFGE:
+            case Opcodes.IFGT:
+            case Opcodes.IFLE:
+            case Opcodes.IFNULL:
+            case Opcodes.IFNONNULL:
+            case Opcodes.TABLESWITCH:
+            case Opcodes.LOOKUPSWITCH:
+            case Opcodes.IRETURN:
+            case Opcodes.FRETURN:
+            case Opcodes.ARETURN:
+            case Opcodes.ATHROW:
+            case Opcodes.MONITORENTER:
+            case Opcodes.MONITOREXIT:
+                return pop(stack, 1);
+            case Opcodes.IF_ICMPEQ:
+            case Opcodes.IF_ICMPNE:
+            case Opcodes.IF_ICMPLT:
+            case Opcodes.IF_ICMPGE:
+            case Opcodes.IF_ICMPGT:
+            case Opcodes.IF_ICMPLE:
+            case Opcodes.IF_ACMPEQ:
+            case Opcodes.IF_ACMPNE:
+            case Opcodes.LRETURN:
+            case Opcodes.DRETURN:
+                return pop(stack, 2);
+            case Opcodes.GOTO:
+            case Opcodes.RETURN:
+                return stack;
+            
+            case Opcodes.GETSTATIC:
+                return stack + slots(Type.getType(((FieldInsnNode)node).desc));
+            case Opcodes.PUTSTATIC:
+                return pop(stack, slots(Type.getType(((FieldInsnNode)node).desc)).length());
+            case Opcodes.GETFIELD:
+                return push(pop(stack, 1), slots(Type.getType(((FieldInsnNode)node).desc)));
+            case Opcodes.PUTFIELD:
+                return pop(stack, 1 + slots(Type.getType(((FieldInsnNode)node).desc)).length());
+            case Opcodes.INVOKEVIRTUAL:
+            case Opcodes.INVOKESPECIAL:
+            case Opcodes.INVOKESTATIC:
+            case Opcodes.INVOKEINTERFACE:
+                String desc = ((MethodInsnNode)node).desc;
+                return push(pop(stack, arguments(desc).length() + (opcode == Opcodes.INVOKESTATIC ? 0 : 1)), slots(Type.getReturnType(desc)));
+            case Opcodes.INVOKEDYNAMIC:
+                desc = ((InvokeDynamicInsnNode)node).desc;
+                return push(pop(stack, arguments(desc).length()), slots(Type.getReturnType(desc)));
+            
+            case Opcodes.NEW:
+                return stack + 'A';
+            case Opcodes.NEWARRAY:
+            case Opcodes.ANEWARRAY:
+            case Opcodes.CHECKCAST:
+                return push(pop(stack, 1), "A");
+            case Opcodes.MULTIANEWARRAY:
+                return push(pop(stack, ((MultiANewArrayInsnNode)node).dims), "A");
+        }
+        return null; // Subroutines
+    }
+    
+    /**
+     * @param node
+     * @return The locals before a node, or null if it is never reached
+     */
+    public String localsAt(AbstractInsnNode node) {
+        return locals[instructions.indexOf(node)];
+    }
+    
+    /**
+     * @param node
+     * @return The stack before a node, or null if it is never reached
+     */
+    public String stackAt(AbstractInsnNode node) {
+        return stacks[instructions.indexOf(node)];
+    }
+    
+}
@@ -0,0 +1,70 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import com.google.gson.Gson;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Annotates each method with a "types" property giving the locals and
+ * stack at every label, in the format described by {@link TypeAnalyzer},
+ * so the runtime does not have to infer them while loading classes.
+ *
+ * @author kate
+ */
+public class TypeAnnotator extends MethodAnnotator {
+    public static final String PROPERTY = "types";
+    
+    public TypeAnnotator(ClassVisitor classVisitor, DescriptorWriter writer, Compiler.LabelConverter labelConverter) {
+        super(classVisitor, writer, labelConverter, PROPERTY);
+    }
+    
+    @Override
+    protected String annotate(MethodNode method) {
+        TypeAnalyzer analyzer = new TypeAnalyzer(method);
+        if(!analyzer.complete) {
+            if(Trace.enabled(Trace.DEBUG))
+                Trace.log(Trace.DEBUG, "\tCould not follow the types in " + method.name + method.desc);
+            return null;
+        }
+        
+        Map<String, String[]> types = new LinkedHashMap();
+        for(AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext()) {
+            if(!(node instanceof LabelNode))
+                continue;
+            
+            AbstractInsnNode next = node;
+            while(next != null && next.getOpcode() < 0)
+                next = next.getNext();
+            if(next == null || analyzer.localsAt(next) == null)
+                continue; // Never reached
+            
+            String locals = analyzer.localsAt(next);
+            int length = locals.length();
+            while(length > 0 && locals.charAt(length-1) == '.')
+                length --;
+            types.put(labelConverter.convert(((LabelNode)node).getLabel()), new String[]{locals.substring(0, length), analyzer.stackAt(next)});
+        }
+        return types.isEmpty() ? null : new Gson().toJson(types);
+    }
+    
+}
@@ -0,0 +1,209 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+package net.nexustools.jvm.compiler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the classpath of a compiler and recompiles
+ * the classes belonging to any files that change.
+ *
+ * @author kate
+ */
+public class Watcher implements Closeable {
+    public static final long SETTLE_TIME = 50;
+    
+    public final Compiler compiler;
+    private final Path[] roots;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap();
+    private boolean overflowed;
+    public Watcher(Compiler compiler) throws IOException {
+        this.compiler = compiler;
+        watchService = FileSystems.getDefault().newWatchService();
+        
+        roots = new Path[compiler.classpath.length];
+        for(int i=0; i<roots.length; i++) {
+            roots[i] = compiler.classpath[i].toPath().toAbsolutePath();
+            registerRoot(roots[i], null);
+        }
+    }
+    
+    /**
+     * Archives are watched through the directory holding them,
+     * the compiler notices they changed when it is refreshed.
+     */
+    private void registerRoot(Path root, Set<Path> discovered) throws IOException {
+        if(!Files.isRegularFile(root)) {
+            register(root, discovered);
+            return;
+        }
+        
+        Path parent = root.getParent();
+        directories.put(parent.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), parent);
+    }
+    
+    private void register(Path directory, final Set<Path> discovered) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if(dir.getFileName() != null && dir.getFileName().toString().equals(".git"))
+                    return FileVisitResult.SKIP_SUBTREE;
+                
+                directories.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if(discovered != null)
+                    discovered.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    /**
+     * Blocks recompiling changed classes until interrupted or closed.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void watch() throws IOException, InterruptedException {
+        try {
+            while(true) {
+                Set<Path> changed = new LinkedHashSet();
+                collect(watchService.take(), changed);
+                
+                // Wait for the rest of a save or build to land
+                WatchKey key;
+                while((key = watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null)
+                    collect(key, changed);
+                if(overflowed)
+                    rescan(changed);
+                
+                long start = System.currentTimeMillis();
+                Trace.begin();
+                try {
+                    if(compiler.refresh(relativize(changed))) {
+                        compiler.writeOutput();
+                        Trace.log(Trace.INFO, "Recompiled in " + (System.currentTimeMillis() - start) + "ms");
+                    }
+                } catch(Compiler.CompileError ex) {
+                    Trace.dump(System.err);
+                    System.err.println(ex.getMessage());
+                    ex.printStackTrace();
+                }
+            }
+        } catch(ClosedWatchServiceException ex) {}
+    }
+    
+    /**
+     * Collects the changes that have happened since the last call without blocking.
+     * 
+     * @return Changed paths relative to their classpath directory
+     * @throws IOException 
+     */
+    public Set<String> pollChanges() throws IOException {
+        Set<Path> changed = new LinkedHashSet();
+        WatchKey key;
+        while((key = watchService.poll()) != null)
+            collect(key, changed);
+        if(overflowed)
+            rescan(changed);
+        return relativize(changed);
+    }
+    
+    private void collect(WatchKey key, Set<Path> changed) throws IOException {
+        Path directory = directories.get(key);
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                Trace.log(Trace.WARN, "Too many changes at once, rescanning the classpath");
+                overflowed = true;
+                continue;
+            }
+            
+            Path path = directory.resolve((Path)event.context());
+            if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path) && relativize(path) != null)
+                register(path, changed);
+            else
+                changed.add(path);
+        }
+        
+        if(!key.reset())
+            directories.remove(key);
+    }
+    
+    /**
+     * Events were lost, so every file the compiler knows of or that is
+     * on the classpath now is treated as changed, which also picks up
+     * the files that were deleted.
+     */
+    private void rescan(Set<Path> changed) throws IOException {
+        overflowed = false;
+        for(File file : compiler.classpathContents.values())
+            changed.add(file.toPath().toAbsolutePath());
+        for(Path root : roots)
+            registerRoot(root, changed);
+    }
+    
+    private Set<String> relativize(Set<Path> changed) {
+        Set<String> paths = new LinkedHashSet();
+        for(Path path : changed) {
+            String relative = relativize(path);
+            if(relative != null)
+                paths.add(relative);
+        }
+        return paths;
+    }
+    
+    /**
+     * @return The path relative to the classpath directory holding it, or null when it is outside them all
+     */
+    private String relativize(Path path) {
+        for(Path root : roots)
+            if(path.startsWith(root) && !path.equals(root))
+                return root.relativize(path).toString().replace(File.separatorChar, '/');
+        return null;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+    
+}
@@ -0,0 +1,279 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+
+/*
+ * Reads bundles written by BundleWriter, classes are only decoded
+ * the first time they are loaded and handed to the compact decoder.
+ */
+(function(JVM) {
+	var MAGIC = 0x4A564D42;
+	var VERSION = 1;
+	
+	function decodeUTF8(bytes) {
+		if(typeof TextDecoder !== "undefined")
+			return new TextDecoder("utf-8").decode(bytes);
+		
+		var binary = "";
+		for(var i=0; i<bytes.length; i++)
+			binary += String.fromCharCode(bytes[i]);
+		return decodeURIComponent(escape(binary));
+	}
+	
+	function Reader(view, offset) {
+		this.view = view;
+		this.offset = offset;
+	}
+	Reader.prototype.byte = function() {
+		return this.view.getUint8(this.offset++);
+	};
+	Reader.prototype.varint = function() {
+		var value = 0, shift = 0, b;
+		do {
+			b = this.view.getUint8(this.offset++);
+			value += (b & 0x7F) * Math.pow(2, shift);
+			shift += 7;
+		} while(b & 0x80);
+		return value;
+	};
+	Reader.prototype.signed = function() {
+		var value = this.varint();
+		return value % 2 ? -(value + 1) / 2 : value / 2;
+	};
+	Reader.prototype.number = function() {
+		var value = this.view.getFloat64(this.offset);
+		this.offset += 8;
+		return value;
+	};
+	Reader.prototype.int32 = function() {
+		var value = this.view.getInt32(this.offset);
+		this.offset += 4;
+		return value;
+	};
+	Reader.prototype.list = function(count, read) {
+		var list = [];
+		for(var i=0; i<count; i++)
+			list.push(read.call(this));
+		return list;
+	};
+	
+	function readValue(reader, kind, into) {
+		into.push(kind - 1, kind == 2 || kind == 4 ? reader.number() : reader.varint());
+		if(kind == 4)
+			into.push(reader.int32(), reader.int32());
+		return into;
+	}
+	
+	function readInsn(reader) {
+		var kind = reader.byte();
+		switch(kind) {
+			case 0:
+				return [kind, reader.byte()];
+			case 1:
+				return [kind, reader.byte(), reader.varint()];
+			case 2:
+				return [kind, reader.byte(), reader.signed()];
+			case 3:
+				return [kind, reader.byte(), reader.varint()];
+			case 4:
+				return [kind, reader.byte(), reader.varint(), reader.varint(), reader.varint()];
+			case 5:
+				var insn = [kind, reader.byte(), reader.varint(), reader.varint(), reader.varint()], flags = reader.byte();
+				insn.push(flags & 1);
+				if(flags & 2)
+					insn.push(reader.varint());
+				return insn;
+			case 6:
+				return [kind, reader.byte(), reader.varint()];
+			case 7:
+				return [kind, reader.varint()];
+			case 8:
+				return readValue(reader, reader.byte(), [kind]);
+			case 9:
+				return [kind, reader.varint(), reader.signed()];
+			case 10:
+				var min = reader.signed(), max = reader.signed(), dflt = reader.varint();
+				return [kind, min, max, dflt, reader.list(reader.varint(), reader.varint)];
+			case 11:
+				var lookupDefault = reader.varint(), count = reader.varint();
+				var keys = reader.list(count, reader.signed);
+				return [kind, lookupDefault ? lookupDefault - 1 : null, keys, reader.list(count, reader.varint)];
+			case 12:
+				return [kind, reader.varint(), reader.varint()];
+			case 13:
+				return [kind, reader.varint(), reader.varint(), reader.varint(), reader.varint()];
+			case 14:
+				return [kind, reader.varint(), reader.varint(), reader.varint(), reader.varint(), reader.varint()];
+			case 15:
+				return [kind, reader.varint(), reader.varint()];
+			case 16:
+				var lambda = [kind, reader.varint(), reader.varint(), reader.varint(), reader.varint(), reader.byte(), reader.varint(), reader.varint(), reader.varint(), reader.byte()];
+				lambda.push(reader.list(reader.varint(), reader.varint));
+				lambda.push(reader.list(reader.varint(), reader.varint));
+				return lambda;
+			case 17:
+				return [kind, reader.varint(), reader.list(reader.varint(), reader.signed)];
+			case 18:
+				return [kind, reader.varint(), reader.varint(), reader.varint()];
+		}
+		throw new Error("Unknown binary instruction: " + kind);
+	}
+	
+	function readMember(reader) {
+		var member;
+		if(reader.byte() == 0) {
+			member = [0, reader.varint(), reader.varint(), reader.varint()];
+			var kind = reader.byte();
+			if(kind)
+				readValue(reader, kind, member);
+			return member;
+		}
+		
+		member = [1, reader.varint(), reader.varint(), reader.varint()];
+		var exceptions = reader.varint();
+		member.push(exceptions ? reader.list(exceptions - 1, reader.varint) : null);
+		if(reader.byte()) {
+			member.push(reader.varint());
+			return member;
+		}
+		
+		member.push(reader.list(reader.varint(), function() {
+			return readInsn(this);
+		}));
+		var properties = reader.varint();
+		if(properties)
+			member.push(properties - 1);
+		return member;
+	}
+	
+	function Bundle(buffer) {
+		var view = this.view = new DataView(buffer);
+		if(view.getUint32(0) != MAGIC)
+			throw new Error("Not a class bundle");
+		if(view.getUint16(4) != VERSION)
+			throw new Error("Unsupported class bundle version " + view.getUint16(4));
+		
+		var count = view.getUint32(8);
+		this.stringOffsets = 12;
+		this.stringData = 12 + (count + 1) * 4;
+		this.strings = new Array(count);
+		
+		var index = this.stringData + view.getUint32(12 + count * 4);
+		var classes = view.getUint32(index);
+		this.classes = [];
+		this.entries = {};
+		for(var i=0; i<classes; i++) {
+			var entry = index + 4 + i * 12;
+			var name = this.string(view.getUint32(entry));
+			this.classes.push(name);
+			this.entries[name] = {
+				offset: view.getUint32(entry + 4),
+				length: view.getUint32(entry + 8),
+				defined: false
+			};
+		}
+	}
+	Bundle.prototype.string = function(index) {
+		var string = this.strings[index];
+		if(string === undefined) {
+			var start = this.view.getUint32(this.stringOffsets + index * 4);
+			var end = this.view.getUint32(this.stringOffsets + index * 4 + 4);
+			string = this.strings[index] = decodeUTF8(new Uint8Array(this.view.buffer, this.stringData + start, end - start));
+		}
+		return string;
+	};
+	Bundle.prototype.define = function($JVM, name) {
+		var entry = this.entries[name];
+		if(!entry)
+			throw new Error("No class `" + name + "` in bundle");
+		if(entry.defined)
+			return;
+		entry.defined = true;
+		
+		var reader = new Reader(this.view, entry.offset);
+		var strings = reader.list(reader.varint(), reader.varint);
+		for(var i=0; i<strings.length; i++)
+			strings[i] = this.string(strings[i]);
+		
+		var className = reader.varint();
+		var interfaces = reader.list(reader.varint(), reader.varint);
+		var parent = reader.varint();
+		var members = reader.list(reader.varint(), function() {
+			return readMember(this);
+		});
+		for(var i=0; i<members.length; i++)
+			if(members[i][0] == 1 && members[i].length > 6)
+				members[i][6] = new Function("return " + strings[members[i][6]] + ";")();
+		var references = reader.list(reader.varint(), reader.varint);
+		JVM.defineCompact($JVM, strings, className, interfaces, parent ? parent - 1 : null, members, references);
+	};
+	Bundle.prototype.register = function($JVM) {
+		var bundle = this;
+		var classLoader = $JVM.ClassLoader;
+		var loadClass = classLoader.loadClass;
+		classLoader.loadClass = function(name) {
+			var entry = bundle.entries[name];
+			if(entry && !entry.defined)
+				bundle.define($JVM, name);
+			return loadClass.apply(this, arguments);
+		};
+	};
+	Bundle.prototype.defineAll = function($JVM) {
+		for(var i=0; i<this.classes.length; i++)
+			this.define($JVM, this.classes[i]);
+	};
+	
+	Object.defineProperty(JVM, "Bundle", {
+		value: Bundle
+	});
+	function loadScripts(urls, callback) {
+		var next = 0;
+		(function loadNext() {
+			if(next == urls.length) {
+				callback();
+				return;
+			}
+			
+			var script = document.createElement("script");
+			script.src = urls[next++];
+			script.onload = loadNext;
+			script.onerror = function() {
+				throw new Error("Cannot load `" + script.src + "`");
+			};
+			document.head.appendChild(script);
+		})();
+	}
+	
+	Object.defineProperty(JVM, "loadBundle", {
+		value: function($JVM, url, natives, callback) {
+			var request = new XMLHttpRequest();
+			request.open("GET", url, true);
+			request.responseType = "arraybuffer";
+			request.onload = function() {
+				if(request.status && (request.status < 200 || request.status >= 300))
+					throw new Error("Cannot load `" + url + "`: " + request.status);
+				
+				var bundle = new Bundle(request.response);
+				bundle.register($JVM);
+				loadScripts(natives || [], function() { // In order, once the classes they attach to can be loaded
+					if(callback)
+						callback(bundle);
+				});
+			};
+			request.send();
+		}
+	});
+})(JVM);
@@ -0,0 +1,196 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+
+/*
+ * Expands classes written by CompactDescriptorWriter back into
+ * the descriptors the class loader expects.
+ */
+(function(JVM) {
+	var OPCODES = $OPCODES;
+	var FLAGS = $FLAGS;
+	var TYPES = {
+		"Z": "BOOLEAN",
+		"B": "BYTE",
+		"C": "CHAR",
+		"S": "SHORT",
+		"I": "INT",
+		"J": "LONG",
+		"F": "FLOAT",
+		"D": "DOUBLE",
+		"V": "VOID"
+	};
+	
+	function splitArguments(args) {
+		var split = [], start = 0;
+		for(var i=0; i<args.length; i++) {
+			var c = args.charAt(i);
+			if(c == "[")
+				continue;
+			if(c == "L")
+				i = args.indexOf(";", i);
+			split.push(args.substring(start, i+1));
+			start = i+1;
+		}
+		return split;
+	}
+	
+	function type(signature) {
+		return signature.length == 1 && TYPES.hasOwnProperty(signature) ? JVM.Types[TYPES[signature]] : signature;
+	}
+	
+	function sigparts(desc) {
+		var close = desc.indexOf(")");
+		var args = splitArguments(desc.substring(1, close));
+		for(var i=0; i<args.length; i++)
+			args[i] = type(args[i]);
+		return {
+			"return": type(desc.substring(close+1)),
+			"args": args
+		};
+	}
+	
+	function access(mask) {
+		var flags = [];
+		for(var i=0; i<FLAGS.length; i++)
+			if(mask & FLAGS[i][0]) {
+				mask -= FLAGS[i][0];
+				flags.push(JVM.Flags[FLAGS[i][1]]);
+			}
+		return flags;
+	}
+	
+	Object.defineProperty(JVM, "defineCompact", {
+		value: function($JVM, strings, name, interfaces, parent, members, references) {
+			function string(index) {
+				return strings[index];
+			}
+			function opcode(code) {
+				return JVM.Opcodes[OPCODES[code]];
+			}
+			
+			function expandInsn(insn) {
+				switch(insn[0]) {
+					case 0:
+						return {"type": "insn", "opcode": opcode(insn[1])};
+					case 1:
+						return {"type": "var", "opcode": opcode(insn[1]), "index": String(insn[2])};
+					case 2:
+						return {"type": "int", "opcode": opcode(insn[1]), "operand": String(insn[2])};
+					case 3:
+						return {"type": "type", "opcode": opcode(insn[1]), "signature": type(strings[insn[2]])};
+					case 4:
+						return {"type": "field", "opcode": opcode(insn[1]), "class": type(strings[insn[2]]), "name": strings[insn[3]], "signature": type(strings[insn[4]])};
+					case 5:
+						var signature = sigparts(strings[insn[4]]);
+						var method = {"type": "method", "opcode": opcode(insn[1]), "owner": type(strings[insn[2]]), "name": strings[insn[3]],
+							"signature": {"raw": strings[insn[4]], "return": signature["return"], "args": signature.args}, "interface": insn[5] == 1};
+						if(insn.length > 6)
+							method.target = type(strings[insn[6]]);
+						return method;
+					case 6:
+						return {"type": "jump", "opcode": opcode(insn[1]), "name": strings[insn[2]]};
+					case 7:
+						return {"type": "label", "name": strings[insn[1]]};
+					case 8:
+						switch(insn[1]) {
+							case 0:
+								return {"type": "ldc", "stringValue": strings[insn[2]]};
+							case 1:
+								return {"type": "ldc", "numericValue": insn[2]};
+							case 3:
+								return {"type": "ldc", "numericValue": insn[2], "longValue": [insn[3], insn[4]]};
+							default:
+								return {"type": "ldc", "objectRef": type(strings[insn[2]])};
+						}
+					case 9:
+						return {"type": "iinc", "index": String(insn[1]), "by": String(insn[2])};
+					case 10:
+						return {"type": "tableSwitch", "min": String(insn[1]), "max": String(insn[2]), "default": strings[insn[3]], "jumps": insn[4].map(string)};
+					case 11:
+						var lookup = {"type": "switch"};
+						if(insn[1] !== null)
+							lookup["default"] = strings[insn[1]];
+						lookup.keys = insn[2];
+						lookup.jumps = insn[3].map(string);
+						return lookup;
+					case 12:
+						return {"type": "array", "desc": strings[insn[1]], "size": String(insn[2])};
+					case 13:
+						return {"type": "try", "start": strings[insn[1]], "end": strings[insn[2]], "handler": strings[insn[3]], "catch": strings[insn[4]]};
+					case 14:
+						return {"type": "declare", "name": strings[insn[1]], "signature": type(strings[insn[2]]), "index": String(insn[3]), "start": strings[insn[4]], "end": strings[insn[5]]};
+					case 15:
+						return {"type": "arg", "name": strings[insn[1]], "access": String(insn[2])};
+					case 16:
+						var captured = strings[insn[2]];
+						var lambda = {"type": "lambda", "interface": type(captured.substring(captured.indexOf(")") + 2, captured.length - 1)), "name": strings[insn[1]],
+							"signature": strings[insn[3]], "instantiated": strings[insn[4]], "captured": sigparts(captured).args,
+							"implementation": {"opcode": opcode(insn[5]), "owner": type(strings[insn[6]]), "name": strings[insn[7]], "signature": strings[insn[8]], "interface": insn[9] == 1}};
+						if(insn[10].length)
+							lambda.interfaces = insn[10].map(function(index) {
+								return type(strings[index]);
+							});
+						if(insn[11].length)
+							lambda.bridges = insn[11].map(string);
+						return lambda;
+					case 17:
+						return {"type": "concat", "args": sigparts(strings[insn[1]]).args, "parts": insn[2].map(function(part) {
+							return part < 0 ? -1 - part : strings[part];
+						})};
+					case 18:
+						return {"type": "typedarray", "desc": strings[insn[1]], "size": String(insn[2]), "typedArray": strings[insn[3]]};
+				}
+				throw new Error("Unknown compact instruction: " + insn[0]);
+			}
+			
+			var expanded = [];
+			for(var i=0; i<members.length; i++) {
+				var member = members[i];
+				if(member[0] == 0) {
+					var field = {"type": "field", "name": strings[member[1]], "signature": type(strings[member[2]])};
+					if(member.length > 4) {
+						if(member[4] == 0)
+							field.stringValue = strings[member[5]];
+						else
+							field.numericValue = member[5];
+						if(member[4] == 3)
+							field.longValue = [member[6], member[7]];
+					}
+					field.access = access(member[3]);
+					expanded.push(field);
+				} else {
+					var method = {"type": "method", "name": strings[member[1]], "signature": strings[member[2]], "sigparts": sigparts(strings[member[2]])};
+					if(member[4] !== null)
+						method.exceptions = member[4].map(string);
+					if(Array.isArray(member[5])) {
+						method.implementation = member[5].map(expandInsn);
+						method.implementation.push({"type": "end"});
+					} else
+						method.implementation = strings[member[5]];
+					if(member.length > 6)
+						for(var key in member[6])
+							method[key] = member[6][key];
+					method.access = access(member[3]);
+					expanded.push(method);
+				}
+			}
+			expanded.push({"type": "references", "value": references.map(string)});
+			
+			$JVM.ClassLoader.defineClass(strings[name], interfaces.map(string), parent === null ? null : strings[parent], expanded);
+		}
+	});
+})(JVM);
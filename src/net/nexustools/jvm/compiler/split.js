@@ -0,0 +1,48 @@
+/*
+ * JVM.JS-Compiler
+ * 
+ * This code is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software.
+ */
+
+/*
+ * Fetches the chunks written by a split build the first
+ * time one of the classes they define is loaded.
+ */
+(function(JVM) {
+	function fetchChunk(url) {
+		var request = new XMLHttpRequest();
+		request.open("GET", url, false); // Loading a class cannot wait for a callback
+		request.send();
+		if(request.status && (request.status < 200 || request.status >= 300))
+			throw new Error("Cannot load `" + url + "`: " + request.status);
+		
+		(0, eval)(request.responseText + "\n//# sourceURL=" + url);
+	}
+	
+	Object.defineProperty(JVM, "registerChunks", {
+		value: function($JVM, chunks) {
+			var loaded = {};
+			var classLoader = $JVM.ClassLoader;
+			var loadClass = classLoader.loadClass;
+			classLoader.loadClass = function(name) {
+				var chunk = chunks[name];
+				if(chunk && !loaded[chunk]) {
+					loaded[chunk] = true;
+					fetchChunk(chunk);
+				}
+				return loadClass.apply(this, arguments);
+			};
+		}
+	});
+})(JVM);